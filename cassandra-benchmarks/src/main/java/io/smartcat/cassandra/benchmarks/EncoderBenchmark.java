@@ -0,0 +1,60 @@
+package io.smartcat.cassandra.benchmarks;
+
+import io.smartcat.cassandra.common.PartitionEncoder;
+import io.smartcat.cassandra.common.PartitionEncoders;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one partition per operation the way the trigger and the CDC handler do before sending it: partition key
+ * to string and partition to event value. Run with {@code -prof gc} to see allocation rate per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+
+    private static final int PARTITIONS = 16;
+
+    @Param({"WIDE_ROW", "MANY_ROWS", "RANGE_TOMBSTONES", "LARGE_BLOB", "COLLECTIONS"})
+    private Partitions.Shape shape;
+
+    @Param({"json", "avro"})
+    private String encoderName;
+
+    private PartitionEncoder encoder;
+    private PartitionUpdate[] partitions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        encoder = PartitionEncoders.create(encoderName);
+        partitions = new PartitionUpdate[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = Partitions.create(shape, i);
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        PartitionUpdate partition = partitions[next++ % PARTITIONS];
+        blackhole.consume(partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey()));
+        blackhole.consume(encoder.encode(partition));
+    }
+}
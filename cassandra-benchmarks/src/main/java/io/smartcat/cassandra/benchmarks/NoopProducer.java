@@ -0,0 +1,62 @@
+package io.smartcat.cassandra.benchmarks;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer which acknowledges every record right away without sending it anywhere, so benchmarks measure
+ * everything up to the producer but not Kafka itself.
+ */
+public class NoopProducer<K, V> implements Producer<K, V> {
+
+    private final RecordMetadata metadata = new RecordMetadata(new TopicPartition("noop", 0), 0, 0, 0, 0, 0, 0);
+    private final Future<RecordMetadata> future = CompletableFuture.completedFuture(metadata);
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record) {
+        return send(record, null);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+        if (callback != null) {
+            callback.onCompletion(metadata, null);
+        }
+        return future;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void close(long timeout, TimeUnit unit) {
+    }
+}
@@ -0,0 +1,156 @@
+package io.smartcat.cassandra.benchmarks;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.schema.KeyspaceMetadata;
+import org.apache.cassandra.schema.KeyspaceParams;
+import org.apache.cassandra.schema.Tables;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic partition updates of different shapes, each shape in its own table of the {@code bench} keyspace.
+ */
+public final class Partitions {
+
+    public static final String KEYSPACE = "bench";
+
+    private static final int WIDE_ROW_COLUMNS = 100;
+    private static final int CLUSTERING_ROWS = 500;
+    private static final int RANGE_TOMBSTONES = 50;
+    private static final int BLOB_SIZE = 64 * 1024;
+    private static final int COLLECTION_SIZE = 100;
+
+    static {
+        DatabaseDescriptor.clientInitialization();
+        DatabaseDescriptor.setPartitionerUnsafe(Murmur3Partitioner.instance);
+    }
+
+    public enum Shape {
+        /** One row with a hundred text columns. */
+        WIDE_ROW,
+        /** Five hundred small clustering rows. */
+        MANY_ROWS,
+        /** Fifty range tombstones next to a few rows. */
+        RANGE_TOMBSTONES,
+        /** One row with a 64 KiB blob. */
+        LARGE_BLOB,
+        /** One row with a set, a list and a map of a hundred elements each. */
+        COLLECTIONS;
+
+        private volatile CFMetaData metadata;
+
+        /**
+         * Returns metadata of the shape's table, registered in the local schema so mutations can be deserialized.
+         */
+        public CFMetaData metadata() {
+            if (metadata == null) {
+                synchronized (this) {
+                    if (metadata == null) {
+                        metadata = register(CFMetaData.compile(createTable(), KEYSPACE));
+                    }
+                }
+            }
+            return metadata;
+        }
+
+        public String table() {
+            return name().toLowerCase();
+        }
+
+        private String createTable() {
+            switch (this) {
+                case WIDE_ROW:
+                    StringBuilder columns = new StringBuilder();
+                    for (int i = 0; i < WIDE_ROW_COLUMNS; i++) {
+                        columns.append("v").append(i).append(" text, ");
+                    }
+                    return "CREATE TABLE wide_row (k text, " + columns + "PRIMARY KEY (k))";
+                case MANY_ROWS:
+                    return "CREATE TABLE many_rows (k text, c int, v text, n bigint, PRIMARY KEY (k, c))";
+                case RANGE_TOMBSTONES:
+                    return "CREATE TABLE range_tombstones (k text, c int, v text, PRIMARY KEY (k, c))";
+                case LARGE_BLOB:
+                    return "CREATE TABLE large_blob (k text, b blob, PRIMARY KEY (k))";
+                default:
+                    return "CREATE TABLE collections (k text, s set<text>, l list<text>, m map<text, int>, "
+                            + "PRIMARY KEY (k))";
+            }
+        }
+    }
+
+    private Partitions() {
+    }
+
+    private static synchronized CFMetaData register(CFMetaData table) {
+        KeyspaceMetadata keyspace = Schema.instance.getKSMetaData(KEYSPACE);
+        keyspace = keyspace == null
+                ? KeyspaceMetadata.create(KEYSPACE, KeyspaceParams.local(), Tables.of(table))
+                : keyspace.withSwapped(keyspace.tables.with(table));
+        Schema.instance.setKeyspaceMetadata(keyspace);
+        Schema.instance.load(table);
+        return table;
+    }
+
+    /**
+     * Builds a partition update of the given shape. Values are random, but the same for the same seed.
+     */
+    public static PartitionUpdate create(Shape shape, int seed) {
+        Random random = new Random(seed);
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(shape.metadata(), "key-" + seed);
+        switch (shape) {
+            case WIDE_ROW:
+                Row.SimpleBuilder row = builder.row();
+                for (int i = 0; i < WIDE_ROW_COLUMNS; i++) {
+                    row.add("v" + i, text(random, 20));
+                }
+                break;
+            case MANY_ROWS:
+                for (int i = 0; i < CLUSTERING_ROWS; i++) {
+                    builder.row(i).add("v", text(random, 20)).add("n", random.nextLong());
+                }
+                break;
+            case RANGE_TOMBSTONES:
+                for (int i = 0; i < RANGE_TOMBSTONES; i++) {
+                    builder.addRangeTombstone().start(i * 10).end(i * 10 + 5);
+                    builder.row(i * 10 + 7).add("v", text(random, 20));
+                }
+                break;
+            case LARGE_BLOB:
+                byte[] blob = new byte[BLOB_SIZE];
+                random.nextBytes(blob);
+                builder.row().add("b", ByteBuffer.wrap(blob));
+                break;
+            default:
+                Set<String> set = new HashSet<>();
+                List<String> list = new ArrayList<>();
+                Map<String, Integer> map = new HashMap<>();
+                for (int i = 0; i < COLLECTION_SIZE; i++) {
+                    set.add(text(random, 10));
+                    list.add(text(random, 10));
+                    map.put(text(random, 10), random.nextInt());
+                }
+                builder.row().add("s", set).add("l", list).add("m", map);
+        }
+        return builder.build();
+    }
+
+    private static String text(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
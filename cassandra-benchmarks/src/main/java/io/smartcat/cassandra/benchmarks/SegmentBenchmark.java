@@ -0,0 +1,95 @@
+package io.smartcat.cassandra.benchmarks;
+
+import io.smartcat.cassandra.cdc.CommitLogSegments;
+import io.smartcat.cassandra.cdc.CustomCommitLogReadHandler;
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.cassandra.db.commitlog.CommitLogReader;
+import org.apache.cassandra.io.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a synthetic commitlog segment and hands every mutation to the CDC handler, which encodes it and sends it to
+ * a producer that drops it. Scores are mutations per second, end to end from segment file to producer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SegmentBenchmark {
+
+    private static final int MUTATIONS = 500;
+
+    @Param({"WIDE_ROW", "MANY_ROWS", "RANGE_TOMBSTONES", "LARGE_BLOB", "COLLECTIONS"})
+    private Partitions.Shape shape;
+
+    @Param({"json", "avro"})
+    private String encoderName;
+
+    private Path directory;
+    private File segment;
+    private CustomCommitLogReadHandler handler;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<Mutation> mutations = new ArrayList<>(MUTATIONS);
+        for (int i = 0; i < MUTATIONS; i++) {
+            mutations.add(new Mutation(Partitions.create(shape, i)));
+        }
+        directory = Files.createTempDirectory("segment-benchmark");
+        segment = CommitLogSegments.write(directory, 1, mutations).toFile();
+        handler = new CustomCommitLogReadHandler(configuration(), new PipelineMetrics("segment-benchmark"),
+                new NoopProducer<>());
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteRecursive(directory.toFile());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MUTATIONS)
+    public void read() throws IOException {
+        new CommitLogReader().readCommitLogSegment(handler, segment, CommitLogPosition.NONE,
+                CommitLogReader.ALL_MUTATIONS, false);
+    }
+
+    private Map<String, Object> configuration() {
+        Map<String, Object> table = new HashMap<>();
+        table.put("keyspace", Partitions.KEYSPACE);
+        table.put("table", shape.table());
+        table.put("topic", "benchmark");
+        Map<String, Object> cassandra = new HashMap<>();
+        cassandra.put("tables", Collections.singletonList(table));
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("cassandra", cassandra);
+        configuration.put("encoder", encoderName);
+        return configuration;
+    }
+}
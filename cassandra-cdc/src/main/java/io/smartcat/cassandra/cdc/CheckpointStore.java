@@ -0,0 +1,130 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the commitlog position up to which all mutations were handled in a small local file. Positions are
+ * updated in memory on the hot path and written out, with fsync, by a background thread once per interval.
+ */
+public class CheckpointStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointStore.class);
+
+    private static final int RECORD_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private final Path file;
+    private final Path temporaryFile;
+    private final AtomicReference<CommitLogPosition> position = new AtomicReference<>(CommitLogPosition.NONE);
+    private final ScheduledExecutorService flusher;
+    private volatile CommitLogPosition flushed = CommitLogPosition.NONE;
+
+    public CheckpointStore(Map<String, Object> configuration) {
+        String defaultFile = Paths.get((String) YamlUtils.select(configuration, "cassandra.cdc_raw_directory"))
+                .resolveSibling("cdc_reader.checkpoint").toString();
+        int interval = (Integer) YamlUtils.select(configuration, "reader.checkpoint.interval_ms", 1000);
+        this.file = Paths.get((String) YamlUtils.select(configuration, "reader.checkpoint.file", defaultFile));
+        this.temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the last flushed position, or {@link CommitLogPosition#NONE} when there is no valid checkpoint.
+     */
+    public CommitLogPosition load() throws IOException {
+        if (!Files.exists(file)) {
+            return CommitLogPosition.NONE;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() != RECORD_SIZE) {
+            LOGGER.warn("Ignoring checkpoint file {} of unexpected size {}.", file, buffer.remaining());
+            return CommitLogPosition.NONE;
+        }
+        long segmentId = buffer.getLong();
+        int entryLocation = buffer.getInt();
+        if (buffer.getLong() != checksum(segmentId, entryLocation)) {
+            LOGGER.warn("Ignoring corrupted checkpoint file {}.", file);
+            return CommitLogPosition.NONE;
+        }
+        CommitLogPosition loaded = new CommitLogPosition(segmentId, entryLocation);
+        position.set(loaded);
+        flushed = loaded;
+        return loaded;
+    }
+
+    /**
+     * Records that every mutation up to and including the given position was handled. Older positions are ignored.
+     */
+    public void update(CommitLogPosition checkpoint) {
+        CommitLogPosition current;
+        do {
+            current = position.get();
+            if (current.compareTo(checkpoint) >= 0) {
+                return;
+            }
+        } while (!position.compareAndSet(current, checkpoint));
+    }
+
+    /**
+     * Returns the position recorded last, which might not be flushed yet.
+     */
+    public CommitLogPosition position() {
+        return position.get();
+    }
+
+    public synchronized void flush() throws IOException {
+        CommitLogPosition current = position.get();
+        if (current.equals(flushed)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putLong(current.segmentId).putInt(current.position)
+                .putLong(checksum(current.segmentId, current.position)).flip();
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        flushed = current;
+        LOGGER.debug("Checkpoint {} flushed.", current);
+    }
+
+    public void close() throws IOException {
+        flusher.shutdown();
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.error("Unable to flush checkpoint to {}.", file, e);
+        }
+    }
+
+    private static long checksum(long segmentId, int entryLocation) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(segmentId).putInt(entryLocation).array());
+        return crc.getValue();
+    }
+}
@@ -1,163 +1,189 @@
 package io.smartcat.cassandra.cdc;
 
-import org.apache.cassandra.config.ColumnDefinition;
-import org.apache.cassandra.db.Clustering;
-import org.apache.cassandra.db.ClusteringBound;
-import org.apache.cassandra.db.ClusteringPrefix;
+import com.codahale.metrics.Meter;
+import io.smartcat.cassandra.common.KeyFormat;
+import io.smartcat.cassandra.common.LargeValuePolicy;
+import io.smartcat.cassandra.common.PartitionEncoder;
+import io.smartcat.cassandra.common.PartitionEncoders;
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.db.Mutation;
 import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
 import org.apache.cassandra.db.commitlog.CommitLogReadHandler;
 import org.apache.cassandra.db.partitions.Partition;
 import org.apache.cassandra.db.partitions.PartitionUpdate;
-import org.apache.cassandra.db.rows.Cell;
-import org.apache.cassandra.db.rows.Row;
-import org.apache.cassandra.db.rows.Unfiltered;
-import org.apache.cassandra.db.rows.UnfilteredRowIterator;
-import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
-import org.json.simple.JSONObject;
+import org.apache.kafka.common.errors.RetriableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 public class CustomCommitLogReadHandler implements CommitLogReadHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CustomCommitLogReadHandler.class);
 
-    private final String keyspace;
-    private final String table;
-    private final String topic;
-    private final Producer<String, String> producer;
+    private final RoutingTable routingTable;
+    private final EventSink sink;
+    private final PartitionEncoder encoder;
+    private final KeyFormat keyFormat;
+    private final PipelineMetrics metrics;
+    private final ReplicaFilter replicaFilter;
+    private final DedupCache dedupCache;
+    private final Meter mutations;
+    private final Meter skippedReplicas;
+    private final Meter skippedDuplicates;
+    private final Meter droppedEvents;
+    // First send which still failed after the sink's own retries, nothing is sent after it.
+    private volatile Exception failure;
 
-    public CustomCommitLogReadHandler(Map<String, Object> configuration) {
-        keyspace = (String) YamlUtils.select(configuration, "cassandra.keyspace");
-        table = (String) YamlUtils.select(configuration, "cassandra.table");
-        topic = (String) YamlUtils.select(configuration, "kafka.topic");
-        producer = new KafkaProducer<>((Map) YamlUtils.select(configuration, "kafka.configuration"));
+    public CustomCommitLogReadHandler(Map<String, Object> configuration, PipelineMetrics metrics) {
+        this(configuration, metrics, EventSinks.create(configuration));
+    }
+
+    public CustomCommitLogReadHandler(Map<String, Object> configuration, PipelineMetrics metrics,
+            Producer<byte[], byte[]> producer) {
+        this(configuration, metrics, new KafkaSink(producer));
+    }
+
+    public CustomCommitLogReadHandler(Map<String, Object> configuration, PipelineMetrics metrics, EventSink sink) {
+        this.metrics = metrics;
+        this.sink = sink;
+        routingTable = new RoutingTable(configuration);
+        encoder = PartitionEncoders.create((String) YamlUtils.select(configuration, "encoder"),
+                LargeValuePolicy.create((String) YamlUtils.select(configuration, "large_value.policy"),
+                        (Integer) YamlUtils.select(configuration, "large_value.threshold_bytes",
+                                LargeValuePolicy.DEFAULT_THRESHOLD_BYTES),
+                        (String) YamlUtils.select(configuration, "large_value.directory")));
+        keyFormat = KeyFormat.of((String) YamlUtils.select(configuration, "kafka.key_format"));
+        String dedup = (String) YamlUtils.select(configuration, "dedup.mode", "none");
+        replicaFilter = "primary_replica".equals(dedup) ? new ReplicaFilter(configuration) : null;
+        // Content hashes are the fallback of primary replica mode while no ring snapshot is available.
+        dedupCache = replicaFilter != null || "content_hash".equals(dedup) ? new DedupCache(configuration) : null;
+        if (!"none".equals(dedup) && dedupCache == null) {
+            throw new IllegalArgumentException("Unknown dedup.mode: " + dedup);
+        }
+        mutations = metrics.meter("mutations");
+        skippedReplicas = metrics.meter("skipped-replicas");
+        skippedDuplicates = metrics.meter("skipped-duplicates");
+        droppedEvents = metrics.meter("dropped-events");
     }
 
     @Override
     public void handleMutation(Mutation mutation, int size, int entryLocation, CommitLogDescriptor descriptor) {
-        LOGGER.debug("Handle mutation started...");
+        handleMutation(mutation, null);
+    }
+
+    /**
+     * Sends the captured partitions of the mutation, registering every record in the given range, which is
+     * completed record by record as Kafka acknowledges them.
+     */
+    public void handleMutation(Mutation mutation, InFlight inFlight) {
+        if (failure != null) {
+            return;
+        }
+        mutations.mark();
+        if (replicaFilter != null && replicaFilter.hasRing() && !replicaFilter.isPrimary(mutation.key())) {
+            skippedReplicas.mark();
+            return;
+        }
         for (PartitionUpdate partitionUpdate : mutation.getPartitionUpdates()) {
-            process(partitionUpdate);
+            process(partitionUpdate, inFlight);
         }
-        LOGGER.debug("Handle mutation finished...");
     }
 
     @Override
     public void handleUnrecoverableError(CommitLogReadException exception) throws IOException {
-        LOGGER.debug("Handle unrecoverable error called.");
         throw new RuntimeException(exception);
     }
 
     @Override
     public boolean shouldSkipSegmentOnError(CommitLogReadException exception) throws IOException {
-        LOGGER.debug("Should skip segment on error.");
-        exception.printStackTrace();
+        LOGGER.error("Skipping rest of the commitlog segment.", exception);
         return true;
     }
 
+    /**
+     * Throws if a send failed for a transient reason even after the retries of the sink. Records of that send and of
+     * all later mutations are never acknowledged, so checkpoints and segments stay where they were before it and a
+     * restarted reader sends them again.
+     */
+    public void checkFailure() {
+        Exception exception = failure;
+        if (exception != null) {
+            throw new IllegalStateException("Sending an event failed after all retries, restart the reader to continue "
+                    + "from the last checkpoint.", exception);
+        }
+    }
 
-    @SuppressWarnings("unchecked")
-    private void process(Partition partition) {
-        LOGGER.debug("Process method started...");
-        if (!partition.metadata().ksName.equals(keyspace)) {
-            LOGGER.debug("Keyspace should be '{}' but is '{}'.", keyspace, partition.metadata().ksName);
+    /**
+     * Stops reloading the ring snapshot and closes the sink, once every event was sent.
+     */
+    public void close() throws IOException {
+        if (replicaFilter != null) {
+            replicaFilter.shutdown();
+        }
+        sink.close();
+    }
+
+    private void process(Partition partition, InFlight inFlight) {
+        RoutingTable.Route route = routingTable.route(partition.metadata());
+        if (route == null) {
             return;
         }
-        if (!partition.metadata().cfName.equals(table)) {
-            LOGGER.debug("Table should be '{} but is '{}'.", table, partition.metadata().cfName);
+        long start = System.nanoTime();
+        byte[] value = encoder.encode(partition, route.columns());
+        metrics.encoded(value.length, start);
+        boolean ringMissing = replicaFilter == null || !replicaFilter.hasRing();
+        if (dedupCache != null && ringMissing
+                && dedupCache.isDuplicate(route.topic(), DedupCache.writeTimes((PartitionUpdate) partition), value)) {
+            skippedDuplicates.mark();
             return;
         }
-        String key = getKey(partition);
-        JSONObject obj = new JSONObject();
-        obj.put("key", key);
-        if (partitionIsDeleted(partition)) {
-            obj.put("partitionDeleted", true);
-        } else {
-            UnfilteredRowIterator it = partition.unfilteredIterator();
-            List<JSONObject> rows = new ArrayList<>();
-            while (it.hasNext()) {
-                Unfiltered un = it.next();
-                if (un.isRow()) {
-                    JSONObject jsonRow = new JSONObject();
-                    Clustering clustering = (Clustering) un.clustering();
-                    String clusteringKey = clustering.toCQLString(partition.metadata());
-                    jsonRow.put("clusteringKey", clusteringKey);
-                    Row row = partition.getRow(clustering);
-
-                    if (rowIsDeleted(row)) {
-                        obj.put("rowDeleted", true);
-                    } else {
-                        Iterator<Cell> cells = row.cells().iterator();
-                        Iterator<ColumnDefinition> columns = row.columns().iterator();
-                        List<JSONObject> cellObjects = new ArrayList<>();
-                        while (cells.hasNext() && columns.hasNext()) {
-                            JSONObject jsonCell = new JSONObject();
-                            ColumnDefinition columnDef = columns.next();
-                            Cell cell = cells.next();
-                            jsonCell.put("name", columnDef.name.toString());
-                            if (cell.isTombstone()) {
-                                jsonCell.put("deleted", true);
-                            } else {
-                                String data = columnDef.type.getString(cell.value());
-                                jsonCell.put("value", data);
-                            }
-                            cellObjects.add(jsonCell);
-                        }
-                        jsonRow.put("cells", cellObjects);
-                    }
-                    rows.add(jsonRow);
-                } else if (un.isRangeTombstoneMarker()) {
-                    obj.put("rowRangeDeleted", true);
-                    ClusteringBound bound = (ClusteringBound) un.clustering();
-                    List<JSONObject> bounds = new ArrayList<>();
-                    for (int i = 0; i < bound.size(); i++) {
-                        String clusteringBound = partition.metadata().comparator.subtype(i).getString(bound.get(i));
-                        JSONObject boundObject = new JSONObject();
-                        boundObject.put("clusteringKey", clusteringBound);
-                        if (i == bound.size() - 1) {
-                            if (bound.kind().isStart()) {
-                                boundObject.put("inclusive",
-                                        bound.kind() == ClusteringPrefix.Kind.INCL_START_BOUND ? true : false);
-                            }
-                            if (bound.kind().isEnd()) {
-                                boundObject.put("inclusive",
-                                        bound.kind() == ClusteringPrefix.Kind.INCL_END_BOUND ? true : false);
-                            }
-                        }
-                        bounds.add(boundObject);
-                    }
-                    obj.put((bound.kind().isStart() ? "start" : "end"), bounds);
-                }
-            }
-            obj.put("rows", rows);
+        if (inFlight != null) {
+            inFlight.add();
         }
-        LOGGER.debug("Creating json value...");
-        String value = obj.toJSONString();
-        LOGGER.debug("Created json value '{}'", value);
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, key, value);
-        LOGGER.debug("Created producer record with topic {}, key {}, value {}", topic, key, value);
-        producer.send(record);
-        LOGGER.debug("Sent record to kafka.");
+        CFMetaData table = partition.metadata();
+        send(new EventSink.Event(table.ksName, table.cfName, route.topic(), keyFormat.serialize(partition), value),
+                inFlight);
     }
 
-    private boolean partitionIsDeleted(Partition partition) {
-        return partition.partitionLevelDeletion().markedForDeleteAt() > Long.MIN_VALUE;
-    }
-
-    private boolean rowIsDeleted(Row row) {
-        return row.deletion().time().markedForDeleteAt() > Long.MIN_VALUE;
+    private void send(EventSink.Event event, InFlight inFlight) {
+        long sent = System.nanoTime();
+        sink.send(event, exception -> {
+            if (exception == null) {
+                metrics.acknowledged(sent);
+                if (inFlight != null) {
+                    inFlight.done();
+                }
+            } else {
+                failed(event, inFlight, exception);
+            }
+        });
     }
 
-    private String getKey(Partition partition) {
-        return partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey());
+    /**
+     * Handles a send the sink gave up on. Retries are left to the sink, the Kafka producer retries on the connection
+     * of the partition, which keeps records of a key in order. A transient failure which outlasted them stops the
+     * handler without acknowledging the event. Events the sink rejected for good are dropped, so they do not hold
+     * back their segment forever, and counted apart from transient failures.
+     */
+    private void failed(EventSink.Event event, InFlight inFlight, Exception exception) {
+        if (exception instanceof RetriableException) {
+            metrics.failedSend();
+            synchronized (this) {
+                if (failure == null) {
+                    failure = exception;
+                    LOGGER.error("Sending to {} failed after all retries, stopping.", event.topic(), exception);
+                }
+            }
+            return;
+        }
+        droppedEvents.mark();
+        LOGGER.error("Dropping event for {} rejected by the sink.", event.topic(), exception);
+        if (inFlight != null) {
+            inFlight.done();
+        }
     }
 }
@@ -0,0 +1,157 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.DeletionTime;
+import org.apache.cassandra.db.LivenessInfo;
+import org.apache.cassandra.db.RangeTombstone;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.ColumnData;
+import org.apache.cassandra.db.rows.ComplexColumnData;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.utils.MurmurHash;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers 64-bit hashes of recently published events to recognize copies of the same event. An event is identified
+ * by its topic, its encoded value and the write timestamps and deletion times of its partition update, so copies of
+ * a write read from several replicas are recognized, while a later write with the same content is not. Hashes are
+ * kept in two generations of fixed size open addressing tables; the older one is dropped when the window passes or
+ * the newer one fills up, so an event is remembered for one to two windows and memory stays bounded.
+ */
+public class DedupCache {
+
+    private static final long EMPTY = 0;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final ThreadLocal<long[]> HASH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final long windowNanos;
+    private final int maxEntries;
+    private long[] current;
+    private long[] previous;
+    private int size;
+    private long rotated;
+
+    public DedupCache(Map<String, Object> configuration) {
+        windowNanos = ((Number) YamlUtils.select(configuration, "dedup.window_ms", 60000)).longValue() * 1000000L;
+        maxEntries = (Integer) YamlUtils.select(configuration, "dedup.max_entries", 1000000);
+        // Tables are kept at most half full.
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+        current = new long[capacity];
+        previous = new long[capacity];
+        rotated = System.nanoTime();
+    }
+
+    /**
+     * Records the event and returns whether an event with the same topic, value and write times was seen in the
+     * window. Write times are a hash of the update as returned by {@link #writeTimes(PartitionUpdate)}.
+     */
+    public boolean isDuplicate(String topic, long writeTimes, byte[] value) {
+        long[] hash = HASH.get();
+        MurmurHash.hash3_x64_128(ByteBuffer.wrap(value), 0, value.length, topic.hashCode() * MULTIPLIER + writeTimes,
+                hash);
+        // Zero marks empty slots.
+        long key = hash[0] == EMPTY ? 1 : hash[0];
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - rotated > windowNanos || size >= maxEntries) {
+                rotate(now);
+            }
+            if (contains(previous, key)) {
+                return true;
+            }
+            return !add(current, key);
+        }
+    }
+
+    private void rotate(long now) {
+        long[] dropped = previous;
+        previous = current;
+        Arrays.fill(dropped, EMPTY);
+        current = dropped;
+        size = 0;
+        rotated = now;
+    }
+
+    private static boolean contains(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = (int) mix(key) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the key, returns false if it was there already.
+     */
+    private boolean add(long[] table, long key) {
+        int mask = table.length - 1;
+        int i = (int) mix(key) & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return false;
+            }
+        }
+        table[i] = key;
+        size++;
+        return true;
+    }
+
+    /**
+     * Hashes timestamps, expiration and deletion times of everything the update writes or deletes. Replicas write
+     * the same times for the same write, while separate writes of equal content get different timestamps.
+     */
+    public static long writeTimes(PartitionUpdate update) {
+        long hash = fold(0, update.partitionLevelDeletion());
+        for (Iterator<RangeTombstone> tombstones = update.deletionInfo().rangeIterator(false);
+                tombstones.hasNext();) {
+            hash = fold(hash, tombstones.next().deletionTime());
+        }
+        hash = fold(hash, update.staticRow());
+        for (Row row : update) {
+            hash = fold(hash, row);
+        }
+        return hash;
+    }
+
+    private static long fold(long hash, Row row) {
+        LivenessInfo liveness = row.primaryKeyLivenessInfo();
+        hash = fold(hash, liveness.timestamp());
+        hash = fold(hash, liveness.localExpirationTime());
+        hash = fold(hash, row.deletion().time());
+        for (ColumnData data : row) {
+            if (data instanceof ComplexColumnData) {
+                ComplexColumnData complex = (ComplexColumnData) data;
+                hash = fold(hash, complex.complexDeletion());
+                for (Cell cell : complex) {
+                    hash = fold(hash, cell);
+                }
+            } else {
+                hash = fold(hash, (Cell) data);
+            }
+        }
+        return hash;
+    }
+
+    private static long fold(long hash, Cell cell) {
+        return fold(fold(hash, cell.timestamp()), cell.localDeletionTime());
+    }
+
+    private static long fold(long hash, DeletionTime deletion) {
+        return fold(fold(hash, deletion.markedForDeleteAt()), deletion.localDeletionTime());
+    }
+
+    private static long fold(long hash, long value) {
+        return (hash + value) * MULTIPLIER;
+    }
+
+    private static long mix(long key) {
+        return key ^ (key >>> 32);
+    }
+}
@@ -0,0 +1,51 @@
+package io.smartcat.cassandra.cdc;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Destination of encoded change events.
+ */
+public interface EventSink extends Closeable {
+
+    /**
+     * Sends the event. The callback gets null once the sink accepted the event for good, or the reason it failed.
+     */
+    void send(Event event, Consumer<Exception> callback);
+
+    class Event {
+        private final String keyspace;
+        private final String table;
+        private final String topic;
+        private final byte[] key;
+        private final byte[] value;
+
+        public Event(String keyspace, String table, String topic, byte[] key, byte[] value) {
+            this.keyspace = keyspace;
+            this.table = table;
+            this.topic = topic;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String keyspace() {
+            return keyspace;
+        }
+
+        public String table() {
+            return table;
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        public byte[] key() {
+            return key;
+        }
+
+        public byte[] value() {
+            return value;
+        }
+    }
+}
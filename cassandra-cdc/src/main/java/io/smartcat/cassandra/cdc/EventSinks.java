@@ -0,0 +1,72 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PartitionEncoders;
+import io.smartcat.cassandra.common.TokenRangePartitioner;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates the sink selected by {@code sink.type}: {@code kafka}, the default, or {@code files} writing into
+ * {@code sink.directory}, which only takes the json encoder.
+ */
+public final class EventSinks {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSinks.class);
+
+    public static final String KAFKA = "kafka";
+    public static final String FILES = "files";
+
+    static final int DEFAULT_RETRIES = 10;
+
+    private EventSinks() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static EventSink create(Map<String, Object> configuration) {
+        String type = (String) YamlUtils.select(configuration, "sink.type", KAFKA);
+        if (KAFKA.equals(type)) {
+            return new KafkaSink(new KafkaProducer<>(producerConfiguration(
+                    (Map<String, Object>) YamlUtils.select(configuration, "kafka.configuration"),
+                    (String) YamlUtils.select(configuration, "kafka.key_format")),
+                    new ByteArraySerializer(), new ByteArraySerializer()));
+        }
+        if (FILES.equals(type)) {
+            Object encoder = YamlUtils.select(configuration, "encoder", PartitionEncoders.JSON);
+            if (!PartitionEncoders.JSON.equals(encoder)) {
+                throw new IllegalArgumentException("The files sink writes newline-delimited JSON and needs the json "
+                        + "encoder, got " + encoder);
+            }
+            return new FileSink(Paths.get((String) YamlUtils.select(configuration, "sink.directory")));
+        }
+        throw new IllegalArgumentException("Unknown sink type: " + type);
+    }
+
+    /**
+     * Passes the key format on to the token range partitioner, which checks it, and lets the producer retry
+     * transient failures with a single request in flight per connection, so a retried record cannot be overtaken by
+     * a newer record of the same key.
+     */
+    static Map<String, Object> producerConfiguration(Map<String, Object> configuration, String keyFormat) {
+        Map<String, Object> producer = new HashMap<>(configuration);
+        Object partitioner = producer.get(ProducerConfig.PARTITIONER_CLASS_CONFIG);
+        if (partitioner != null && TokenRangePartitioner.class.getName().equals(partitioner.toString())) {
+            // The partitioner checks it was given token keys.
+            producer.put(TokenRangePartitioner.KEY_FORMAT_CONFIG, keyFormat);
+        }
+        producer.putIfAbsent(ProducerConfig.RETRIES_CONFIG, DEFAULT_RETRIES);
+        producer.putIfAbsent(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 1);
+        int retries = Integer.parseInt(producer.get(ProducerConfig.RETRIES_CONFIG).toString());
+        int inFlight = Integer.parseInt(producer.get(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION).toString());
+        if (retries > 0 && inFlight > 1) {
+            LOGGER.warn("Producer retries with more than one request in flight can reorder records of a key.");
+        }
+        return producer;
+    }
+}
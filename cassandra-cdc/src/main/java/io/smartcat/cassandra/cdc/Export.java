@@ -0,0 +1,145 @@
+package io.smartcat.cassandra.cdc;
+
+import com.codahale.metrics.Meter;
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports a directory of archived commitlog segments in one run, without Kafka by default. Segments are decoded on
+ * all available processors and captured partitions are written through the configured sink, by default gzip
+ * compressed newline-delimited JSON files per table in the output directory. Segments are left in place. Throughput
+ * is logged every 10 seconds and once all segments are exported.
+ */
+public class Export {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Export.class);
+
+    public static final int OK = 0;
+    public static final int USAGE = 1;
+    public static final int FAILED = 2;
+
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.export");
+    private final Meter mutations = metrics.meter("mutations");
+    private final Meter partitions = metrics.meter("partitions");
+    private final Meter encodedBytes = metrics.meter("encoded-bytes");
+    private final long start = System.nanoTime();
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the export with the command line arguments and returns the exit code: {@link #OK}, {@link #USAGE} for
+     * wrong arguments or {@link #FAILED} when the export failed or some segments, mutations or events could not be
+     * read, handled or written.
+     */
+    public static int run(String... args) {
+        if (args.length != 3) {
+            System.err.println("Usage: Export <path to configuration> <segments directory> <output directory>");
+            return USAGE;
+        }
+        Path segments = Paths.get(args[1]);
+        Path output = Paths.get(args[2]);
+        Export export = new Export();
+        try {
+            Map<String, Object> configuration = YamlUtils.load(args[0]);
+            section(configuration, "cassandra").put("cdc_raw_directory", segments.toString());
+            section(configuration, "reader").put("delete_segments", false);
+            section(section(configuration, "reader"), "checkpoint").put("file", output.resolve("export.checkpoint")
+                    .toString());
+            section(configuration, "sink").putIfAbsent("type", EventSinks.FILES);
+            section(configuration, "sink").putIfAbsent("directory", output.toString());
+            Files.createDirectories(output);
+            return export.export(configuration, segments);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Export of {} failed.", segments, e);
+            return FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Export of {} was interrupted.", segments);
+            return FAILED;
+        } finally {
+            export.metrics.close();
+        }
+    }
+
+    private int export(Map<String, Object> configuration, Path directory) throws IOException, InterruptedException {
+        DatabaseDescriptor.toolInitialization();
+        // Creates the sink, which rejects configurations it cannot write, before the schema is loaded.
+        CustomCommitLogReadHandler handler = new CustomCommitLogReadHandler(configuration, metrics);
+        SchemaProvider schemaProvider = new SchemaProvider(configuration, new RoutingTable(configuration).keyspaces());
+        schemaProvider.start();
+        CheckpointStore checkpointStore = new CheckpointStore(configuration);
+        SegmentProcessor segmentProcessor = new SegmentProcessor(configuration, handler, checkpointStore,
+                schemaProvider);
+
+        List<Path> segments = new ArrayList<>();
+        long bytes = 0;
+        try (DirectoryStream<Path> candidates = Files.newDirectoryStream(directory)) {
+            for (Path candidate : candidates) {
+                if (CommitLogDescriptor.isValid(candidate.getFileName().toString())) {
+                    segments.add(candidate);
+                    bytes += Files.size(candidate);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(Reader::segmentId));
+        LOGGER.info("Exporting {} segments, {} MB, from {}.", segments.size(), bytes >> 20, directory);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report("Exported"), 10, 10, TimeUnit.SECONDS);
+        for (Path segment : segments) {
+            segmentProcessor.submit(segment);
+        }
+        segmentProcessor.awaitIdle();
+        reporter.shutdown();
+        segmentProcessor.shutdown();
+        handler.close();
+        checkpointStore.close();
+
+        report("Finished export:");
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        LOGGER.info("Read {} segments at {} MB/s.", segments.size(), String.format("%.1f", (bytes >> 20) / seconds));
+        int code = OK;
+        long unread = segmentProcessor.failures();
+        if (unread > 0) {
+            LOGGER.error("{} segments or mutations could not be read or handled.", unread);
+            code = FAILED;
+        }
+        long failed = metrics.meter("failed-sends").getCount() + metrics.meter("dropped-events").getCount();
+        if (failed > 0) {
+            LOGGER.error("{} events could not be written.", failed);
+            code = FAILED;
+        }
+        return code;
+    }
+
+    private void report(String prefix) {
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        LOGGER.info("{} {} mutations and {} events, {} MB encoded, in {} s: {} mutations/s, {} events/s.", prefix,
+                mutations.getCount(), partitions.getCount(), encodedBytes.getCount() >> 20, (long) seconds,
+                (long) (mutations.getCount() / seconds), (long) (partitions.getCount() / seconds));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> section(Map<String, Object> configuration, String name) {
+        return (Map<String, Object>) configuration.computeIfAbsent(name, key -> new HashMap<>());
+    }
+}
@@ -0,0 +1,74 @@
+package io.smartcat.cassandra.cdc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes event values as gzip compressed lines into a directory per table, {@code <keyspace>.<table>}. Every
+ * thread writes its own file in each of them, so lanes never contend for a file and events of the same partition
+ * stay in order within one file. Values are written as they are, one per line, so it is only meant for the JSON
+ * encoder, whose values give newline-delimited JSON.
+ */
+public class FileSink implements EventSink {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final ConcurrentMap<String, OutputStream> files = new ConcurrentHashMap<>();
+
+    public FileSink(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void send(Event event, Consumer<Exception> callback) {
+        String table = event.keyspace() + '.' + event.table();
+        String file = table + "/part-" + Thread.currentThread().getId() + ".ndjson.gz";
+        try {
+            OutputStream out = files.computeIfAbsent(file, this::open);
+            out.write(event.value());
+            out.write('\n');
+        } catch (IOException | UncheckedIOException e) {
+            callback.accept(e);
+            return;
+        }
+        callback.accept(null);
+    }
+
+    /**
+     * Finishes all files, must not be called while events are still being sent.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (OutputStream out : files.values()) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private OutputStream open(String file) {
+        try {
+            Path path = directory.resolve(file);
+            Files.createDirectories(path.getParent());
+            return new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path), BUFFER_SIZE),
+                    BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.smartcat.cassandra.cdc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts records sent for a range of mutations but not acknowledged by Kafka yet. Ranges are chained and complete
+ * in the order they were created: the action of a range runs once it is sealed, all of its records are
+ * acknowledged and the previous range has completed.
+ */
+public class InFlight {
+
+    private final AtomicInteger pending;
+    private volatile Runnable action;
+    private volatile InFlight next;
+
+    /**
+     * Creates the first range of a chain.
+     */
+    public InFlight() {
+        this(1);
+    }
+
+    private InFlight(int pending) {
+        this.pending = new AtomicInteger(pending);
+    }
+
+    /**
+     * Registers a record which is about to be sent.
+     */
+    public void add() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Marks a registered record as acknowledged.
+     */
+    public void done() {
+        InFlight range = this;
+        while (range != null && range.pending.decrementAndGet() == 0) {
+            range.action.run();
+            range = range.next;
+        }
+    }
+
+    /**
+     * Closes the range for new records and returns the next range of the chain. The action runs once the range
+     * completes, which might be right away.
+     */
+    public InFlight seal(Runnable action) {
+        // Next range waits for being sealed and for this range to complete.
+        InFlight following = new InFlight(2);
+        this.action = action;
+        this.next = following;
+        done();
+        return following;
+    }
+}
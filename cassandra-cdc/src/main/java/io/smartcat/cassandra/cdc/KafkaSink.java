@@ -0,0 +1,41 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends events to the topic of their route, an event is accepted once Kafka acknowledged it.
+ */
+public class KafkaSink implements EventSink {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final Producer<byte[], byte[]> producer;
+
+    public KafkaSink(Producer<byte[], byte[]> producer) {
+        this.producer = producer;
+    }
+
+    @Override
+    public void send(Event event, Consumer<Exception> callback) {
+        try {
+            producer.send(new ProducerRecord<>(event.topic(), event.key(), event.value()),
+                    (metadata, exception) -> callback.accept(exception));
+        } catch (KafkaException e) {
+            callback.accept(e);
+        }
+    }
+
+    /**
+     * Waits for records still being sent, at most {@link #CLOSE_TIMEOUT_SECONDS} seconds, so an unreachable cluster
+     * does not keep a stopped reader from exiting. Records not sent by then fail.
+     */
+    @Override
+    public void close() {
+        producer.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
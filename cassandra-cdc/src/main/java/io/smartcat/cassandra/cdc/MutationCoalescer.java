@@ -0,0 +1,75 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.utils.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Buffers mutations of a lane and collapses mutations of the same partition into one, merged cell by cell with the
+ * newest timestamp winning. Every buffered mutation keeps its in-flight range open, so nothing it covers is
+ * checkpointed or deleted before the merged mutation is acknowledged. Not thread-safe, each lane has its own.
+ */
+public class MutationCoalescer {
+
+    private final long maxBytes;
+    private final Map<Pair<String, DecoratedKey>, Buffered> buffered = new LinkedHashMap<>();
+    private long bytes;
+
+    public MutationCoalescer(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEmpty() {
+        return buffered.isEmpty();
+    }
+
+    /**
+     * Buffers the mutation, returns true once buffered mutations exceed the memory budget and have to be flushed.
+     */
+    public boolean add(Mutation mutation, InFlight range) {
+        Pair<String, DecoratedKey> key = Pair.create(mutation.getKeyspaceName(), mutation.key());
+        buffered.computeIfAbsent(key, k -> new Buffered()).add(mutation, range);
+        for (PartitionUpdate update : mutation.getPartitionUpdates()) {
+            bytes += update.dataSize();
+        }
+        return bytes >= maxBytes;
+    }
+
+    /**
+     * Hands a merged mutation of every buffered partition to the handler, in the order partitions were first
+     * buffered, together with the oldest range it covers. Ranges of the buffered mutations are closed afterwards.
+     */
+    public void flush(BiConsumer<Mutation, InFlight> handler) {
+        try {
+            for (Buffered partition : buffered.values()) {
+                try {
+                    handler.accept(Mutation.merge(partition.mutations), partition.ranges.get(0));
+                } finally {
+                    for (InFlight range : partition.ranges) {
+                        range.done();
+                    }
+                }
+            }
+        } finally {
+            buffered.clear();
+            bytes = 0;
+        }
+    }
+
+    private static final class Buffered {
+        private final List<Mutation> mutations = new ArrayList<>(1);
+        private final List<InFlight> ranges = new ArrayList<>(1);
+
+        private void add(Mutation mutation, InFlight range) {
+            mutations.add(mutation);
+            ranges.add(range);
+        }
+    }
+}
@@ -1,55 +1,117 @@
 package io.smartcat.cassandra.cdc;
 
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import io.smartcat.cassandra.common.PipelineMetrics;
 import org.apache.cassandra.config.DatabaseDescriptor;
-import org.apache.cassandra.config.Schema;
-import org.apache.cassandra.db.commitlog.CommitLogReader;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 public class Reader {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(CustomCommitLogReadHandler.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reader.class);
+
+    private static final double SPACE_WARNING_RATIO = 0.9;
 
     private final WatchService watcher;
     private final Path dir;
     private final WatchKey key;
-    private final CommitLogReader commitLogReader;
-    private final CustomCommitLogReadHandler commitLogReadHander;
+    private final CheckpointStore checkpointStore;
+    private final SchemaProvider schemaProvider;
+    private final CustomCommitLogReadHandler handler;
+    private final SegmentProcessor segmentProcessor;
+    private final SegmentTailer segmentTailer;
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc");
+    private final CachedGauge<Backlog> backlog = new CachedGauge<Backlog>(1, TimeUnit.SECONDS) {
+        @Override
+        protected Backlog loadValue() {
+            return scanBacklog();
+        }
+    };
+    private final long spaceLimit;
+    private final boolean deleteSegments;
+    private CommitLogPosition checkpoint = CommitLogPosition.NONE;
+    private boolean spacePressure;
 
     /**
      * Creates a WatchService and registers the given directory
      */
     public Reader(Map<String, Object> configuration) throws IOException {
+        this(configuration, startSchemaProvider(configuration), EventSinks.create(configuration));
+    }
+
+    Reader(Map<String, Object> configuration, SchemaProvider schemaProvider, EventSink sink) throws IOException {
+        this.schemaProvider = schemaProvider;
         this.dir = Paths.get((String) YamlUtils.select(configuration, "cassandra.cdc_raw_directory"));
         watcher = FileSystems.getDefault().newWatchService();
         key = dir.register(watcher, ENTRY_CREATE);
-        commitLogReader = new CommitLogReader();
-        commitLogReadHander = new CustomCommitLogReadHandler(configuration);
-        DatabaseDescriptor.toolInitialization();
-        Schema.instance.loadFromDisk(false);
+        checkpointStore = new CheckpointStore(configuration);
+        handler = new CustomCommitLogReadHandler(configuration, metrics, sink);
+        segmentProcessor = new SegmentProcessor(configuration, handler, checkpointStore, schemaProvider);
+        int spaceInMb = (Integer) YamlUtils.select(configuration, "cassandra.cdc_total_space_in_mb",
+                DatabaseDescriptor.getCDCSpaceInMB());
+        spaceLimit = spaceInMb * 1024L * 1024L;
+        deleteSegments = (Boolean) YamlUtils.select(configuration, "reader.delete_segments", true);
+        registerBacklogGauges();
+        if ((Boolean) YamlUtils.select(configuration, "reader.tail.enabled", false)) {
+            Path commitLogDirectory = Paths.get((String) YamlUtils.select(configuration,
+                    "cassandra.commitlog_directory", DatabaseDescriptor.getCommitLogLocation()));
+            int interval = (Integer) YamlUtils.select(configuration, "reader.tail.interval_ms", 100);
+            segmentTailer = new SegmentTailer(commitLogDirectory, dir, segmentProcessor, interval);
+        } else {
+            segmentTailer = null;
+        }
     }
 
     /**
-     * Process all events for keys queued to the watcher
+     * Process all events for keys queued to the watcher, until a segment cannot be decoded or a send fails. Every
+     * thread of the reader is stopped before the failure is thrown.
      *
      * @throws InterruptedException
      * @throws IOException
      */
     public void processEvents() throws InterruptedException, IOException {
+        try {
+            watch();
+        } finally {
+            close();
+        }
+    }
+
+    private void watch() throws InterruptedException, IOException {
+        start();
         while (true) {
-            WatchKey aKey = watcher.take();
+            segmentProcessor.checkFailure();
+            WatchKey aKey = watcher.poll(1, TimeUnit.SECONDS);
+            if (aKey == null) {
+                continue;
+            }
             if (!key.equals(aKey)) {
                 LOGGER.error("WatchKey not recognized.");
                 continue;
             }
+            List<Path> segments = new ArrayList<>();
+            boolean overflow = false;
             for (WatchEvent<?> event : key.pollEvents()) {
                 WatchEvent.Kind<?> kind = event.kind();
+                if (kind == OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
                 if (kind != ENTRY_CREATE) {
                     continue;
                 }
@@ -57,25 +119,199 @@ public class Reader {
                 // Context for directory entry event is the file name of entry
                 WatchEvent<Path> ev = (WatchEvent<Path>) event;
                 Path relativePath = ev.context();
-                Path absolutePath = dir.resolve(relativePath);
-                processCommitLogSegment(absolutePath);
-                Files.delete(absolutePath);
-
-                // print out event
-                LOGGER.debug("{}: {}", event.kind().name(), absolutePath);
+                if (!CommitLogDescriptor.isValid(relativePath.toString())) {
+                    continue;
+                }
+                segments.add(dir.resolve(relativePath));
             }
             key.reset();
+            if (overflow) {
+                LOGGER.warn("Missed events on {}, scanning it for segments.", dir);
+                scheduleBacklog();
+            } else {
+                schedule(segments);
+            }
+            checkSpace();
         }
     }
 
-    public static void main(String[] args) throws IOException, InterruptedException {
+    public static void main(String[] args) throws IOException {
         Map<String, Object> configuration = YamlUtils.load(args[0]);
-        new Reader(configuration).processEvents();
+        try {
+            new Reader(configuration).processEvents();
+        } catch (InterruptedException | RuntimeException e) {
+            LOGGER.error("Reader stopped.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Loads the checkpoint, schedules the segments already in cdc_raw and starts tailing live segments.
+     */
+    void start() throws IOException, InterruptedException {
+        checkpoint = checkpointStore.load();
+        scheduleBacklog();
+        if (segmentTailer != null) {
+            segmentTailer.start(checkpoint);
+        }
+    }
+
+    /**
+     * Waits until every submitted segment was processed.
+     */
+    void awaitIdle() throws InterruptedException {
+        segmentProcessor.awaitIdle();
+    }
+
+    private static SchemaProvider startSchemaProvider(Map<String, Object> configuration) {
+        DatabaseDescriptor.toolInitialization();
+        SchemaProvider schemaProvider = new SchemaProvider(configuration, new RoutingTable(configuration).keyspaces());
+        schemaProvider.start();
+        return schemaProvider;
+    }
+
+    /**
+     * Stops tailing, waits for the segments being processed, stops checking for schema changes and closes the sink,
+     * the checkpoint and the watcher, so no thread of the reader keeps the process running.
+     */
+    void close() {
+        try {
+            if (segmentTailer != null) {
+                segmentTailer.shutdown();
+            }
+            segmentProcessor.shutdown();
+            schemaProvider.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            handler.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close the sink.", e);
+        }
+        try {
+            checkpointStore.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to flush the checkpoint.", e);
+        }
+        metrics.close();
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close the watcher of {}.", dir, e);
+        }
     }
 
-    private void processCommitLogSegment(Path path) throws IOException {
-        LOGGER.debug("Processing commitlog segment...");
-        commitLogReader.readCommitLogSegment(commitLogReadHander, path.toFile(), false);
-        LOGGER.debug("Commitlog segment processed.");
+    /**
+     * Schedules every segment present in cdc_raw. Segments the last checkpoint covers were processed before the
+     * reader stopped and are only deleted, unless segments are kept, the segment being read when it stopped
+     * continues after the checkpoint.
+     */
+    void scheduleBacklog() throws IOException, InterruptedException {
+        // Segments processed since the start are still there when they are kept.
+        checkpoint = checkpointStore.position();
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> candidates = Files.newDirectoryStream(dir)) {
+            for (Path candidate : candidates) {
+                if (CommitLogDescriptor.isValid(candidate.getFileName().toString())) {
+                    segments.add(candidate);
+                }
+            }
+        }
+        LOGGER.info("Found {} segments in {}.", segments.size(), dir);
+        schedule(segments);
+    }
+
+    /**
+     * Submits the segments in commitlog order. Submitting blocks while all workers are busy, so a backlog is
+     * read by all of them.
+     */
+    private void schedule(List<Path> segments) throws InterruptedException {
+        segments.sort(Comparator.comparingLong(Reader::segmentId));
+        for (Path segment : segments) {
+            long id = segmentId(segment);
+            if (id < checkpoint.segmentId
+                    || (id == checkpoint.segmentId && checkpoint.position == Integer.MAX_VALUE)) {
+                if (deleteSegments) {
+                    deleteProcessed(segment);
+                }
+            } else if (id == checkpoint.segmentId) {
+                if (segmentProcessor.submit(segment, checkpoint)) {
+                    LOGGER.info("Resuming commitlog segment {} from checkpoint {}.", segment, checkpoint);
+                }
+            } else if (Files.exists(segment)) {
+                segmentProcessor.submit(segment);
+            }
+        }
+    }
+
+    private void deleteProcessed(Path segment) {
+        try {
+            if (Files.deleteIfExists(segment)) {
+                LOGGER.info("Deleted commitlog segment {} processed before checkpoint {}.", segment, checkpoint);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete commitlog segment {}.", segment, e);
+        }
+    }
+
+    /**
+     * Warns once cdc_raw gets close to the space limit, at which Cassandra starts rejecting writes to CDC tables.
+     */
+    private void checkSpace() {
+        boolean pressure = backlog.getValue().bytes > SPACE_WARNING_RATIO * spaceLimit;
+        if (pressure && !spacePressure) {
+            LOGGER.warn("Segments in {} take more than {}% of cdc_total_space_in_mb.", dir,
+                    (int) (SPACE_WARNING_RATIO * 100));
+        }
+        spacePressure = pressure;
+    }
+
+    /**
+     * Registers count, size and age of the oldest segment waiting in cdc_raw, and how much of the CDC space limit
+     * they take. The directory is scanned only when the gauges are read, at most once per second.
+     */
+    private void registerBacklogGauges() {
+        metrics.register("backlog-segments", (Gauge<Long>) () -> backlog.getValue().count);
+        metrics.register("backlog-bytes", (Gauge<Long>) () -> backlog.getValue().bytes);
+        metrics.register("backlog-age-ms", (Gauge<Long>) () -> backlog.getValue().age());
+        metrics.register("cdc-space-limit-bytes", (Gauge<Long>) () -> spaceLimit);
+        metrics.register("cdc-space-usage", (Gauge<Double>) () -> (double) backlog.getValue().bytes / spaceLimit);
+    }
+
+    private Backlog scanBacklog() {
+        Backlog backlog = new Backlog();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir)) {
+            for (Path segment : segments) {
+                if (!CommitLogDescriptor.isValid(segment.getFileName().toString())) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(segment, BasicFileAttributes.class);
+                    backlog.oldest = Math.min(backlog.oldest, attributes.lastModifiedTime().toMillis());
+                    backlog.bytes += attributes.size();
+                    backlog.count++;
+                } catch (NoSuchFileException e) {
+                    // Processed and deleted in the meantime.
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to scan {} for backlog.", dir, e);
+        }
+        return backlog;
+    }
+
+    static long segmentId(Path segment) {
+        return CommitLogDescriptor.fromFileName(segment.getFileName().toString()).id;
+    }
+
+    private static final class Backlog {
+        private long count;
+        private long bytes;
+        private long oldest = Long.MAX_VALUE;
+
+        private long age() {
+            return count == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+        }
     }
 }
@@ -0,0 +1,134 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether this node is the primary replica of a partition, the node owning the first token at or after
+ * the partition's token. It uses a token ring snapshot of a cluster with Murmur3Partitioner from a local file,
+ * which maps node addresses to their tokens and is reloaded when the file changes:
+ *
+ * <pre>
+ * 10.0.0.1: [-9223372036854775808, -3074457345618258603]
+ * 10.0.0.2: [3074457345618258602]
+ * </pre>
+ */
+public class ReplicaFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaFilter.class);
+
+    private final Path ringFile;
+    private final String address;
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor();
+    private volatile Ring ring;
+    private long loadedModified = -1;
+
+    public ReplicaFilter(Map<String, Object> configuration) {
+        ringFile = Paths.get((String) YamlUtils.select(configuration, "dedup.ring"));
+        address = (String) YamlUtils.select(configuration, "dedup.address");
+        if (address == null) {
+            throw new IllegalArgumentException("Primary replica deduplication needs dedup.address of this node.");
+        }
+        reload();
+        reloader.scheduleWithFixedDelay(this::reload, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns whether a ring snapshot is loaded. Without it no partition can be assigned to a replica.
+     */
+    public boolean hasRing() {
+        return ring != null;
+    }
+
+    public boolean isPrimary(DecoratedKey key) {
+        Ring current = ring;
+        if (current == null) {
+            return true;
+        }
+        long token = (Long) key.getToken().getTokenValue();
+        int index = Arrays.binarySearch(current.tokens, token);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Tokens after the last one wrap around to the first node of the ring.
+        return current.local[index == current.tokens.length ? 0 : index];
+    }
+
+    /**
+     * Stops reloading the ring snapshot.
+     */
+    public void shutdown() {
+        reloader.shutdown();
+    }
+
+    synchronized void reload() {
+        try {
+            if (!Files.exists(ringFile)) {
+                if (ring != null || loadedModified == -1) {
+                    LOGGER.warn("Token ring snapshot {} not found.", ringFile);
+                }
+                ring = null;
+                loadedModified = 0;
+                return;
+            }
+            long modified = Files.getLastModifiedTime(ringFile).toMillis();
+            if (modified == loadedModified) {
+                return;
+            }
+            ring = parse(YamlUtils.load(ringFile.toString()));
+            loadedModified = modified;
+            LOGGER.info("Loaded token ring snapshot {} with {} tokens.", ringFile, ring.tokens.length);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to load token ring snapshot {}, keeping the previous one.", ringFile, e);
+        }
+    }
+
+    private Ring parse(Map<String, Object> snapshot) {
+        List<long[]> entries = new ArrayList<>();
+        boolean found = false;
+        for (Map.Entry<String, Object> node : snapshot.entrySet()) {
+            boolean local = address.equals(node.getKey());
+            found |= local;
+            for (Object token : (List<?>) node.getValue()) {
+                entries.add(new long[] {Long.parseLong(token.toString()), local ? 1 : 0});
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("Token ring snapshot has no tokens.");
+        }
+        if (!found) {
+            LOGGER.warn("Address {} has no tokens in the ring snapshot, nothing will be published.", address);
+        }
+        entries.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] tokens = new long[entries.size()];
+        boolean[] local = new boolean[entries.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = entries.get(i)[0];
+            local[i] = entries.get(i)[1] == 1;
+        }
+        return new Ring(tokens, local);
+    }
+
+    private static final class Ring {
+        private final long[] tokens;
+        private final boolean[] local;
+
+        private Ring(long[] tokens, boolean[] local) {
+            this.tokens = tokens;
+            this.local = local;
+        }
+    }
+}
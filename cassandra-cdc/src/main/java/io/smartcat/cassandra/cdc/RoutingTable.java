@@ -0,0 +1,100 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps captured tables to their topic and projected columns. Routes are configured by keyspace and table name and
+ * resolved by table id on first use, so every following lookup, including the one rejecting a table which is not
+ * captured, is a single hash lookup.
+ */
+public class RoutingTable {
+
+    private static final Route NOT_CAPTURED = new Route(null, null);
+
+    private final Map<String, Route> routesByName = new HashMap<>();
+    private final Set<String> keyspaces = new HashSet<>();
+    private final ConcurrentMap<UUID, Route> routesById = new ConcurrentHashMap<>();
+
+    /**
+     * Reads routes from the {@code cassandra.tables} list, or the single {@code cassandra.keyspace},
+     * {@code cassandra.table} and {@code kafka.topic} when there is no list.
+     */
+    @SuppressWarnings("unchecked")
+    public RoutingTable(Map<String, Object> configuration) {
+        List<Map<String, Object>> tables = (List<Map<String, Object>>) YamlUtils.select(configuration,
+                "cassandra.tables");
+        if (tables == null) {
+            add((String) YamlUtils.select(configuration, "cassandra.keyspace"),
+                    (String) YamlUtils.select(configuration, "cassandra.table"),
+                    (String) YamlUtils.select(configuration, "kafka.topic"), null);
+            return;
+        }
+        for (Map<String, Object> table : tables) {
+            add((String) table.get("keyspace"), (String) table.get("table"), (String) table.get("topic"),
+                    (List<String>) table.get("columns"));
+        }
+    }
+
+    /**
+     * Returns the route of the table, or null if the table is not captured.
+     */
+    public Route route(CFMetaData metadata) {
+        Route route = routesById.get(metadata.cfId);
+        if (route == null) {
+            route = routesByName.getOrDefault(name(metadata.ksName, metadata.cfName), NOT_CAPTURED);
+            routesById.put(metadata.cfId, route);
+        }
+        return route == NOT_CAPTURED ? null : route;
+    }
+
+    /**
+     * Returns names of keyspaces with captured tables.
+     */
+    public Set<String> keyspaces() {
+        return Collections.unmodifiableSet(keyspaces);
+    }
+
+    private void add(String keyspace, String table, String topic, List<String> columns) {
+        if (keyspace == null || table == null || topic == null) {
+            throw new IllegalArgumentException("Captured table needs keyspace, table and topic.");
+        }
+        Set<String> projection = columns == null ? null : Collections.unmodifiableSet(new HashSet<>(columns));
+        routesByName.put(name(keyspace, table), new Route(topic, projection));
+        keyspaces.add(keyspace);
+    }
+
+    private static String name(String keyspace, String table) {
+        return keyspace + '.' + table;
+    }
+
+    public static class Route {
+        private final String topic;
+        private final Set<String> columns;
+
+        private Route(String topic, Set<String> columns) {
+            this.topic = topic;
+            this.columns = columns;
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        /**
+         * Returns names of the captured regular and static columns, or null when all of them are captured.
+         */
+        public Set<String> columns() {
+            return columns;
+        }
+    }
+}
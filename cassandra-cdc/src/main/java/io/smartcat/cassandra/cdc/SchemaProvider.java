@@ -0,0 +1,313 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.config.SchemaConstants;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Directories;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.lifecycle.Tracker;
+import org.apache.cassandra.db.lifecycle.View;
+import org.apache.cassandra.io.sstable.Component;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.format.SSTableReader;
+import org.apache.cassandra.schema.KeyspaceMetadata;
+import org.apache.cassandra.schema.Keyspaces;
+import org.apache.cassandra.schema.SchemaKeyspace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads schema of the captured keyspaces only, instead of the whole schema of the cluster, and keeps it up to date.
+ * Cassandra flushes system_schema tables on every schema change, so new sstables of those tables mean the schema
+ * changed. They are checked for periodically and whenever a segment holds mutations the loaded schema cannot
+ * decode. New sstables are opened next to the ones already open, without touching files of the running node, and
+ * captured keyspaces are read again. Sstables are never compacted by the provider, the ones the node compacted away
+ * are released. Mutations of other keyspaces are skipped by the commitlog reader before their content is
+ * deserialized.
+ * <p>
+ * Reading single keyspaces relies on a lookup Cassandra keeps private. It is checked once when the provider is
+ * created, and when the running Cassandra version does not have it, the whole non-system schema is read through
+ * the public API and filtered instead. Releasing sstables relies on private lookups as well, without them sstables
+ * which are gone stay open.
+ */
+public class SchemaProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaProvider.class);
+
+    private static final Method FETCH_KEYSPACES_ONLY = fetchKeyspacesOnly();
+    private static final Method UPDATE_LIVE_SET = privateMethod(View.class, "updateLiveSet", Set.class,
+            Iterable.class);
+    private static final Method APPLY_TO_VIEW = privateMethod(Tracker.class, "apply",
+            com.google.common.base.Function.class);
+
+    private final Set<String> keyspaces;
+    private final int refreshMs;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+    // Ids of tables found not to be captured by a refresh, forgotten once the schema changes.
+    private final Set<UUID> uncaptured = ConcurrentHashMap.newKeySet();
+
+    public SchemaProvider(Map<String, Object> configuration, Set<String> keyspaces) {
+        this.keyspaces = new HashSet<>(keyspaces);
+        this.refreshMs = (Integer) YamlUtils.select(configuration, "cassandra.schema.refresh_ms", 10000);
+    }
+
+    /**
+     * Loads the captured keyspaces and starts checking for schema changes.
+     */
+    public void start() {
+        long start = System.nanoTime();
+        synchronized (this) {
+            syncAll();
+            apply(fetch());
+        }
+        LOGGER.info("Loaded schema of keyspaces {} in {} ms.", keyspaces,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds keyspaces to the captured ones and loads their schema, including changes not refreshed yet.
+     */
+    public synchronized void capture(Set<String> added) {
+        if (keyspaces.addAll(added)) {
+            syncAll();
+            apply(fetch());
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        refresher.shutdown();
+        refresher.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Reloads the captured keyspaces if schema sstables changed since the last check. Returns true if the schema
+     * of any of them changed.
+     */
+    public synchronized boolean refresh() throws IOException {
+        int opened = syncAll();
+        if (opened == 0) {
+            return false;
+        }
+        LOGGER.debug("Opened {} new schema sstables.", opened);
+        if (!apply(fetch())) {
+            return false;
+        }
+        uncaptured.clear();
+        return true;
+    }
+
+    /**
+     * Refreshes the schema for mutations of tables the loaded schema does not know. Mutations of keyspaces which
+     * are not captured are never known, so a refresh is only attempted for tables which were not already found to
+     * be outside of the captured keyspaces. Returns true if the schema of any captured keyspace changed.
+     */
+    public synchronized boolean refresh(Set<UUID> unknownTables) throws IOException {
+        if (uncaptured.containsAll(unknownTables)) {
+            return false;
+        }
+        boolean changed = refresh();
+        for (UUID id : unknownTables) {
+            if (Schema.instance.getCFMetaData(id) == null) {
+                uncaptured.add(id);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Syncs sstables of all schema tables. Returns the number of sstables opened.
+     */
+    private int syncAll() {
+        int opened = 0;
+        for (ColumnFamilyStore table : Keyspace.open(SchemaConstants.SCHEMA_KEYSPACE_NAME).getColumnFamilyStores()) {
+            opened += sync(table);
+        }
+        return opened;
+    }
+
+    /**
+     * Opens sstables of the table which were written since the last call and releases the ones which are gone.
+     * Cassandra may compact an sstable away between listing and opening it, such sstables are skipped. Returns the
+     * number of sstables opened.
+     */
+    int sync(ColumnFamilyStore table) {
+        Set<Descriptor> present = new HashSet<>();
+        for (Map.Entry<Descriptor, Set<Component>> sstable : table.getDirectories()
+                .sstableLister(Directories.OnTxnErr.IGNORE).skipTemporary(true).list().entrySet()) {
+            if (sstable.getValue().contains(Component.DATA)) {
+                present.add(sstable.getKey());
+            }
+        }
+        Set<Descriptor> loaded = new HashSet<>();
+        Set<SSTableReader> gone = new HashSet<>();
+        for (SSTableReader sstable : table.getLiveSSTables()) {
+            loaded.add(sstable.descriptor);
+            if (!present.contains(sstable.descriptor)) {
+                gone.add(sstable);
+            }
+        }
+        List<SSTableReader> added = new ArrayList<>();
+        for (Descriptor descriptor : present) {
+            if (loaded.contains(descriptor)) {
+                continue;
+            }
+            try {
+                added.add(SSTableReader.open(descriptor));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Skipping sstable {} which could not be opened, it was probably compacted away.",
+                        descriptor, e);
+            }
+        }
+        if (!added.isEmpty()) {
+            // Added sstables are offered to the compaction strategy, which would compact the node's files and hold
+            // them so they could not be released. Compacting them is left to the node.
+            if (!table.isAutoCompactionDisabled()) {
+                table.disableAutoCompaction();
+            }
+            table.addSSTables(added);
+        }
+        if (!gone.isEmpty()) {
+            release(table, gone);
+        }
+        return added.size();
+    }
+
+    /**
+     * Takes the sstables out of the live set of the table, without deleting their files, and releases them once
+     * reads still using them are done.
+     */
+    private static void release(ColumnFamilyStore table, Set<SSTableReader> sstables) {
+        if (UPDATE_LIVE_SET == null || APPLY_TO_VIEW == null) {
+            return;
+        }
+        try {
+            APPLY_TO_VIEW.invoke(table.getTracker(), UPDATE_LIVE_SET.invoke(null, sstables, Collections.emptyList()));
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.error("Unable to release sstables {} of {}.", sstables, table.name, e);
+            return;
+        }
+        for (SSTableReader sstable : sstables) {
+            sstable.selfRef().release();
+        }
+        LOGGER.debug("Released {} schema sstables which are gone.", sstables.size());
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to refresh schema.", e);
+        }
+    }
+
+    private Keyspaces fetch() {
+        if (FETCH_KEYSPACES_ONLY == null) {
+            return SchemaKeyspace.fetchNonSystemKeyspaces().filter(keyspace -> keyspaces.contains(keyspace.name));
+        }
+        try {
+            return (Keyspaces) FETCH_KEYSPACES_ONLY.invoke(null, keyspaces);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to read schema of keyspaces " + keyspaces, e.getCause());
+        }
+    }
+
+    /**
+     * Looks up the method Cassandra uses to reload keyspaces affected by a schema change, or returns null if this
+     * Cassandra version has no such method with the expected signature.
+     */
+    private static Method fetchKeyspacesOnly() {
+        try {
+            Method method = SchemaKeyspace.class.getDeclaredMethod("fetchKeyspacesOnly", Set.class);
+            if (!Modifier.isStatic(method.getModifiers()) || method.getReturnType() != Keyspaces.class) {
+                throw new NoSuchMethodException("Unexpected signature of " + method);
+            }
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException | RuntimeException e) {
+            LOGGER.warn("Unable to read single keyspaces with SchemaKeyspace.fetchKeyspacesOnly of this Cassandra "
+                    + "version, reading the whole schema instead.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Looks up a method Cassandra keeps package-private, or returns null if this Cassandra version has no such method.
+     */
+    private static Method privateMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException | RuntimeException e) {
+            LOGGER.warn("Unable to find {}.{} of this Cassandra version, schema sstables which are gone stay open.",
+                    type.getSimpleName(), name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces metadata of changed keyspaces, registering ids of new tables and dropping ids of removed ones.
+     */
+    private boolean apply(Keyspaces fetched) {
+        boolean changed = false;
+        Set<String> present = new HashSet<>();
+        for (KeyspaceMetadata keyspace : fetched) {
+            present.add(keyspace.name);
+            KeyspaceMetadata current = Schema.instance.getKSMetaData(keyspace.name);
+            if (keyspace.equals(current)) {
+                continue;
+            }
+            if (current != null) {
+                for (CFMetaData table : current.tablesAndViews()) {
+                    if (keyspace.getTableOrViewNullable(table.cfName) == null) {
+                        Schema.instance.unload(table);
+                    }
+                }
+            }
+            for (CFMetaData table : keyspace.tablesAndViews()) {
+                UUID id = Schema.instance.getId(table.ksName, table.cfName);
+                if (id != null && !id.equals(table.cfId)) {
+                    // Dropped and created again under the same name.
+                    Schema.instance.unload(table);
+                    id = null;
+                }
+                if (id == null) {
+                    Schema.instance.load(table);
+                }
+            }
+            Schema.instance.setKeyspaceMetadata(keyspace);
+            LOGGER.info("Schema of keyspace {} {}.", keyspace.name, current == null ? "loaded" : "changed");
+            changed = true;
+        }
+        for (String name : keyspaces) {
+            KeyspaceMetadata current = Schema.instance.getKSMetaData(name);
+            if (current != null && !present.contains(name)) {
+                current.tablesAndViews().forEach(Schema.instance::unload);
+                Schema.instance.clearKeyspaceMetadata(current);
+                LOGGER.info("Keyspace {} dropped.", name);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
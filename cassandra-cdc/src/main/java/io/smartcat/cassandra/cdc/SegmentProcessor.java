@@ -0,0 +1,430 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.cassandra.db.commitlog.CommitLogReadHandler;
+import org.apache.cassandra.db.commitlog.CommitLogReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes commit log segments on a pool of worker threads and hands the decoded mutations over to the
+ * handler through single threaded lanes. Mutations are assigned to a lane by their partition key and
+ * segments are dispatched in submission order, so mutations for the same partition key are always
+ * delivered in commit log order. Once Kafka has acknowledged every record of the mutations up to a position,
+ * that position is recorded in the {@link CheckpointStore}, and once it has acknowledged every record of a
+ * segment, the segment is deleted. Waiting for acknowledgements does not hold back decoding of next segments.
+ * Once a segment cannot be decoded, neither the checkpoint nor deletion move past it, and the reader stops.
+ * Segments Cassandra is still writing to can be tailed, in which case reading of their copy in cdc_raw continues
+ * after the last mutation tailed. Lanes can coalesce mutations of the same partition within a time window.
+ */
+public class SegmentProcessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentProcessor.class);
+
+    private final CustomCommitLogReadHandler handler;
+    private final CheckpointStore checkpointStore;
+    private final SchemaProvider schemaProvider;
+    private final int checkpointMutations;
+    private final boolean deleteSegments;
+    private final int maxSegmentsInFlight;
+    private final ExecutorService decoders;
+    private final ExecutorService dispatcher;
+    private final ScheduledExecutorService[] lanes;
+    private final MutationCoalescer[] coalescers;
+    private final long coalesceWindowMs;
+    private final Semaphore segmentsInFlight;
+    private final Set<Long> submitted = ConcurrentHashMap.newKeySet();
+    // Position of the last mutation read from each live segment being tailed.
+    private final Map<Long, Integer> tailed = new ConcurrentHashMap<>();
+    // Range of the mutations being dispatched, only touched by the dispatcher thread.
+    private InFlight inFlight = new InFlight();
+    // First segment which could not be decoded, nothing after it is checkpointed or deleted.
+    private volatile Exception failure;
+    // Segments which could not be read completely and mutations the handler failed on.
+    private final AtomicLong failures = new AtomicLong();
+
+    public SegmentProcessor(Map<String, Object> configuration, CustomCommitLogReadHandler handler,
+            CheckpointStore checkpointStore) {
+        this(configuration, handler, checkpointStore, null);
+    }
+
+    /**
+     * Creates a processor which decodes a segment again when it holds mutations of tables the loaded schema does not
+     * know yet and the schema provider finds schema changes.
+     */
+    public SegmentProcessor(Map<String, Object> configuration, CustomCommitLogReadHandler handler,
+            CheckpointStore checkpointStore, SchemaProvider schemaProvider) {
+        int workers = (Integer) YamlUtils.select(configuration, "reader.workers",
+                Runtime.getRuntime().availableProcessors());
+        this.handler = handler;
+        this.checkpointStore = checkpointStore;
+        this.schemaProvider = schemaProvider;
+        this.checkpointMutations = (Integer) YamlUtils.select(configuration, "reader.checkpoint.mutations", 1000);
+        this.deleteSegments = (Boolean) YamlUtils.select(configuration, "reader.delete_segments", true);
+        this.decoders = Executors.newFixedThreadPool(workers);
+        this.dispatcher = Executors.newSingleThreadExecutor();
+        this.lanes = new ScheduledExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = Executors.newSingleThreadScheduledExecutor();
+        }
+        this.coalesceWindowMs = ((Number) YamlUtils.select(configuration, "reader.coalesce.window_ms", 0)).longValue();
+        if (coalesceWindowMs > 0) {
+            long maxBytes = (Integer) YamlUtils.select(configuration, "reader.coalesce.max_mb", 64) * 1024L * 1024L;
+            this.coalescers = new MutationCoalescer[workers];
+            for (int i = 0; i < workers; i++) {
+                coalescers[i] = new MutationCoalescer(maxBytes / workers);
+            }
+        } else {
+            this.coalescers = null;
+        }
+        // Decoded segments are held in memory until Kafka has acknowledged them.
+        this.maxSegmentsInFlight = 2 * workers;
+        this.segmentsInFlight = new Semaphore(maxSegmentsInFlight);
+    }
+
+    /**
+     * Schedules the given segment for decoding. Segments have to be submitted in commit log order.
+     * Blocks while too many segments are decoded but not yet delivered. Returns false if the segment
+     * is already being processed.
+     */
+    public boolean submit(Path segment) throws InterruptedException {
+        return submit(segment, CommitLogPosition.NONE);
+    }
+
+    /**
+     * Schedules the given segment for decoding, skipping mutations up to and including the given position.
+     */
+    public boolean submit(Path segment, CommitLogPosition from) throws InterruptedException {
+        long segmentId = Reader.segmentId(segment);
+        if (!submitted.add(segmentId)) {
+            return false;
+        }
+        try {
+            acquire(1);
+        } catch (InterruptedException | RuntimeException e) {
+            submitted.remove(segmentId);
+            throw e;
+        }
+        synchronized (this) {
+            Integer tailedPosition = tailed.remove(segmentId);
+            CommitLogPosition tailedTo = new CommitLogPosition(segmentId, tailedPosition == null ? 0 : tailedPosition);
+            CommitLogPosition start = tailedPosition != null && tailedTo.compareTo(from) > 0 ? tailedTo : from;
+            Future<DecodedSegment> decoded = decoders.submit(() -> decode(segment, start, false));
+            dispatcher.execute(() -> dispatch(segment, decoded));
+        }
+        return true;
+    }
+
+    /**
+     * Starts tailing the given live segment, from the given position if it belongs to the segment.
+     */
+    public void startTailing(long segmentId, CommitLogPosition from) {
+        tailed.putIfAbsent(segmentId, from.segmentId == segmentId ? from.position : 0);
+    }
+
+    public void stopTailing(long segmentId) {
+        tailed.remove(segmentId);
+    }
+
+    /**
+     * Reads mutations synced to the live segment since it was last tailed and dispatches them right away. Does
+     * nothing once the segment was submitted from cdc_raw. The position of the last mutation is checkpointed
+     * only when asked to, which must not happen while an older segment is still being tailed.
+     */
+    public synchronized void tail(Path segment, boolean checkpoint) throws IOException {
+        long segmentId = Reader.segmentId(segment);
+        Integer position = tailed.get(segmentId);
+        if (position == null || submitted.contains(segmentId)) {
+            return;
+        }
+        DecodedSegment decoded = decode(segment, new CommitLogPosition(segmentId, position), true);
+        if (decoded.mutations.isEmpty()) {
+            return;
+        }
+        tailed.put(segmentId, decoded.mutations.get(decoded.mutations.size() - 1).entryLocation);
+        dispatcher.execute(() -> dispatchTail(decoded, checkpoint));
+    }
+
+    /**
+     * Waits until every submitted segment was processed and all of its records were acknowledged.
+     */
+    public void awaitIdle() throws InterruptedException {
+        acquire(maxSegmentsInFlight);
+        segmentsInFlight.release(maxSegmentsInFlight);
+    }
+
+    /**
+     * Throws if a segment could not be decoded, or if the handler stopped because a send failed, see
+     * {@link CustomCommitLogReadHandler#checkFailure()}. The checkpoint stays before the segment which failed, so a
+     * restarted reader reads it again.
+     */
+    public void checkFailure() {
+        Exception exception = failure;
+        if (exception != null) {
+            throw new IllegalStateException("A commitlog segment could not be decoded, restart the reader to read it "
+                    + "again from the last checkpoint.", exception);
+        }
+        handler.checkFailure();
+    }
+
+    /**
+     * Returns the number of segments which could not be decoded or were only partly read, and of mutations the
+     * handler failed on. Their events are missing from the output.
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Waits for the given number of segments to be released. Segments are never released once a send failed, so
+     * the wait ends with the failure instead. Segments which could not be decoded are released.
+     */
+    private void acquire(int segments) throws InterruptedException {
+        while (!segmentsInFlight.tryAcquire(segments, 1, TimeUnit.SECONDS)) {
+            handler.checkFailure();
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        decoders.shutdown();
+        decoders.awaitTermination(1, TimeUnit.MINUTES);
+        dispatcher.shutdown();
+        dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+        for (ScheduledExecutorService lane : lanes) {
+            lane.shutdown();
+            lane.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private DecodedSegment decode(Path segment, CommitLogPosition from, boolean live) throws IOException {
+        LOGGER.debug("Decoding commitlog segment {} from {}...", segment, from);
+        DecodedSegment decoded = new DecodedSegment(handler);
+        CommitLogReader reader = new CommitLogReader();
+        reader.readCommitLogSegment(decoded, segment.toFile(), from, CommitLogReader.ALL_MUTATIONS, live);
+        if (schemaProvider != null && refreshSchema(decoded, reader)) {
+            LOGGER.info("Schema changed, decoding commitlog segment {} again.", segment);
+            decoded = new DecodedSegment(handler);
+            new CommitLogReader().readCommitLogSegment(decoded, segment.toFile(), from, CommitLogReader.ALL_MUTATIONS,
+                    live);
+        }
+        if (decoded.skipped) {
+            failures.incrementAndGet();
+        }
+        LOGGER.debug("Decoded {} mutations from commitlog segment {}.", decoded.mutations.size(), segment);
+        return decoded;
+    }
+
+    /**
+     * Refreshes the schema when the segment could not be read or holds mutations of unknown tables. Tables of other
+     * keyspaces are unknown as well, so they only cause a refresh the first time they show up. Returns true if the
+     * schema changed.
+     */
+    private boolean refreshSchema(DecodedSegment decoded, CommitLogReader reader) throws IOException {
+        if (decoded.skipped) {
+            return schemaProvider.refresh();
+        }
+        Set<Map.Entry<UUID, AtomicInteger>> invalid = reader.getInvalidMutations();
+        if (invalid.isEmpty()) {
+            return false;
+        }
+        Set<UUID> unknownTables = new HashSet<>();
+        for (Map.Entry<UUID, AtomicInteger> table : invalid) {
+            unknownTables.add(table.getKey());
+        }
+        return schemaProvider.refresh(unknownTables);
+    }
+
+    private void dispatch(Path segment, Future<DecodedSegment> decoded) {
+        DecodedSegment mutations;
+        try {
+            mutations = decoded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed(segment, e);
+            return;
+        } catch (ExecutionException e) {
+            failed(segment, e.getCause());
+            return;
+        }
+        deliverAll(mutations, true);
+        long segmentId = Reader.segmentId(segment);
+        inFlight = inFlight.seal(() -> {
+            checkpoint(new CommitLogPosition(segmentId, Integer.MAX_VALUE));
+            complete(segment);
+        });
+    }
+
+    /**
+     * Records a segment which could not be decoded. Ranges complete in order, so every checkpoint and deletion of a
+     * later segment runs after the failure was recorded and is skipped, while the segments are still released.
+     */
+    private void failed(Path segment, Throwable cause) {
+        LOGGER.error("Unable to decode commitlog segment {}.", segment, cause);
+        failures.incrementAndGet();
+        if (failure == null) {
+            failure = new IOException("Unable to decode commitlog segment " + segment, cause);
+        }
+        inFlight = inFlight.seal(() -> release(segment));
+    }
+
+    private void dispatchTail(DecodedSegment mutations, boolean checkpoint) {
+        DecodedMutation last = deliverAll(mutations, checkpoint);
+        if (checkpoint) {
+            CommitLogPosition position = new CommitLogPosition(mutations.descriptor.id, last.entryLocation);
+            inFlight = inFlight.seal(() -> checkpoint(position));
+        }
+    }
+
+    private void checkpoint(CommitLogPosition position) {
+        if (failure == null) {
+            checkpointStore.update(position);
+        }
+    }
+
+    /**
+     * Hands the mutations over to their lanes, checkpointing every checkpointMutations mutations if asked to.
+     * Returns the last mutation.
+     */
+    private DecodedMutation deliverAll(DecodedSegment mutations, boolean checkpoint) {
+        DecodedMutation last = null;
+        int sinceCheckpoint = 0;
+        for (DecodedMutation mutation : mutations.mutations) {
+            InFlight range = inFlight;
+            range.add();
+            int lane = laneFor(mutation.mutation);
+            lanes[lane].execute(() -> deliver(mutation, mutations.descriptor, range, lane));
+            if (checkpoint && ++sinceCheckpoint == checkpointMutations) {
+                CommitLogPosition position = new CommitLogPosition(mutations.descriptor.id, mutation.entryLocation);
+                inFlight = inFlight.seal(() -> checkpoint(position));
+                sinceCheckpoint = 0;
+            }
+            last = mutation;
+        }
+        return last;
+    }
+
+    private void deliver(DecodedMutation mutation, CommitLogDescriptor descriptor, InFlight range, int lane) {
+        if (coalescers != null) {
+            coalesce(mutation.mutation, range, lane);
+            return;
+        }
+        try {
+            handler.handleMutation(mutation.mutation, range);
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            LOGGER.error("Unable to handle mutation at {} in {}.", mutation.entryLocation, descriptor.fileName(), e);
+        } finally {
+            range.done();
+        }
+    }
+
+    /**
+     * Buffers the mutation on its lane, which is flushed once the window since the first buffered mutation passes
+     * or the lane's memory budget is exceeded.
+     */
+    private void coalesce(Mutation mutation, InFlight range, int lane) {
+        MutationCoalescer coalescer = coalescers[lane];
+        if (coalescer.isEmpty()) {
+            lanes[lane].schedule(() -> flush(lane), coalesceWindowMs, TimeUnit.MILLISECONDS);
+        }
+        if (coalescer.add(mutation, range)) {
+            flush(lane);
+        }
+    }
+
+    private void flush(int lane) {
+        coalescers[lane].flush((mutation, range) -> {
+            try {
+                handler.handleMutation(mutation, range);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                LOGGER.error("Unable to handle coalesced mutation of partition {}.", mutation.key(), e);
+            }
+        });
+    }
+
+    private void complete(Path segment) {
+        try {
+            if (deleteSegments && failure == null) {
+                Files.delete(segment);
+            }
+            LOGGER.debug("Commitlog segment {} processed.", segment);
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete commitlog segment {}.", segment, e);
+        } finally {
+            release(segment);
+        }
+    }
+
+    private void release(Path segment) {
+        submitted.remove(Reader.segmentId(segment));
+        segmentsInFlight.release();
+    }
+
+    private int laneFor(Mutation mutation) {
+        return (mutation.key().hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private static class DecodedMutation {
+        private final Mutation mutation;
+        private final int entryLocation;
+
+        private DecodedMutation(Mutation mutation, int entryLocation) {
+            this.mutation = mutation;
+            this.entryLocation = entryLocation;
+        }
+    }
+
+    /**
+     * Collects the mutations of a single segment, error handling is delegated to the actual handler.
+     */
+    private static class DecodedSegment implements CommitLogReadHandler {
+        private final CommitLogReadHandler handler;
+        private final List<DecodedMutation> mutations = new ArrayList<>();
+        private CommitLogDescriptor descriptor;
+        private boolean skipped;
+
+        private DecodedSegment(CommitLogReadHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleMutation(Mutation mutation, int size, int entryLocation, CommitLogDescriptor descriptor) {
+            this.descriptor = descriptor;
+            mutations.add(new DecodedMutation(mutation, entryLocation));
+        }
+
+        @Override
+        public void handleUnrecoverableError(CommitLogReadException exception) throws IOException {
+            handler.handleUnrecoverableError(exception);
+        }
+
+        @Override
+        public boolean shouldSkipSegmentOnError(CommitLogReadException exception) throws IOException {
+            skipped = true;
+            return handler.shouldSkipSegmentOnError(exception);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.apache.cassandra.utils.FBUtilities.updateChecksumInt;
+
+/**
+ * Reads mutations from the segments Cassandra is still writing to in its commitlog directory, as soon as they are
+ * synced, instead of waiting for the segments to be moved to cdc_raw after memtables are flushed. Live segments are
+ * memory-mapped and their sync markers are followed from the last one seen, so only segments which were synced
+ * since the previous poll are read, starting after the last mutation read from them.
+ * <p>
+ * Once a segment disappears from the commitlog directory, its copy in cdc_raw, if there is one, is submitted and
+ * read only after the last tailed mutation. Positions are checkpointed only for the oldest live segment, so a
+ * restarted reader never skips a segment that was not tailed to the end.
+ */
+public class SegmentTailer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentTailer.class);
+
+    private static final int SYNC_MARKER_SIZE = 2 * Integer.BYTES;
+
+    private final Path commitLogDirectory;
+    private final Path cdcRawDirectory;
+    private final SegmentProcessor segmentProcessor;
+    private final int intervalMs;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+    private final TreeMap<Long, LiveSegment> segments = new TreeMap<>();
+    private CommitLogPosition start = CommitLogPosition.NONE;
+
+    public SegmentTailer(Path commitLogDirectory, Path cdcRawDirectory, SegmentProcessor segmentProcessor,
+            int intervalMs) {
+        this.commitLogDirectory = commitLogDirectory;
+        this.cdcRawDirectory = cdcRawDirectory;
+        this.segmentProcessor = segmentProcessor;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Starts polling live segments, skipping mutations up to and including the given checkpoint.
+     */
+    public void start(CommitLogPosition checkpoint) {
+        start = checkpoint;
+        LOGGER.info("Tailing commitlog segments in {} every {} ms.", commitLogDirectory, intervalMs);
+        poller.scheduleWithFixedDelay(this::poll, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() throws InterruptedException {
+        poller.shutdown();
+        poller.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    void poll() {
+        try {
+            Set<Long> live = scan();
+            Iterator<Map.Entry<Long, LiveSegment>> tracked = segments.entrySet().iterator();
+            while (tracked.hasNext()) {
+                Map.Entry<Long, LiveSegment> entry = tracked.next();
+                if (!live.contains(entry.getKey())) {
+                    handOver(entry.getValue());
+                    tracked.remove();
+                }
+            }
+            for (LiveSegment segment : segments.values()) {
+                if (segment.synced()) {
+                    segmentProcessor.tail(segment.path, segment.id == segments.firstKey());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to tail commitlog segments in {}.", commitLogDirectory, e);
+        }
+    }
+
+    /**
+     * Starts tracking segments which appeared since the last poll and returns ids of all segments present.
+     */
+    private Set<Long> scan() throws IOException {
+        Set<Long> live = new HashSet<>();
+        try (DirectoryStream<Path> candidates = Files.newDirectoryStream(commitLogDirectory)) {
+            for (Path candidate : candidates) {
+                if (!CommitLogDescriptor.isValid(candidate.getFileName().toString())) {
+                    continue;
+                }
+                long id = Reader.segmentId(candidate);
+                if (id < start.segmentId) {
+                    continue;
+                }
+                live.add(id);
+                if (!segments.containsKey(id)) {
+                    segments.put(id, new LiveSegment(candidate, id));
+                    segmentProcessor.startTailing(id, start);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Hands a segment which left the commitlog directory over to the segment processor. Cassandra either moved it
+     * to cdc_raw or deleted it because it held no mutations of CDC tables.
+     */
+    private void handOver(LiveSegment segment) throws InterruptedException {
+        Path moved = cdcRawDirectory.resolve(segment.path.getFileName());
+        if (Files.exists(moved)) {
+            segmentProcessor.submit(moved);
+        } else {
+            segmentProcessor.stopTailing(segment.id);
+        }
+    }
+
+    private static final class LiveSegment {
+        private final Path path;
+        private final long id;
+        private MappedByteBuffer buffer;
+        // Offset of the first sync marker not seen yet.
+        private int marker = -1;
+
+        private LiveSegment(Path path, long id) {
+            this.path = path;
+            this.id = id;
+        }
+
+        /**
+         * Follows sync markers written since the last call and returns whether there were any.
+         */
+        private boolean synced() throws IOException {
+            long size = Files.size(path);
+            if (buffer == null || size > buffer.capacity()) {
+                // Compressed segments grow with every sync, the others are preallocated.
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+            if (marker < 0) {
+                marker = firstMarker();
+                if (marker < 0) {
+                    return false;
+                }
+            }
+            boolean synced = false;
+            while (marker <= buffer.capacity() - SYNC_MARKER_SIZE) {
+                int next = buffer.getInt(marker);
+                if (next <= marker || buffer.getInt(marker + Integer.BYTES) != checksum(marker)) {
+                    break;
+                }
+                marker = next;
+                synced = true;
+            }
+            return synced;
+        }
+
+        /**
+         * Returns the offset right after the descriptor header, or -1 if the header was not written yet.
+         */
+        private int firstMarker() {
+            int headerSize = Integer.BYTES + Long.BYTES + Short.BYTES + Integer.BYTES;
+            if (buffer.capacity() < headerSize || buffer.getLong(Integer.BYTES) != id) {
+                return -1;
+            }
+            return headerSize + (buffer.getShort(Integer.BYTES + Long.BYTES) & 0xFFFF);
+        }
+
+        private int checksum(int position) {
+            CRC32 crc = new CRC32();
+            updateChecksumInt(crc, (int) (id & 0xFFFFFFFFL));
+            updateChecksumInt(crc, (int) (id >>> 32));
+            updateChecksumInt(crc, position);
+            return (int) crc.getValue();
+        }
+    }
+}
@@ -39,8 +39,13 @@ public class YamlUtils {
         return extractPathRecursive(configuration, pathComponents);
     }
 
+    public static Object select(Map<String, Object> configuration, String path, Object defaultValue) {
+        Object value = select(configuration, path);
+        return value == null ? defaultValue : value;
+    }
+
     private static Object extractPathRecursive(Object input, List<Object> path) {
-        if (path.isEmpty()) {
+        if (path.isEmpty() || input == null) {
             return input;
         } else {
             Object obj;
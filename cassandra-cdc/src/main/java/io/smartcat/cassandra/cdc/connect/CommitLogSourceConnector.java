@@ -0,0 +1,106 @@
+package io.smartcat.cassandra.cdc.connect;
+
+import io.smartcat.cassandra.common.LargeValuePolicy;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.connect.connector.Task;
+import org.apache.kafka.connect.source.SourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kafka Connect source connector which publishes changes read from Cassandra CDC commitlog segments.
+ * Segments are striped over tasks by their id, so every segment is read and deleted by exactly one task.
+ * <p>
+ * Tasks read their segments independently of each other, so with more than one task, changes of a key written into
+ * consecutive segments can reach Kafka out of order. Records of a single segment keep commitlog order.
+ */
+public class CommitLogSourceConnector extends SourceConnector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitLogSourceConnector.class);
+
+    public static final String VERSION = "0.0.1-SNAPSHOT";
+
+    public static final String CDC_RAW_DIRECTORY = "cdc_raw_directory";
+    public static final String KEYSPACE = "keyspace";
+    public static final String TABLE = "table";
+    public static final String TOPIC = "topic";
+    public static final String ENCODER = "encoder";
+    public static final String KEY_FORMAT = "key.format";
+    public static final String LARGE_VALUE_POLICY = "large.value.policy";
+    public static final String LARGE_VALUE_THRESHOLD_BYTES = "large.value.threshold.bytes";
+    public static final String LARGE_VALUE_DIRECTORY = "large.value.directory";
+    public static final String POLL_INTERVAL_MS = "poll.interval.ms";
+    public static final String BATCH_SIZE = "batch.size";
+
+    static final String STRIPE = "stripe";
+    static final String STRIPES = "stripes";
+
+    static final ConfigDef CONFIG_DEF = new ConfigDef()
+            .define(CDC_RAW_DIRECTORY, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH,
+                    "Cassandra cdc_raw directory to read commitlog segments from.")
+            .define(KEYSPACE, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "Keyspace of the captured table.")
+            .define(TABLE, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "Captured table.")
+            .define(TOPIC, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "Topic changes are published to.")
+            .define(ENCODER, ConfigDef.Type.STRING, "json", ConfigDef.Importance.MEDIUM,
+                    "Encoder of record values: json, avro or class name of a custom encoder.")
+            .define(KEY_FORMAT, ConfigDef.Type.STRING, "string", ConfigDef.Importance.MEDIUM,
+                    "Format of record keys: string, or token for Murmur3 token followed by serialized partition key.")
+            .define(LARGE_VALUE_POLICY, ConfigDef.Type.STRING, "none", ConfigDef.Importance.MEDIUM,
+                    "What happens to values above the threshold: none, truncate, hash or offload.")
+            .define(LARGE_VALUE_THRESHOLD_BYTES, ConfigDef.Type.INT, LargeValuePolicy.DEFAULT_THRESHOLD_BYTES,
+                    ConfigDef.Importance.LOW, "Size above which a value is large.")
+            .define(LARGE_VALUE_DIRECTORY, ConfigDef.Type.STRING, null, ConfigDef.Importance.LOW,
+                    "Directory large values are offloaded to.")
+            .define(POLL_INTERVAL_MS, ConfigDef.Type.LONG, 1000L, ConfigDef.Importance.LOW,
+                    "Time to wait for new segments when there is nothing to read.")
+            .define(BATCH_SIZE, ConfigDef.Type.INT, 1000, ConfigDef.Importance.LOW,
+                    "Maximum number of records returned by a single poll.");
+
+    private Map<String, String> properties;
+
+    @Override
+    public String version() {
+        return VERSION;
+    }
+
+    @Override
+    public void start(Map<String, String> properties) {
+        CONFIG_DEF.parse(properties);
+        this.properties = properties;
+    }
+
+    @Override
+    public Class<? extends Task> taskClass() {
+        return CommitLogSourceTask.class;
+    }
+
+    @Override
+    public List<Map<String, String>> taskConfigs(int maxTasks) {
+        if (maxTasks > 1) {
+            LOGGER.warn("Reading segments with {} tasks, changes of a key in consecutive segments can be published out "
+                    + "of order.", maxTasks);
+        }
+        List<Map<String, String>> configs = new ArrayList<>(maxTasks);
+        for (int i = 0; i < maxTasks; i++) {
+            Map<String, String> config = new HashMap<>(properties);
+            config.put(STRIPE, Integer.toString(i));
+            config.put(STRIPES, Integer.toString(maxTasks));
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public ConfigDef config() {
+        return CONFIG_DEF;
+    }
+}
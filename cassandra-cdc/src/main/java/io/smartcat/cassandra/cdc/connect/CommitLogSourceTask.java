@@ -0,0 +1,481 @@
+package io.smartcat.cassandra.cdc.connect;
+
+import io.smartcat.cassandra.cdc.RoutingTable;
+import io.smartcat.cassandra.cdc.SchemaProvider;
+import io.smartcat.cassandra.common.KeyFormat;
+import io.smartcat.cassandra.common.LargeValuePolicy;
+import io.smartcat.cassandra.common.PartitionEncoder;
+import io.smartcat.cassandra.common.PartitionEncoders;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.cassandra.db.commitlog.CommitLogReadHandler;
+import org.apache.cassandra.db.commitlog.CommitLogReader;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the commitlog segments of one stripe, reporting segment id and entry position of every record as its
+ * source offset. A segment is deleted once it was read completely and all of its records were acknowledged.
+ * Segments are read by a thread of the task, which hands records over to {@link #poll()} and waits once
+ * {@code batch.size} records are not polled yet, so a segment is never held in memory as a whole. Tables are
+ * routed and schema is loaded like in the standalone reader, by {@link RoutingTable} and {@link SchemaProvider}.
+ * <p>
+ * Offsets are stored per directory and stripe, together with the number of stripes they were written with. When the
+ * number of tasks changes, a task resumes every segment it now owns from the offset of the stripe that owned it
+ * before, so committed offsets survive re-striping.
+ */
+public class CommitLogSourceTask extends SourceTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitLogSourceTask.class);
+
+    static final String SEGMENT_ID = "segment_id";
+    static final String POSITION = "position";
+    static final String STRIPES = "stripes";
+
+    // Handed over by the reading thread besides records: end of a segment, nothing left to read, and stopped.
+    private static final Object SEGMENT_END = new Object();
+    private static final Object IDLE = new Object();
+    private static final Object STOPPED = new Object();
+    private static final long STOP_CHECK_MS = 100;
+
+    // Schema is loaded once per worker and shared by its tasks, which may capture different keyspaces.
+    private static SchemaProvider sharedSchemaProvider;
+    private static int sharedSchemaUsers;
+
+    private final Map<Long, SegmentState> segments = new ConcurrentHashMap<>();
+    private final BlockingQueue<Object> handedOver = new LinkedBlockingQueue<>();
+    // Records handed over but not polled yet are limited to the batch size.
+    private Semaphore unpolled;
+    private Thread reader;
+    private volatile RuntimeException failure;
+
+    private SchemaProvider schemaProvider;
+    private final boolean sharedSchema;
+    private RoutingTable routingTable;
+    private PartitionEncoder encoder;
+    private KeyFormat keyFormat;
+    private Path directory;
+    private long pollInterval;
+    private int batchSize;
+    private int stripe;
+    private int stripes;
+    private Map<String, Object> sourcePartition;
+    private CommitLogPosition position;
+    // Offsets of the stripes segments belonged to before the number of stripes changed, or null.
+    private Map<Integer, CommitLogPosition> restriped;
+    private int previousStripes;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public CommitLogSourceTask() {
+        sharedSchema = true;
+    }
+
+    CommitLogSourceTask(SchemaProvider schemaProvider) {
+        this.schemaProvider = schemaProvider;
+        sharedSchema = false;
+    }
+
+    @Override
+    public String version() {
+        return CommitLogSourceConnector.VERSION;
+    }
+
+    @Override
+    public void start(Map<String, String> properties) {
+        Map<String, Object> config = new ConfigDef(CommitLogSourceConnector.CONFIG_DEF)
+                .define(CommitLogSourceConnector.STRIPE, ConfigDef.Type.INT, ConfigDef.Importance.HIGH, "Task stripe.")
+                .define(CommitLogSourceConnector.STRIPES, ConfigDef.Type.INT, ConfigDef.Importance.HIGH,
+                        "Number of stripes.")
+                .parse(properties);
+        directory = Paths.get((String) config.get(CommitLogSourceConnector.CDC_RAW_DIRECTORY));
+        Map<String, Object> configuration = configuration(config);
+        routingTable = new RoutingTable(configuration);
+        encoder = PartitionEncoders.create((String) config.get(CommitLogSourceConnector.ENCODER),
+                LargeValuePolicy.create((String) config.get(CommitLogSourceConnector.LARGE_VALUE_POLICY),
+                        (Integer) config.get(CommitLogSourceConnector.LARGE_VALUE_THRESHOLD_BYTES),
+                        (String) config.get(CommitLogSourceConnector.LARGE_VALUE_DIRECTORY)));
+        keyFormat = KeyFormat.of((String) config.get(CommitLogSourceConnector.KEY_FORMAT));
+        pollInterval = (Long) config.get(CommitLogSourceConnector.POLL_INTERVAL_MS);
+        batchSize = (Integer) config.get(CommitLogSourceConnector.BATCH_SIZE);
+        stripe = (Integer) config.get(CommitLogSourceConnector.STRIPE);
+        stripes = (Integer) config.get(CommitLogSourceConnector.STRIPES);
+
+        sourcePartition = sourcePartition(directory, stripe);
+        Map<String, Object> offset = context.offsetStorageReader().offset(sourcePartition);
+        int offsetStripes = offset == null ? 0 : ((Number) offset.get(STRIPES)).intValue();
+        if (offsetStripes == stripes) {
+            position = position(offset);
+        } else {
+            position = CommitLogPosition.NONE;
+            restripe(offset == null ? context.offsetStorageReader().offset(sourcePartition(directory, 0)) : offset);
+        }
+        LOGGER.info("Task for stripe {} of {} starting from {}.", stripe, stripes, position);
+        if (sharedSchema) {
+            schemaProvider = acquireSchema(configuration, routingTable.keyspaces());
+        }
+        unpolled = new Semaphore(batchSize);
+        reader = new Thread(this::readSegments, "commitlog-source-" + stripe);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Builds the reader configuration of the captured table out of connector properties.
+     */
+    private static Map<String, Object> configuration(Map<String, Object> config) {
+        Map<String, Object> cassandra = new HashMap<>();
+        cassandra.put("keyspace", config.get(CommitLogSourceConnector.KEYSPACE));
+        cassandra.put("table", config.get(CommitLogSourceConnector.TABLE));
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("cassandra", cassandra);
+        configuration.put("kafka", Collections.singletonMap("topic", config.get(CommitLogSourceConnector.TOPIC)));
+        return configuration;
+    }
+
+    /**
+     * Loads offsets of all stripes of the previous striping, found in the given offset of any of them.
+     */
+    private void restripe(Map<String, Object> offset) {
+        if (offset == null || ((Number) offset.get(STRIPES)).intValue() == stripes) {
+            return;
+        }
+        previousStripes = ((Number) offset.get(STRIPES)).intValue();
+        List<Map<String, Object>> partitions = new ArrayList<>(previousStripes);
+        for (int i = 0; i < previousStripes; i++) {
+            partitions.add(sourcePartition(directory, i));
+        }
+        restriped = new HashMap<>();
+        for (Map.Entry<Map<String, Object>, Map<String, Object>> entry
+                : context.offsetStorageReader().offsets(partitions).entrySet()) {
+            if (entry.getValue() != null) {
+                restriped.put(((Number) entry.getKey().get(CommitLogSourceConnector.STRIPE)).intValue(),
+                        position(entry.getValue()));
+            }
+        }
+        LOGGER.info("Stripe {} of {} resumes segments from offsets of {} previous stripes: {}", stripe, stripes,
+                previousStripes, restriped);
+    }
+
+    static Map<String, Object> sourcePartition(Path directory, int stripe) {
+        Map<String, Object> partition = new HashMap<>();
+        partition.put(CommitLogSourceConnector.CDC_RAW_DIRECTORY, directory.toString());
+        partition.put(CommitLogSourceConnector.STRIPE, stripe);
+        return partition;
+    }
+
+    private static CommitLogPosition position(Map<String, Object> offset) {
+        return new CommitLogPosition(((Number) offset.get(SEGMENT_ID)).longValue(),
+                ((Number) offset.get(POSITION)).intValue());
+    }
+
+    /**
+     * Returns records once the batch is full or the segment they belong to was read to its end, or null once the
+     * reading thread found nothing left to read.
+     */
+    @Override
+    public List<SourceRecord> poll() throws InterruptedException {
+        List<SourceRecord> batch = new ArrayList<>();
+        while (batch.size() < batchSize) {
+            Object next = handedOver.take();
+            if (next instanceof SourceRecord) {
+                unpolled.release();
+                batch.add((SourceRecord) next);
+            } else if (next == STOPPED) {
+                // Left for polls which may still follow.
+                handedOver.add(STOPPED);
+                if (failure != null) {
+                    throw failure;
+                }
+                break;
+            } else if (next == IDLE || !batch.isEmpty()) {
+                break;
+            }
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    @Override
+    public void commitRecord(SourceRecord record) throws InterruptedException {
+        long segmentId = (Long) record.sourceOffset().get(SEGMENT_ID);
+        SegmentState state = segments.get(segmentId);
+        if (state != null && state.pending.decrementAndGet() == 0) {
+            delete(segmentId, state);
+        }
+    }
+
+    /**
+     * Stops the reading thread, which may be waiting for records to be polled, and wakes up a waiting poll. The
+     * thread is not interrupted, which would close the segment file it reads.
+     */
+    @Override
+    public void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+        stopped.countDown();
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sharedSchema) {
+            releaseSchema();
+        }
+    }
+
+    private void readSegments() {
+        try {
+            while (stopped.getCount() > 0) {
+                Path segment = nextSegment();
+                if (segment == null) {
+                    handedOver.add(IDLE);
+                    stopped.await(pollInterval, TimeUnit.MILLISECONDS);
+                } else {
+                    read(segment);
+                    handedOver.add(SEGMENT_END);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            if (stopped.getCount() > 0) {
+                LOGGER.error("Unable to read commitlog segments of stripe {}.", stripe, e);
+                failure = e;
+            }
+        } finally {
+            handedOver.add(STOPPED);
+        }
+    }
+
+    /**
+     * Reads the segment and hands its records over to poll. Schema changes flushed before the segment is read are
+     * picked up first. Mutations of tables created while it was read are not known to the schema then, and are read
+     * once more after the schema was refreshed.
+     */
+    private void read(Path segment) {
+        long segmentId = segmentId(segment);
+        CommitLogPosition from = resumeFrom(segmentId);
+        SegmentState state = new SegmentState(segment);
+        segments.put(segmentId, state);
+        try {
+            schemaProvider.refresh();
+            CommitLogReader commitLogReader = new CommitLogReader();
+            commitLogReader.readCommitLogSegment(new RecordCollector(state, null), segment.toFile(), from,
+                    CommitLogReader.ALL_MUTATIONS, false);
+            Set<UUID> unknownTables = new HashSet<>();
+            for (Map.Entry<UUID, AtomicInteger> invalid : commitLogReader.getInvalidMutations()) {
+                unknownTables.add(invalid.getKey());
+            }
+            if (!unknownTables.isEmpty() && schemaProvider.refresh(unknownTables)) {
+                LOGGER.info("Schema changed, reading mutations of new tables in commitlog segment {} again.",
+                        segment);
+                new CommitLogReader().readCommitLogSegment(new RecordCollector(state, unknownTables),
+                        segment.toFile(), from, CommitLogReader.ALL_MUTATIONS, false);
+            }
+        } catch (IOException e) {
+            throw new ConnectException("Unable to read commitlog segment " + segment, e);
+        } catch (Stopped e) {
+            return;
+        }
+        LOGGER.debug("Read commitlog segment {}.", segment);
+        position = new CommitLogPosition(segmentId, Integer.MAX_VALUE);
+        // Releases the hold of the read itself.
+        if (state.pending.decrementAndGet() == 0) {
+            delete(segmentId, state);
+        }
+    }
+
+    private void delete(long segmentId, SegmentState state) {
+        if (segments.remove(segmentId, state)) {
+            try {
+                Files.deleteIfExists(state.path);
+                LOGGER.debug("Commitlog segment {} processed.", state.path);
+            } catch (IOException e) {
+                LOGGER.error("Unable to delete commitlog segment {}.", state.path, e);
+            }
+        }
+    }
+
+    /**
+     * Finds the oldest segment of this stripe which was not read yet.
+     */
+    private Path nextSegment() {
+        Path next = null;
+        long nextId = Long.MAX_VALUE;
+        try (DirectoryStream<Path> candidates = Files.newDirectoryStream(directory)) {
+            for (Path candidate : candidates) {
+                if (!CommitLogDescriptor.isValid(candidate.getFileName().toString())) {
+                    continue;
+                }
+                long id = segmentId(candidate);
+                boolean owned = Math.floorMod(id, (long) stripes) == stripe;
+                if (owned && id < nextId && resumeFrom(id) != null) {
+                    next = candidate;
+                    nextId = id;
+                }
+            }
+        } catch (IOException e) {
+            throw new ConnectException("Unable to list " + directory, e);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the position to read the segment from, or null if it was read completely already. Segments after the
+     * last one read by this task since re-striping are resumed from the offset of their previous stripe.
+     */
+    private CommitLogPosition resumeFrom(long segmentId) {
+        CommitLogPosition committed = position;
+        if (restriped != null && segmentId > position.segmentId) {
+            committed = restriped.getOrDefault(Math.floorMod(segmentId, previousStripes), CommitLogPosition.NONE);
+        }
+        if (segmentId < committed.segmentId
+                || (segmentId == committed.segmentId && committed.position == Integer.MAX_VALUE)) {
+            return null;
+        }
+        return segmentId == committed.segmentId ? committed : CommitLogPosition.NONE;
+    }
+
+    private static long segmentId(Path segment) {
+        return CommitLogDescriptor.fromFileName(segment.getFileName().toString()).id;
+    }
+
+    private static synchronized SchemaProvider acquireSchema(Map<String, Object> configuration,
+            Set<String> keyspaces) {
+        if (sharedSchemaProvider == null) {
+            DatabaseDescriptor.toolInitialization();
+            sharedSchemaProvider = new SchemaProvider(configuration, keyspaces);
+            sharedSchemaProvider.start();
+        } else {
+            sharedSchemaProvider.capture(keyspaces);
+        }
+        sharedSchemaUsers++;
+        return sharedSchemaProvider;
+    }
+
+    private static synchronized void releaseSchema() {
+        if (--sharedSchemaUsers > 0) {
+            return;
+        }
+        try {
+            sharedSchemaProvider.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sharedSchemaProvider = null;
+    }
+
+    private static class SegmentState {
+        private final Path path;
+        // Records not acknowledged yet, plus one while the segment is being read.
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private SegmentState(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Thrown out of the commitlog reader when the task stops while waiting for records to be polled.
+     */
+    private static class Stopped extends RuntimeException {
+    }
+
+    private class RecordCollector implements CommitLogReadHandler {
+        private final SegmentState state;
+        // Tables to collect records of, or null for all captured tables.
+        private final Set<UUID> tables;
+
+        private RecordCollector(SegmentState state, Set<UUID> tables) {
+            this.state = state;
+            this.tables = tables;
+        }
+
+        @Override
+        public void handleMutation(Mutation mutation, int size, int entryLocation, CommitLogDescriptor descriptor) {
+            Map<String, Object> sourceOffset = null;
+            for (PartitionUpdate partition : mutation.getPartitionUpdates()) {
+                RoutingTable.Route route = routingTable.route(partition.metadata());
+                if (route == null || (tables != null && !tables.contains(partition.metadata().cfId))) {
+                    continue;
+                }
+                if (sourceOffset == null) {
+                    sourceOffset = new HashMap<>();
+                    sourceOffset.put(SEGMENT_ID, descriptor.id);
+                    sourceOffset.put(POSITION, entryLocation);
+                    sourceOffset.put(STRIPES, stripes);
+                }
+                byte[] value = encoder.encode(partition, route.columns());
+                SourceRecord record;
+                if (keyFormat == KeyFormat.STRING) {
+                    String key = partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey());
+                    record = new SourceRecord(sourcePartition, sourceOffset, route.topic(), null,
+                            org.apache.kafka.connect.data.Schema.STRING_SCHEMA, key,
+                            org.apache.kafka.connect.data.Schema.BYTES_SCHEMA, value);
+                } else {
+                    record = new SourceRecord(sourcePartition, sourceOffset, route.topic(), null,
+                            org.apache.kafka.connect.data.Schema.BYTES_SCHEMA, keyFormat.serialize(partition),
+                            org.apache.kafka.connect.data.Schema.BYTES_SCHEMA, value);
+                }
+                handOver(record);
+            }
+        }
+
+        private void handOver(SourceRecord record) {
+            try {
+                while (!unpolled.tryAcquire(STOP_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    if (stopped.getCount() == 0) {
+                        throw new Stopped();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Stopped();
+            }
+            state.pending.incrementAndGet();
+            handedOver.add(record);
+        }
+
+        @Override
+        public void handleUnrecoverableError(CommitLogReadException exception) throws IOException {
+            throw new ConnectException(exception);
+        }
+
+        @Override
+        public boolean shouldSkipSegmentOnError(CommitLogReadException exception) throws IOException {
+            LOGGER.error("Skipping rest of the commitlog segment.", exception);
+            return true;
+        }
+    }
+}
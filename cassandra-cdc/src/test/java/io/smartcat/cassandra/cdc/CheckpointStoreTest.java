@@ -0,0 +1,194 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.cassandra.db.commitlog.CommitLogReadHandler;
+import org.apache.cassandra.db.commitlog.CommitLogReader;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class CheckpointStoreTest {
+
+    private static final String KEYSPACE = "checkpoint_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.test");
+    private Path file;
+    private Map<String, Object> configuration;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.getRoot().toPath().resolve("reader.checkpoint");
+        configuration = configuration();
+    }
+
+    @After
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void loadsWrittenPosition() throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        store.update(new CommitLogPosition(7, 1234));
+        // Older positions never move the checkpoint back.
+        store.update(new CommitLogPosition(6, 4321));
+        store.close();
+
+        CheckpointStore loaded = new CheckpointStore(configuration);
+        assertEquals(new CommitLogPosition(7, 1234), loaded.load());
+        assertEquals(new CommitLogPosition(7, 1234), loaded.position());
+        loaded.close();
+    }
+
+    @Test
+    public void startsFromScratchWithoutCheckpointFile() throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        assertEquals(CommitLogPosition.NONE, store.load());
+        store.close();
+    }
+
+    @Test
+    public void ignoresTornFile() throws IOException {
+        writeCheckpoint(new CommitLogPosition(7, 1234));
+        byte[] record = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(record, record.length - 3));
+
+        CheckpointStore store = new CheckpointStore(configuration);
+        assertEquals(CommitLogPosition.NONE, store.load());
+        assertEquals(CommitLogPosition.NONE, store.position());
+        store.close();
+    }
+
+    @Test
+    public void ignoresFileWithChecksumMismatch() throws IOException {
+        writeCheckpoint(new CommitLogPosition(7, 1234));
+        byte[] record = Files.readAllBytes(file);
+        // Flips a bit of the position, the checksum no longer matches.
+        record[Long.BYTES + Integer.BYTES - 1] ^= 1;
+        Files.write(file, record);
+
+        CheckpointStore store = new CheckpointStore(configuration);
+        assertEquals(CommitLogPosition.NONE, store.load());
+        store.close();
+    }
+
+    @Test
+    public void ignoresFileOfUnexpectedContent() throws IOException {
+        Files.write(file, "segment 7 at 1234".getBytes(StandardCharsets.UTF_8));
+
+        CheckpointStore store = new CheckpointStore(configuration);
+        assertEquals(CommitLogPosition.NONE, store.load());
+        store.close();
+    }
+
+    @Test
+    public void resumesSegmentAfterCheckpointedMutation() throws Exception {
+        CFMetaData table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        Path segment = CommitLogSegments.write(folder.newFolder("cdc_raw").toPath(), 1, Arrays.asList(
+                TestSchema.mutation(table, "a", "1", 1), TestSchema.mutation(table, "b", "2", 2),
+                TestSchema.mutation(table, "c", "3", 3)));
+        List<Integer> entries = entryLocations(segment);
+        writeCheckpoint(new CommitLogPosition(1, entries.get(0)));
+
+        CheckpointStore store = new CheckpointStore(configuration);
+        CommitLogPosition checkpoint = store.load();
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        SegmentProcessor processor = new SegmentProcessor(configuration,
+                new CustomCommitLogReadHandler(configuration, metrics, producer), store);
+        processor.submit(segment, checkpoint);
+        processor.awaitIdle();
+        processor.shutdown();
+        store.close();
+
+        // Only mutations after the checkpointed one are sent again, keys on different lanes in any order.
+        Set<String> sent = new HashSet<>();
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            sent.add(new String(record.key(), StandardCharsets.UTF_8));
+        }
+        assertEquals(2, producer.history().size());
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), sent);
+        assertEquals(new CommitLogPosition(1, Integer.MAX_VALUE), load());
+    }
+
+    private void writeCheckpoint(CommitLogPosition position) throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        store.update(position);
+        store.close();
+    }
+
+    private CommitLogPosition load() throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        try {
+            return store.load();
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Returns positions of the mutations in the segment, which are what the reader checkpoints.
+     */
+    private static List<Integer> entryLocations(Path segment) throws IOException {
+        List<Integer> entries = new ArrayList<>();
+        new CommitLogReader().readCommitLogSegment(new CommitLogReadHandler() {
+            @Override
+            public void handleMutation(Mutation mutation, int size, int entryLocation,
+                    CommitLogDescriptor descriptor) {
+                entries.add(entryLocation);
+            }
+
+            @Override
+            public void handleUnrecoverableError(CommitLogReadException exception) throws IOException {
+                throw new IOException(exception);
+            }
+
+            @Override
+            public boolean shouldSkipSegmentOnError(CommitLogReadException exception) throws IOException {
+                throw new IOException(exception);
+            }
+        }, segment.toFile(), CommitLogReader.ALL_MUTATIONS, false);
+        return entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> configuration() {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  keyspace: " + KEYSPACE + "\n"
+                + "  table: events\n"
+                + "  cdc_raw_directory: " + folder.getRoot().toPath().resolve("cdc_raw") + "\n"
+                + "kafka:\n"
+                + "  topic: events\n"
+                + "reader:\n"
+                + "  workers: 2\n"
+                + "  checkpoint:\n"
+                + "    file: " + file + "\n"
+                + "    interval_ms: 60000\n");
+    }
+}
@@ -0,0 +1,107 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.security.EncryptionContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.apache.cassandra.utils.FBUtilities.updateChecksumInt;
+
+/**
+ * Writes commitlog segments in the format Cassandra writes them, without running a commitlog: a descriptor header,
+ * then sync sections each starting with a marker which points to the next one, and a zero marker at the end. Every
+ * entry is its length, checksum of the length, serialized mutation and checksum of both.
+ */
+public final class CommitLogSegments {
+
+    private static final int SECTION_SIZE = 1024 * 1024;
+    private static final int SYNC_MARKER_SIZE = 8;
+    private static final int ENTRY_OVERHEAD_SIZE = 12;
+
+    private CommitLogSegments() {
+    }
+
+    /**
+     * Writes the mutations into a new segment with the given id in the directory and returns path of the segment.
+     */
+    public static Path write(Path directory, long id, List<Mutation> mutations) throws IOException {
+        return writeSynced(directory, id, Collections.singletonList(mutations));
+    }
+
+    /**
+     * Writes every list of mutations into its own sync sections, as a segment synced after each of them, and returns
+     * path of the segment. A segment written with more lists starts with the bytes of the one written with fewer,
+     * except for the marker which ended it.
+     */
+    public static Path writeSynced(Path directory, long id, List<List<Mutation>> syncs) throws IOException {
+        CommitLogDescriptor descriptor = new CommitLogDescriptor(id, null, new EncryptionContext());
+        int version = descriptor.getMessagingVersion();
+        DataOutputBuffer out = new DataOutputBuffer();
+        ByteBuffer header = ByteBuffer.allocate(4096);
+        CommitLogDescriptor.writeHeader(header, descriptor);
+        header.flip();
+        out.write(header);
+
+        DataOutputBuffer serialized = new DataOutputBuffer();
+        int marker = out.getLength();
+        out.write(new byte[SYNC_MARKER_SIZE]);
+        for (int i = 0; i < syncs.size(); i++) {
+            if (i > 0) {
+                marker = nextSection(out, id, marker);
+            }
+            for (Mutation mutation : syncs.get(i)) {
+                serialized.clear();
+                Mutation.serializer.serialize(mutation, serialized, version);
+                int size = serialized.getLength();
+                boolean sectionEmpty = out.getLength() == marker + SYNC_MARKER_SIZE;
+                if (!sectionEmpty && out.getLength() - marker + size + ENTRY_OVERHEAD_SIZE > SECTION_SIZE) {
+                    marker = nextSection(out, id, marker);
+                }
+                CRC32 checksum = new CRC32();
+                out.writeInt(size);
+                updateChecksumInt(checksum, size);
+                out.writeInt((int) checksum.getValue());
+                out.write(serialized.getData(), 0, size);
+                checksum.update(serialized.getData(), 0, size);
+                out.writeInt((int) checksum.getValue());
+            }
+        }
+        nextSection(out, id, marker);
+
+        Path segment = directory.resolve(descriptor.fileName());
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = ByteBuffer.wrap(out.getData(), 0, out.getLength());
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Closes the section starting at the given marker, and starts the next one, returning its marker position. The
+     * zero marker of a section which is never filled ends the segment.
+     */
+    private static int nextSection(DataOutputBuffer out, long id, int marker) throws IOException {
+        int next = out.getLength();
+        CRC32 checksum = new CRC32();
+        updateChecksumInt(checksum, (int) (id & 0xFFFFFFFFL));
+        updateChecksumInt(checksum, (int) (id >>> 32));
+        updateChecksumInt(checksum, marker);
+        ByteBuffer buffer = out.buffer();
+        buffer.putInt(marker, next);
+        buffer.putInt(marker + 4, (int) checksum.getValue());
+        out.write(new byte[SYNC_MARKER_SIZE]);
+        return next;
+    }
+}
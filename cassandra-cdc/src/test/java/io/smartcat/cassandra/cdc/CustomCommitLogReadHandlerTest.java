@@ -0,0 +1,126 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CustomCommitLogReadHandlerTest {
+
+    private static final String KEYSPACE = "handler_test";
+
+    private final MockProducer<byte[], byte[]> producer = new MockProducer<>(false, new ByteArraySerializer(),
+            new ByteArraySerializer());
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.test");
+    private CFMetaData table;
+
+    @Before
+    public void setUp() {
+        table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+    }
+
+    @After
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void stopsWithoutAcknowledgingAfterTransientFailure() {
+        CustomCommitLogReadHandler handler = handler("");
+        AtomicInteger completed = new AtomicInteger();
+        InFlight range = new InFlight();
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 1), range);
+        range.seal(completed::incrementAndGet);
+
+        assertTrue(producer.errorNext(new TimeoutException("Expired before the producer's retries succeeded.")));
+        assertEquals(0, completed.get());
+        assertEquals(1, metrics.meter("failed-sends").getCount());
+        assertEquals(0, metrics.meter("dropped-events").getCount());
+        try {
+            handler.checkFailure();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // Nothing is sent after the failed event, so it cannot be overtaken by newer events.
+        handler.handleMutation(TestSchema.mutation(table, "a", "2", 2), new InFlight());
+        assertEquals(1, producer.history().size());
+    }
+
+    @Test
+    public void dropsEventsRejectedForGood() {
+        CustomCommitLogReadHandler handler = handler("");
+        AtomicInteger completed = new AtomicInteger();
+        InFlight range = new InFlight();
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 1), range);
+        range.seal(completed::incrementAndGet);
+
+        assertTrue(producer.errorNext(new RecordTooLargeException("Too large.")));
+        assertEquals(1, completed.get());
+        assertEquals(0, metrics.meter("failed-sends").getCount());
+        assertEquals(1, metrics.meter("dropped-events").getCount());
+        handler.checkFailure();
+    }
+
+    @Test
+    public void dropsReplicaCopiesOfAWrite() {
+        CustomCommitLogReadHandler handler = handler("dedup:\n  mode: content_hash\n");
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 1), null);
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 1), null);
+        assertEquals(1, producer.history().size());
+    }
+
+    @Test
+    public void keepsDistinctWritesOfEqualContent() {
+        CustomCommitLogReadHandler handler = handler("dedup:\n  mode: content_hash\n");
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 1), null);
+        handler.handleMutation(TestSchema.mutation(table, "a", "2", 2), null);
+        handler.handleMutation(TestSchema.mutation(table, "a", "1", 3), null);
+        assertEquals(3, producer.history().size());
+        assertEquals(new String(producer.history().get(0).value(), StandardCharsets.UTF_8),
+                new String(producer.history().get(2).value(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void producerRetriesWithSingleRequestInFlight() {
+        Map<String, Object> defaults = EventSinks.producerConfiguration(Collections.emptyMap(), null);
+        assertEquals(EventSinks.DEFAULT_RETRIES, defaults.get(ProducerConfig.RETRIES_CONFIG));
+        assertEquals(1, defaults.get(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION));
+
+        Map<String, Object> configured = EventSinks.producerConfiguration(
+                Collections.singletonMap(ProducerConfig.RETRIES_CONFIG, 0), null);
+        assertEquals(0, configured.get(ProducerConfig.RETRIES_CONFIG));
+        assertEquals(1, configured.get(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION));
+    }
+
+    private CustomCommitLogReadHandler handler(String extraConfiguration) {
+        return new CustomCommitLogReadHandler(configuration(extraConfiguration), metrics, producer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> configuration(String extraConfiguration) {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  keyspace: " + KEYSPACE + "\n"
+                + "  table: events\n"
+                + "kafka:\n"
+                + "  topic: events\n"
+                + extraConfiguration);
+    }
+}
@@ -0,0 +1,88 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DedupCacheTest {
+
+    private static final byte[] VALUE = "{\"v\":1}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void recognizesCopiesOfAnEvent() {
+        DedupCache cache = cache(60000, 100);
+        assertFalse(cache.isDuplicate("events", 1, VALUE));
+        assertTrue(cache.isDuplicate("events", 1, VALUE));
+        assertTrue(cache.isDuplicate("events", 1, VALUE));
+    }
+
+    @Test
+    public void distinguishesTopicsAndWriteTimes() {
+        DedupCache cache = cache(60000, 100);
+        assertFalse(cache.isDuplicate("events", 1, VALUE));
+        assertFalse(cache.isDuplicate("other", 1, VALUE));
+        assertFalse(cache.isDuplicate("events", 2, VALUE));
+        assertFalse(cache.isDuplicate("events", 1, "{\"v\":2}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void remembersEventsForAtLeastOneGeneration() {
+        DedupCache cache = cache(60000, 4);
+        for (int i = 0; i < 4; i++) {
+            assertFalse(cache.isDuplicate("events", i, VALUE));
+        }
+        // The full generation is rotated out of the way, but still consulted.
+        assertFalse(cache.isDuplicate("events", 4, VALUE));
+        assertTrue(cache.isDuplicate("events", 0, VALUE));
+        for (int i = 5; i < 8; i++) {
+            assertFalse(cache.isDuplicate("events", i, VALUE));
+        }
+        // Another rotation drops the first generation.
+        assertFalse(cache.isDuplicate("events", 8, VALUE));
+        assertFalse(cache.isDuplicate("events", 1, VALUE));
+    }
+
+    @Test
+    public void forgetsEventsAfterTwoWindows() throws InterruptedException {
+        DedupCache cache = cache(20, 100);
+        assertFalse(cache.isDuplicate("events", 1, VALUE));
+        Thread.sleep(30);
+        assertFalse(cache.isDuplicate("events", 2, VALUE));
+        Thread.sleep(30);
+        assertFalse(cache.isDuplicate("events", 1, VALUE));
+    }
+
+    @Test
+    public void writeTimesDependOnTimestampsAndDeletionsOnly() {
+        CFMetaData table = TestSchema.table("dedup_test", "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        long first = DedupCache.writeTimes(update(table, "a", "1", 1));
+        assertEquals(first, DedupCache.writeTimes(update(table, "a", "1", 1)));
+        assertNotEquals(first, DedupCache.writeTimes(update(table, "a", "1", 2)));
+
+        PartitionUpdate.SimpleBuilder deletion = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        deletion.row().delete();
+        assertNotEquals(first, DedupCache.writeTimes(deletion.build()));
+    }
+
+    private static PartitionUpdate update(CFMetaData table, String key, String value, long timestamp) {
+        return TestSchema.mutation(table, key, value, timestamp).getPartitionUpdates().iterator().next();
+    }
+
+    private static DedupCache cache(long windowMs, int maxEntries) {
+        Map<String, Object> dedup = new HashMap<>();
+        dedup.put("window_ms", windowMs);
+        dedup.put("max_entries", maxEntries);
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("dedup", dedup);
+        return new DedupCache(configuration);
+    }
+}
@@ -0,0 +1,42 @@
+package io.smartcat.cassandra.cdc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void returnsUsageCodeForWrongArguments() {
+        assertEquals(Export.USAGE, Export.run("configuration.yml"));
+    }
+
+    @Test
+    public void rejectsEncodersTheFilesSinkCannotWrite() throws IOException {
+        Path configuration = folder.newFile("export.yml").toPath();
+        Files.write(configuration, ("cassandra:\n  keyspace: export_test\n  table: events\nkafka:\n  topic: events\n"
+                + "encoder: avro\n").getBytes(StandardCharsets.UTF_8));
+        Path output = folder.getRoot().toPath().resolve("output");
+
+        assertEquals(Export.FAILED, Export.run(configuration.toString(), folder.newFolder("segments").toString(),
+                output.toString()));
+        assertFalse(Files.exists(output.resolve("export_test.events")));
+    }
+
+    @Test
+    public void failsOnMissingConfiguration() {
+        assertEquals(Export.FAILED, Export.run(folder.getRoot().toPath().resolve("missing.yml").toString(),
+                folder.getRoot().toString(), folder.getRoot().toString()));
+    }
+}
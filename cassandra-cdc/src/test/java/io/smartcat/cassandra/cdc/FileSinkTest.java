@@ -0,0 +1,63 @@
+package io.smartcat.cassandra.cdc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FileSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesValuesAsCompressedLinesPerTable() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        FileSink sink = new FileSink(directory);
+        send(sink, "ks", "a", "{\"v\":1}");
+        send(sink, "ks", "b", "{\"v\":2}");
+        send(sink, "ks", "a", "{\"v\":3}");
+        sink.close();
+
+        assertEquals(Arrays.asList("{\"v\":1}", "{\"v\":3}"), lines(directory.resolve("ks.a")));
+        assertEquals(Arrays.asList("{\"v\":2}"), lines(directory.resolve("ks.b")));
+    }
+
+    private static void send(FileSink sink, String keyspace, String table, String value) {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        sink.send(new EventSink.Event(keyspace, table, "topic", new byte[0], value.getBytes(StandardCharsets.UTF_8)),
+                failure::set);
+        assertNull(failure.get());
+    }
+
+    private static List<String> lines(Path table) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(table, "part-*.ndjson.gz")) {
+            for (Path file : files) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+}
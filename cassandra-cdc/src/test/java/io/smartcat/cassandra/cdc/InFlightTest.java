@@ -0,0 +1,73 @@
+package io.smartcat.cassandra.cdc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightTest {
+
+    private final List<Integer> completed = new ArrayList<>();
+
+    @Test
+    public void completesSealedRangeWithoutRecordsRightAway() {
+        new InFlight().seal(() -> completed.add(1));
+        assertEquals(Collections.singletonList(1), completed);
+    }
+
+    @Test
+    public void completesOnceAllRecordsAreAcknowledged() {
+        InFlight range = new InFlight();
+        range.add();
+        range.add();
+        range.seal(() -> completed.add(1));
+        range.done();
+        assertTrue(completed.isEmpty());
+        range.done();
+        assertEquals(Collections.singletonList(1), completed);
+    }
+
+    @Test
+    public void waitsForRecordsAddedBeforeSealing() {
+        InFlight range = new InFlight();
+        range.add();
+        range.done();
+        range.add();
+        range.seal(() -> completed.add(1));
+        assertTrue(completed.isEmpty());
+        range.done();
+        assertEquals(Collections.singletonList(1), completed);
+    }
+
+    @Test
+    public void completesRangesInCreationOrder() {
+        InFlight first = new InFlight();
+        first.add();
+        InFlight second = first.seal(() -> completed.add(1));
+        second.add();
+        InFlight third = second.seal(() -> completed.add(2));
+        third.seal(() -> completed.add(3));
+
+        // Later ranges are acknowledged first, but wait for the first one.
+        second.done();
+        assertTrue(completed.isEmpty());
+        first.done();
+        assertEquals(Arrays.asList(1, 2, 3), completed);
+    }
+
+    @Test
+    public void waitsForLaterRangeToBeSealed() {
+        InFlight first = new InFlight();
+        InFlight second = first.seal(() -> completed.add(1));
+        second.add();
+        second.done();
+        assertEquals(Collections.singletonList(1), completed);
+        second.seal(() -> completed.add(2));
+        assertEquals(Arrays.asList(1, 2), completed);
+    }
+}
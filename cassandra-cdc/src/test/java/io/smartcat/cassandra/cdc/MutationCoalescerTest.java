@@ -0,0 +1,100 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MutationCoalescerTest {
+
+    private CFMetaData table;
+
+    @Before
+    public void setUp() {
+        table = TestSchema.table("coalescer_test", "CREATE TABLE events (k text PRIMARY KEY, v text)");
+    }
+
+    @Test
+    public void mergesMutationsOfAPartitionKeepingNewestCell() throws CharacterCodingException {
+        MutationCoalescer coalescer = new MutationCoalescer(Long.MAX_VALUE);
+        InFlight first = new InFlight();
+        first.add();
+        first.add();
+        InFlight second = first.seal(() -> { });
+        second.add();
+        second.seal(() -> { });
+        coalescer.add(TestSchema.mutation(table, "a", "2", 2), first);
+        coalescer.add(TestSchema.mutation(table, "b", "1", 1), first);
+        coalescer.add(TestSchema.mutation(table, "a", "1", 1), second);
+
+        List<Mutation> flushed = new ArrayList<>();
+        List<InFlight> ranges = new ArrayList<>();
+        coalescer.flush((mutation, range) -> {
+            flushed.add(mutation);
+            ranges.add(range);
+        });
+
+        assertEquals(2, flushed.size());
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(key(flushed.get(0)), key(flushed.get(1))));
+        assertEquals("2", value(flushed.get(0)));
+        // Merged mutations report the oldest range they cover.
+        assertSame(first, ranges.get(0));
+        assertTrue(coalescer.isEmpty());
+    }
+
+    @Test
+    public void closesRangesOfBufferedMutationsAfterFlushing() {
+        MutationCoalescer coalescer = new MutationCoalescer(Long.MAX_VALUE);
+        List<Integer> completed = new ArrayList<>();
+        InFlight range = new InFlight();
+        range.add();
+        range.add();
+        coalescer.add(TestSchema.mutation(table, "a", "1", 1), range);
+        coalescer.add(TestSchema.mutation(table, "a", "2", 2), range);
+        range.seal(() -> completed.add(1));
+        assertTrue(completed.isEmpty());
+
+        coalescer.flush((mutation, covered) -> assertTrue(completed.isEmpty()));
+        assertEquals(Arrays.asList(1), completed);
+    }
+
+    @Test
+    public void asksForFlushOnceBudgetIsExceeded() {
+        Mutation mutation = TestSchema.mutation(table, "a", "1", 1);
+        long size = mutation.getPartitionUpdates().iterator().next().dataSize();
+        MutationCoalescer coalescer = new MutationCoalescer(2 * size);
+        InFlight range = new InFlight();
+        range.add();
+        range.add();
+        range.add();
+        range.seal(() -> { });
+        assertFalse(coalescer.add(mutation, range));
+        assertTrue(coalescer.add(TestSchema.mutation(table, "b", "1", 1), range));
+
+        coalescer.flush((merged, covered) -> { });
+        assertFalse(coalescer.add(mutation, range));
+    }
+
+    private static String key(Mutation mutation) throws CharacterCodingException {
+        return ByteBufferUtil.string(mutation.key().getKey());
+    }
+
+    private String value(Mutation mutation) throws CharacterCodingException {
+        Row row = mutation.getPartitionUpdate(table.cfId).iterator().next();
+        Cell cell = row.getCell(table.getColumnDefinition(ByteBufferUtil.bytes("v")));
+        return ByteBufferUtil.string(cell.value());
+    }
+}
@@ -0,0 +1,249 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReaderTest {
+
+    private static final String KEYSPACE = "reader_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CFMetaData table;
+    private Path segments;
+    private Map<String, Object> configuration;
+
+    @Before
+    public void setUp() throws IOException {
+        table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        segments = folder.newFolder("cdc_raw").toPath();
+        configuration = configuration("");
+    }
+
+    @Test(timeout = 60000)
+    public void schedulesBacklogInSegmentIdOrder() throws Exception {
+        // Created out of order, the directory lists them in any order.
+        CommitLogSegments.write(segments, 3, Collections.singletonList(TestSchema.mutation(table, "a", "third", 3)));
+        CommitLogSegments.write(segments, 1, Collections.singletonList(TestSchema.mutation(table, "a", "first", 1)));
+        CommitLogSegments.write(segments, 2, Collections.singletonList(TestSchema.mutation(table, "a", "second", 2)));
+        MockProducer<byte[], byte[]> producer = producer(true);
+        Reader reader = reader(configuration, producer);
+        try {
+            reader.start();
+            reader.awaitIdle();
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(Arrays.asList("first", "second", "third"), values(producer));
+        assertEquals(Collections.emptyList(), segments());
+    }
+
+    @Test(timeout = 60000)
+    public void deletesSegmentsTheCheckpointCovers() throws Exception {
+        Path covered = CommitLogSegments.write(segments, 1,
+                Collections.singletonList(TestSchema.mutation(table, "a", "first", 1)));
+        CommitLogSegments.write(segments, 2, Collections.singletonList(TestSchema.mutation(table, "a", "second", 2)));
+        checkpoint(new CommitLogPosition(1, Integer.MAX_VALUE));
+        MockProducer<byte[], byte[]> producer = producer(true);
+        Reader reader = reader(configuration, producer);
+        try {
+            reader.start();
+            assertFalse(Files.exists(covered));
+            reader.awaitIdle();
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(Collections.singletonList("second"), values(producer));
+        assertEquals(Collections.emptyList(), segments());
+    }
+
+    @Test(timeout = 60000)
+    public void rescanSkipsKeptSegmentsTheCheckpointCovers() throws Exception {
+        configuration = configuration("  delete_segments: false\n");
+        CommitLogSegments.write(segments, 1, Collections.singletonList(TestSchema.mutation(table, "a", "first", 1)));
+        CommitLogSegments.write(segments, 2, Collections.singletonList(TestSchema.mutation(table, "a", "second", 2)));
+        MockProducer<byte[], byte[]> producer = producer(true);
+        Reader reader = reader(configuration, producer);
+        try {
+            reader.start();
+            reader.awaitIdle();
+            // As after missed watch events.
+            reader.scheduleBacklog();
+            reader.awaitIdle();
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(Arrays.asList("first", "second"), values(producer));
+        assertEquals(2, segments().size());
+    }
+
+    @Test(timeout = 60000)
+    public void rescanSkipsSegmentsInFlight() throws Exception {
+        Path segment = CommitLogSegments.write(segments, 1,
+                Collections.singletonList(TestSchema.mutation(table, "a", "first", 1)));
+        MockProducer<byte[], byte[]> producer = producer(false);
+        Reader reader = reader(configuration, producer);
+        try {
+            reader.start();
+            await(() -> producer.history().size() == 1);
+            // Sent but not acknowledged, so neither checkpointed nor deleted yet.
+            reader.scheduleBacklog();
+            assertTrue(producer.completeNext());
+            reader.awaitIdle();
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(Collections.singletonList("first"), values(producer));
+        assertFalse(Files.exists(segment));
+    }
+
+    @Test(timeout = 60000)
+    public void stopsEveryThreadOnceASendFailed() throws Exception {
+        Path segment = CommitLogSegments.write(segments, 1,
+                Collections.singletonList(TestSchema.mutation(table, "a", "1", 1)));
+        Set<Thread> running = nonDaemonThreads();
+        Reader reader = reader(configuration, new FailingSink());
+        try {
+            reader.processEvents();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // Threads of the stopped pools may take a moment to end after their pool terminated.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        Set<Thread> left = nonDaemonThreads();
+        left.removeAll(running);
+        while (!left.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            left.removeIf(thread -> !thread.isAlive());
+        }
+        assertEquals(Collections.emptySet(), left);
+        // Nothing was acknowledged, so a restarted reader reads the segment again.
+        assertTrue(Files.exists(segment));
+    }
+
+    private static Reader reader(Map<String, Object> configuration, MockProducer<byte[], byte[]> producer)
+            throws IOException {
+        return reader(configuration, new KafkaSink(producer));
+    }
+
+    private static Reader reader(Map<String, Object> configuration, EventSink sink) throws IOException {
+        return new Reader(configuration, new SchemaProvider(configuration, Collections.emptySet()), sink);
+    }
+
+    private static MockProducer<byte[], byte[]> producer(boolean autoComplete) {
+        return new MockProducer<>(autoComplete, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
+    /**
+     * Returns the values of column v in the order they were sent.
+     */
+    private static List<String> values(MockProducer<byte[], byte[]> producer) {
+        List<String> values = new ArrayList<>();
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            String value = new String(record.value(), StandardCharsets.UTF_8);
+            for (String candidate : Arrays.asList("first", "second", "third")) {
+                if (value.contains(candidate)) {
+                    values.add(candidate);
+                }
+            }
+        }
+        return values;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(segments, "CommitLog-*")) {
+            entries.forEach(files::add);
+        }
+        return files;
+    }
+
+    private void checkpoint(CommitLogPosition position) throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        store.update(position);
+        store.close();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<Thread> nonDaemonThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.isDaemon() && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> configuration(String extraReaderConfiguration) {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  keyspace: " + KEYSPACE + "\n"
+                + "  table: events\n"
+                + "  cdc_raw_directory: " + segments + "\n"
+                + "  cdc_total_space_in_mb: 64\n"
+                + "kafka:\n"
+                + "  topic: events\n"
+                + "reader:\n"
+                + "  workers: 2\n"
+                + "  checkpoint:\n"
+                + "    file: " + folder.getRoot().toPath().resolve("reader.checkpoint") + "\n"
+                + extraReaderConfiguration);
+    }
+
+    /**
+     * Fails every send for a reason the producer would have retried.
+     */
+    private static class FailingSink implements EventSink {
+        @Override
+        public void send(Event event, Consumer<Exception> callback) {
+            callback.accept(new TimeoutException("Expired before the producer's retries succeeded."));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicaFilterTest {
+
+    private static final String LOCAL = "10.0.0.1";
+    private static final String REMOTE = "10.0.0.2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Keys ordered by token.
+    private final List<DecoratedKey> keys = new ArrayList<>();
+    private Path ringFile;
+    private ReplicaFilter filter;
+
+    @BeforeClass
+    public static void initialize() {
+        DatabaseDescriptor.toolInitialization();
+    }
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 10; i++) {
+            keys.add(Murmur3Partitioner.instance.decorateKey(UTF8Type.instance.decompose("key" + i)));
+        }
+        keys.sort(Comparator.comparingLong(ReplicaFilterTest::token));
+        ringFile = folder.getRoot().toPath().resolve("ring.yaml");
+    }
+
+    @After
+    public void tearDown() {
+        if (filter != null) {
+            filter.shutdown();
+        }
+    }
+
+    @Test
+    public void choosesNodeOwningTheFirstTokenAtOrAfterTheKey() throws IOException {
+        writeRing(LOCAL, REMOTE);
+        filter = filter();
+
+        assertTrue(filter.hasRing());
+        // At the local token.
+        assertTrue(filter.isPrimary(keys.get(0)));
+        // After the local token, up to and including the remote one.
+        assertFalse(filter.isPrimary(keys.get(1)));
+        assertFalse(filter.isPrimary(keys.get(5)));
+    }
+
+    @Test
+    public void wrapsAroundPastTheHighestToken() throws IOException {
+        writeRing(LOCAL, REMOTE);
+        filter = filter();
+
+        // After the highest token, which belongs to the remote node, the ring starts again at the local token.
+        assertTrue(filter.isPrimary(keys.get(6)));
+        assertTrue(filter.isPrimary(keys.get(9)));
+    }
+
+    @Test
+    public void reloadsChangedRing() throws IOException {
+        filter = filter();
+        assertFalse(filter.hasRing());
+
+        writeRing(LOCAL, REMOTE);
+        filter.reload();
+        assertTrue(filter.isPrimary(keys.get(0)));
+        assertFalse(filter.isPrimary(keys.get(5)));
+
+        writeRing(REMOTE, LOCAL);
+        // Tokens moved within the resolution of the file's modification time.
+        Files.setLastModifiedTime(ringFile,
+                FileTime.fromMillis(Files.getLastModifiedTime(ringFile).toMillis() + 1000));
+        filter.reload();
+        assertFalse(filter.isPrimary(keys.get(0)));
+        assertTrue(filter.isPrimary(keys.get(5)));
+
+        Files.delete(ringFile);
+        filter.reload();
+        assertFalse(filter.hasRing());
+    }
+
+    /**
+     * Gives the first node the token of the lowest key and the second one the token of a key in the middle.
+     */
+    private void writeRing(String first, String second) throws IOException {
+        String ring = first + ": [" + token(keys.get(0)) + "]\n"
+                + second + ": [" + token(keys.get(5)) + "]\n";
+        Files.write(ringFile, ring.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReplicaFilter filter() {
+        return new ReplicaFilter((Map<String, Object>) new Yaml().load("dedup:\n"
+                + "  mode: primary_replica\n"
+                + "  ring: " + ringFile + "\n"
+                + "  address: " + LOCAL + "\n"));
+    }
+
+    private static long token(DecoratedKey key) {
+        return (Long) key.getToken().getTokenValue();
+    }
+}
@@ -0,0 +1,100 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    private static final String KEYSPACE = "routing_test";
+
+    @Test
+    public void routesCapturedTablesToTheirTopics() {
+        RoutingTable routingTable = new RoutingTable(configuration());
+        CFMetaData users = TestSchema.table(KEYSPACE, "CREATE TABLE users (k text PRIMARY KEY, v text, w text)");
+        CFMetaData orders = TestSchema.table(KEYSPACE, "CREATE TABLE orders (k text PRIMARY KEY, v text)");
+
+        RoutingTable.Route route = routingTable.route(users);
+        assertEquals("users-topic", route.topic());
+        assertSame(route, routingTable.route(users));
+        assertEquals("orders-topic", routingTable.route(orders).topic());
+        assertEquals(new HashSet<>(Arrays.asList(KEYSPACE, "other")), routingTable.keyspaces());
+    }
+
+    @Test
+    public void skipsTablesWhichAreNotCaptured() {
+        RoutingTable routingTable = new RoutingTable(configuration());
+        CFMetaData audit = TestSchema.table(KEYSPACE, "CREATE TABLE audit (k text PRIMARY KEY, v text)");
+        // Same table name in another keyspace is a different table.
+        CFMetaData users = CFMetaData.compile("CREATE TABLE users (k text PRIMARY KEY, v text)", "uncaptured");
+
+        assertNull(routingTable.route(audit));
+        // The second lookup is answered by the cached result of the first one.
+        assertNull(routingTable.route(audit));
+        assertNull(routingTable.route(users));
+    }
+
+    @Test
+    public void projectsConfiguredColumns() {
+        RoutingTable routingTable = new RoutingTable(configuration());
+        CFMetaData users = TestSchema.table(KEYSPACE, "CREATE TABLE users (k text PRIMARY KEY, v text, w text)");
+        CFMetaData orders = TestSchema.table(KEYSPACE, "CREATE TABLE orders (k text PRIMARY KEY, v text)");
+
+        assertEquals(new HashSet<>(Arrays.asList("v")), routingTable.route(users).columns());
+        assertNull(routingTable.route(orders).columns());
+    }
+
+    @Test
+    public void sendsOnlyProjectedColumns() {
+        CFMetaData users = TestSchema.table(KEYSPACE, "CREATE TABLE users (k text PRIMARY KEY, v text, w text)");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(users, "a").timestamp(1);
+        builder.row().add("v", "kept").add("w", "dropped");
+        Mutation mutation = builder.buildAsMutation();
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.test");
+        try {
+            new CustomCommitLogReadHandler(configuration(), metrics, producer).handleMutation(mutation, null);
+        } finally {
+            metrics.close();
+        }
+
+        assertEquals(1, producer.history().size());
+        assertEquals("users-topic", producer.history().get(0).topic());
+        String value = new String(producer.history().get(0).value(), StandardCharsets.UTF_8);
+        assertTrue(value, value.contains("kept"));
+        assertFalse(value, value.contains("dropped"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> configuration() {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  tables:\n"
+                + "    - keyspace: " + KEYSPACE + "\n"
+                + "      table: users\n"
+                + "      topic: users-topic\n"
+                + "      columns: [v]\n"
+                + "    - keyspace: " + KEYSPACE + "\n"
+                + "      table: orders\n"
+                + "      topic: orders-topic\n"
+                + "    - keyspace: other\n"
+                + "      table: users\n"
+                + "      topic: other-users-topic\n");
+    }
+}
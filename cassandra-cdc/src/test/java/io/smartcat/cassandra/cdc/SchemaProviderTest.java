@@ -0,0 +1,127 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Directories;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.SerializationHeader;
+import org.apache.cassandra.io.sstable.Component;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTable;
+import org.apache.cassandra.io.sstable.SSTableTxnWriter;
+import org.apache.cassandra.io.sstable.format.SSTableReader;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaProviderTest {
+
+    private static final String KEYSPACE = "schema_provider_test";
+
+    private final SchemaProvider provider = new SchemaProvider(Collections.emptyMap(), Collections.emptySet());
+
+    @BeforeClass
+    public static void setUpTables() {
+        TestSchema.table(KEYSPACE, "CREATE TABLE compacted (k text PRIMARY KEY, v text)");
+        TestSchema.table(KEYSPACE, "CREATE TABLE unreadable (k text PRIMARY KEY, v text)");
+        Keyspace.setInitialized();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        provider.shutdown();
+    }
+
+    @Test
+    public void opensNewSSTablesAndReleasesTheOnesWhichAreGone() throws IOException {
+        ColumnFamilyStore table = Keyspace.open(KEYSPACE).getColumnFamilyStore("compacted");
+        provider.sync(table);
+        Set<SSTableReader> before = new HashSet<>(table.getLiveSSTables());
+
+        Descriptor first = write(table, "a");
+        assertEquals(1, provider.sync(table));
+        assertEquals(0, provider.sync(table));
+        // Files of the node are never compacted by the reader.
+        assertTrue(table.isAutoCompactionDisabled());
+        assertTrue(table.getTracker().getCompacting().isEmpty());
+        SSTableReader opened = live(table, first);
+
+        // Compacted into a new sstable by the node, which deletes the old one.
+        Descriptor second = write(table, "b");
+        delete(first);
+        assertEquals(1, provider.sync(table));
+
+        Set<SSTableReader> expected = new HashSet<>(before);
+        expected.add(live(table, second));
+        assertEquals(expected, new HashSet<>(table.getLiveSSTables()));
+        assertNull(opened.tryRef());
+    }
+
+    @Test
+    public void skipsSSTablesWhichCannotBeOpened() throws IOException {
+        ColumnFamilyStore table = Keyspace.open(KEYSPACE).getColumnFamilyStore("unreadable");
+        provider.sync(table);
+        Set<SSTableReader> before = new HashSet<>(table.getLiveSSTables());
+
+        // Components deleted while the sstable is being opened.
+        Descriptor vanishing = write(table, "a");
+        Files.write(Paths.get(vanishing.filenameFor(Component.STATS)), new byte[0]);
+        assertEquals(0, provider.sync(table));
+        assertEquals(before, new HashSet<>(table.getLiveSSTables()));
+
+        delete(vanishing);
+        Descriptor readable = write(table, "b");
+        assertEquals(1, provider.sync(table));
+        assertTrue(table.getLiveSSTables().contains(live(table, readable)));
+    }
+
+    /**
+     * Writes an sstable with a single row into the table's directory and returns its descriptor.
+     */
+    private static Descriptor write(ColumnFamilyStore table, String key) {
+        Set<Descriptor> existing = list(table);
+        String path = table.getSSTablePath(table.getDirectories().getDirectoryForNewSSTables());
+        try (SSTableTxnWriter writer = SSTableTxnWriter.create(table, path, 1, 0,
+                SerializationHeader.makeWithoutStats(table.metadata))) {
+            writer.append(TestSchema.mutation(table.metadata, key, key, 1).getPartitionUpdate(table.metadata.cfId)
+                    .unfilteredIterator());
+            writer.finish(false);
+        }
+        Set<Descriptor> written = list(table);
+        written.removeAll(existing);
+        assertEquals(1, written.size());
+        return written.iterator().next();
+    }
+
+    private static Set<Descriptor> list(ColumnFamilyStore table) {
+        return new HashSet<>(table.getDirectories().sstableLister(Directories.OnTxnErr.IGNORE).skipTemporary(true)
+                .list().keySet());
+    }
+
+    private static SSTableReader live(ColumnFamilyStore table, Descriptor descriptor) {
+        for (SSTableReader sstable : table.getLiveSSTables()) {
+            if (sstable.descriptor.equals(descriptor)) {
+                return sstable;
+            }
+        }
+        throw new AssertionError(descriptor + " is not live");
+    }
+
+    private static void delete(Descriptor descriptor) throws IOException {
+        for (Component component : SSTable.componentsFor(descriptor)) {
+            Files.deleteIfExists(Paths.get(descriptor.filenameFor(component)));
+        }
+        assertFalse(Files.exists(Paths.get(descriptor.filenameFor(Component.DATA))));
+    }
+}
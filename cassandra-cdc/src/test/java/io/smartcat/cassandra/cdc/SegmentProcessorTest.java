@@ -0,0 +1,239 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.security.EncryptionContext;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentProcessorTest {
+
+    private static final String KEYSPACE = "processor_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.test");
+    private CFMetaData table;
+    private Path segments;
+    private Map<String, Object> configuration;
+
+    @Before
+    public void setUp() throws IOException {
+        table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        segments = folder.newFolder("cdc_raw").toPath();
+        configuration = configuration();
+    }
+
+    @After
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void keepsCheckpointBehindSegmentWhichCouldNotBeDecoded() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        CheckpointStore checkpointStore = new CheckpointStore(configuration);
+        SegmentProcessor processor = new SegmentProcessor(configuration,
+                new CustomCommitLogReadHandler(configuration, metrics, producer), checkpointStore);
+        Path first = CommitLogSegments.write(segments, 1,
+                Collections.singletonList(TestSchema.mutation(table, "a", "1", 1)));
+        Path corrupt = segments.resolve(new CommitLogDescriptor(2, null, new EncryptionContext()).fileName());
+        byte[] garbage = new byte[4096];
+        Arrays.fill(garbage, (byte) 'x');
+        Files.write(corrupt, garbage);
+        Path third = CommitLogSegments.write(segments, 3,
+                Collections.singletonList(TestSchema.mutation(table, "b", "3", 3)));
+
+        processor.submit(first);
+        processor.submit(corrupt);
+        processor.submit(third);
+        processor.awaitIdle();
+        processor.shutdown();
+        checkpointStore.close();
+
+        assertEquals(2, producer.history().size());
+        assertEquals(1, processor.failures());
+        try {
+            processor.checkFailure();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("could not be decoded"));
+        }
+        assertTrue(loadCheckpoint().compareTo(new CommitLogPosition(2, 0)) < 0);
+        // Segments after the failed one stay in place for the restarted reader.
+        assertTrue(Files.exists(corrupt));
+        assertTrue(Files.exists(third));
+    }
+
+    @Test
+    public void checkpointsAndDeletesSegmentsOnceAcknowledged() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        CheckpointStore checkpointStore = new CheckpointStore(configuration);
+        SegmentProcessor processor = new SegmentProcessor(configuration,
+                new CustomCommitLogReadHandler(configuration, metrics, producer), checkpointStore);
+        Path segment = CommitLogSegments.write(segments, 1,
+                Collections.singletonList(TestSchema.mutation(table, "a", "1", 1)));
+
+        processor.submit(segment);
+        processor.awaitIdle();
+        processor.shutdown();
+        checkpointStore.close();
+
+        processor.checkFailure();
+        assertEquals(new CommitLogPosition(1, Integer.MAX_VALUE), loadCheckpoint());
+        assertFalse(Files.exists(segment));
+    }
+
+    @Test
+    public void countsMutationsTheHandlerFailedOn() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        CustomCommitLogReadHandler handler = new CustomCommitLogReadHandler(configuration, metrics, producer) {
+            @Override
+            public void handleMutation(Mutation mutation, InFlight inFlight) {
+                if (UTF8Type.instance.getString(mutation.key().getKey()).equals("b")) {
+                    throw new IllegalStateException("Unable to encode.");
+                }
+                super.handleMutation(mutation, inFlight);
+            }
+        };
+        CheckpointStore checkpointStore = new CheckpointStore(configuration);
+        SegmentProcessor processor = new SegmentProcessor(configuration, handler, checkpointStore);
+        Path segment = CommitLogSegments.write(segments, 1, Arrays.asList(TestSchema.mutation(table, "a", "1", 1),
+                TestSchema.mutation(table, "b", "2", 2), TestSchema.mutation(table, "c", "3", 3)));
+
+        processor.submit(segment);
+        processor.awaitIdle();
+        processor.shutdown();
+        checkpointStore.close();
+
+        assertEquals(2, producer.history().size());
+        assertEquals(1, processor.failures());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void deliversMutationsOfEachKeyInCommitlogOrderWhileKeysRunInParallel() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        Map<String, List<Long>> delivered = new ConcurrentHashMap<>();
+        Map<String, String> threads = new ConcurrentHashMap<>();
+        CountDownLatch otherLaneRan = new CountDownLatch(1);
+        AtomicBoolean parallelLanes = new AtomicBoolean();
+        CustomCommitLogReadHandler handler = new CustomCommitLogReadHandler(configuration, metrics, producer) {
+            @Override
+            public void handleMutation(Mutation mutation, InFlight inFlight) {
+                String key = UTF8Type.instance.getString(mutation.key().getKey());
+                String thread = Thread.currentThread().getName();
+                threads.put(key, thread);
+                if (!thread.equals(threads.get("k0"))) {
+                    otherLaneRan.countDown();
+                }
+                List<Long> order = delivered.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()));
+                if (key.equals("k0") && order.isEmpty()) {
+                    // Holds the lane of k0, mutations of keys in other lanes still have to get through.
+                    try {
+                        parallelLanes.set(otherLaneRan.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                order.add(mutation.getPartitionUpdates().iterator().next().maxTimestamp());
+                super.handleMutation(mutation, inFlight);
+            }
+        };
+        Map<String, Object> parallel = configuration();
+        ((Map<String, Object>) parallel.get("reader")).put("workers", 4);
+        CheckpointStore checkpointStore = new CheckpointStore(parallel);
+        SegmentProcessor processor = new SegmentProcessor(parallel, handler, checkpointStore);
+        int keys = 8;
+        int segmentCount = 4;
+        int mutationsPerKey = 5;
+        List<Path> written = new ArrayList<>();
+        long timestamp = 0;
+        for (int id = 1; id <= segmentCount; id++) {
+            List<Mutation> mutations = new ArrayList<>();
+            for (int round = 0; round < mutationsPerKey; round++) {
+                for (int key = 0; key < keys; key++) {
+                    mutations.add(TestSchema.mutation(table, "k" + key, Long.toString(timestamp), ++timestamp));
+                }
+            }
+            written.add(CommitLogSegments.write(segments, id, mutations));
+        }
+
+        for (Path segment : written) {
+            processor.submit(segment);
+        }
+        processor.awaitIdle();
+        processor.shutdown();
+        checkpointStore.close();
+
+        processor.checkFailure();
+        assertEquals(keys * segmentCount * mutationsPerKey, producer.history().size());
+        assertEquals(keys, delivered.size());
+        for (Map.Entry<String, List<Long>> key : delivered.entrySet()) {
+            List<Long> order = key.getValue();
+            assertEquals(segmentCount * mutationsPerKey, order.size());
+            for (int i = 1; i < order.size(); i++) {
+                assertTrue("Mutations of " + key.getKey() + " out of order: " + order, order.get(i - 1) < order.get(i));
+            }
+        }
+        assertTrue(parallelLanes.get());
+        assertTrue(new HashSet<>(threads.values()).size() > 1);
+    }
+
+    private CommitLogPosition loadCheckpoint() throws IOException {
+        CheckpointStore store = new CheckpointStore(configuration);
+        try {
+            return store.load();
+        } finally {
+            store.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> configuration() {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  keyspace: " + KEYSPACE + "\n"
+                + "  table: events\n"
+                + "  cdc_raw_directory: " + segments + "\n"
+                + "kafka:\n"
+                + "  topic: events\n"
+                + "reader:\n"
+                + "  workers: 2\n"
+                + "  checkpoint:\n"
+                + "    file: " + folder.getRoot().toPath().resolve("reader.checkpoint") + "\n");
+    }
+}
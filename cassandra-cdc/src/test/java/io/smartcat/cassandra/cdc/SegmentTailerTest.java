@@ -0,0 +1,195 @@
+package io.smartcat.cassandra.cdc;
+
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.commitlog.CommitLogPosition;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+public class SegmentTailerTest {
+
+    private static final String KEYSPACE = "tailer_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PipelineMetrics metrics = new PipelineMetrics("io.smartcat.cassandra.cdc.test");
+    private final MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+            new ByteArraySerializer());
+    private CFMetaData table;
+    private Path commitLog;
+    private Path cdcRaw;
+    private Path staging;
+    private CheckpointStore checkpointStore;
+    private SegmentProcessor processor;
+    private SegmentTailer tailer;
+
+    @Before
+    public void setUp() throws IOException {
+        table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        commitLog = folder.newFolder("commitlog").toPath();
+        cdcRaw = folder.newFolder("cdc_raw").toPath();
+        staging = folder.newFolder("staging").toPath();
+        Map<String, Object> configuration = configuration();
+        checkpointStore = new CheckpointStore(configuration);
+        processor = new SegmentProcessor(configuration,
+                new CustomCommitLogReadHandler(configuration, metrics, producer), checkpointStore);
+        tailer = new SegmentTailer(commitLog, cdcRaw, processor, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tailer.shutdown();
+        processor.shutdown();
+        checkpointStore.close();
+        metrics.close();
+    }
+
+    @Test(timeout = 60000)
+    public void followsSegmentGrowingBetweenPollsAndHandsItOverOnce() throws Exception {
+        Path live = sync(1, Arrays.asList(mutations("a")));
+        tailer.poll();
+        await(() -> sentKeys().size() == 1);
+
+        sync(1, Arrays.asList(mutations("a"), mutations("b")));
+        tailer.poll();
+        await(() -> sentKeys().size() == 2);
+        // Nothing was synced since the last poll.
+        tailer.poll();
+
+        // Synced once more, then moved to cdc_raw before the next poll.
+        sync(1, Arrays.asList(mutations("a"), mutations("b"), mutations("c")));
+        Files.move(live, cdcRaw.resolve(live.getFileName()));
+        tailer.poll();
+        processor.awaitIdle();
+
+        assertEquals(Arrays.asList("a", "b", "c"), sentKeys());
+        assertEquals(new CommitLogPosition(1, Integer.MAX_VALUE), checkpointStore.position());
+    }
+
+    @Test(timeout = 60000)
+    public void waitsForSyncMarkerOfTheNextSection() throws Exception {
+        Path live = sync(1, Arrays.asList(mutations("a")));
+        int marker = (int) Files.size(live) - 2 * Integer.BYTES;
+        tailer.poll();
+        await(() -> sentKeys().size() == 1);
+
+        // The next section is written and its marker points past it, but the checksum is not written yet.
+        sync(1, Arrays.asList(mutations("a"), mutations("b")));
+        int checksum = readInt(live, marker + Integer.BYTES);
+        writeInt(live, marker + Integer.BYTES, 0);
+        tailer.poll();
+        assertEquals(Collections.singletonList("a"), sentKeys());
+
+        writeInt(live, marker + Integer.BYTES, checksum);
+        tailer.poll();
+        await(() -> sentKeys().size() == 2);
+        assertEquals(Arrays.asList("a", "b"), sentKeys());
+    }
+
+    @Test(timeout = 60000)
+    public void checkpointsOnlyTheOldestLiveSegment() throws Exception {
+        Path oldest = sync(1, Arrays.asList(mutations("a")));
+        sync(2, Arrays.asList(mutations("b")));
+        tailer.poll();
+        await(() -> sentKeys().size() == 2 && checkpointStore.position().segmentId == 1);
+
+        Files.move(oldest, cdcRaw.resolve(oldest.getFileName()));
+        tailer.poll();
+        processor.awaitIdle();
+        // Mutations tailed from the newer segment did not move the checkpoint past the older one.
+        assertEquals(new CommitLogPosition(1, Integer.MAX_VALUE), checkpointStore.position());
+
+        sync(2, Arrays.asList(mutations("b"), mutations("c")));
+        tailer.poll();
+        await(() -> checkpointStore.position().segmentId == 2);
+        assertEquals(Arrays.asList("a", "b", "c"), sentKeys());
+    }
+
+    private List<Mutation> mutations(String key) {
+        return Collections.singletonList(TestSchema.mutation(table, key, key, 1));
+    }
+
+    /**
+     * Writes the segment as synced after every list of mutations into the commitlog directory. The segment is
+     * overwritten in place, so it only grows like a segment Cassandra appends to.
+     */
+    private Path sync(long id, List<List<Mutation>> syncs) throws IOException {
+        Path written = CommitLogSegments.writeSynced(staging, id, syncs);
+        Path live = commitLog.resolve(written.getFileName());
+        Files.write(live, Files.readAllBytes(written), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return live;
+    }
+
+    private static int readInt(Path file, int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.read(buffer, position);
+        }
+        return buffer.getInt(0);
+    }
+
+    private static void writeInt(Path file, int position, int value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(0, value);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns keys sent so far, sorted, as mutations of different keys are sent from different lanes.
+     */
+    private List<String> sentKeys() {
+        List<String> keys = new ArrayList<>();
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            keys.add(new String(record.key(), StandardCharsets.UTF_8));
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> configuration() {
+        return (Map<String, Object>) new Yaml().load("cassandra:\n"
+                + "  keyspace: " + KEYSPACE + "\n"
+                + "  table: events\n"
+                + "  cdc_raw_directory: " + cdcRaw + "\n"
+                + "kafka:\n"
+                + "  topic: events\n"
+                + "reader:\n"
+                + "  workers: 2\n"
+                + "  checkpoint:\n"
+                + "    file: " + folder.getRoot().toPath().resolve("reader.checkpoint") + "\n"
+                + "    interval_ms: 60000\n");
+    }
+}
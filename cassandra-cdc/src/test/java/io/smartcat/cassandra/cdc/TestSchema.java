@@ -0,0 +1,76 @@
+package io.smartcat.cassandra.cdc;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.config.SchemaConstants;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.Mutation;
+import org.apache.cassandra.db.SerializationHeader;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.io.sstable.SSTableTxnWriter;
+import org.apache.cassandra.schema.KeyspaceMetadata;
+import org.apache.cassandra.schema.KeyspaceParams;
+import org.apache.cassandra.schema.SchemaKeyspace;
+import org.apache.cassandra.schema.Tables;
+import org.apache.cassandra.utils.FBUtilities;
+
+/**
+ * Registers tables in the local schema of the test JVM, so mutations of them can be serialized and read back.
+ */
+public final class TestSchema {
+
+    static {
+        DatabaseDescriptor.toolInitialization();
+    }
+
+    private TestSchema() {
+    }
+
+    /**
+     * Registers the table created by the given statement, or returns the one registered under its name before.
+     */
+    public static synchronized CFMetaData table(String keyspace, String createTable) {
+        CFMetaData table = CFMetaData.compile(createTable, keyspace);
+        CFMetaData registered = Schema.instance.getCFMetaData(keyspace, table.cfName);
+        if (registered != null) {
+            return registered;
+        }
+        KeyspaceMetadata metadata = Schema.instance.getKSMetaData(keyspace);
+        metadata = metadata == null
+                ? KeyspaceMetadata.create(keyspace, KeyspaceParams.local(), Tables.of(table))
+                : metadata.withSwapped(metadata.tables.with(table));
+        Schema.instance.setKeyspaceMetadata(metadata);
+        Schema.instance.load(table);
+        return table;
+    }
+
+    /**
+     * Writes the registered schema of the keyspace into sstables of the system_schema tables, the way a node
+     * flushes it, so schema providers capturing the keyspace load it from disk.
+     */
+    public static synchronized void persist(String keyspace) {
+        Mutation mutation = SchemaKeyspace.makeCreateKeyspaceMutation(Schema.instance.getKSMetaData(keyspace),
+                FBUtilities.timestampMicros()).build();
+        for (PartitionUpdate update : mutation.getPartitionUpdates()) {
+            ColumnFamilyStore table = Keyspace.open(SchemaConstants.SCHEMA_KEYSPACE_NAME)
+                    .getColumnFamilyStore(update.metadata().cfId);
+            String path = table.getSSTablePath(table.getDirectories().getDirectoryForNewSSTables());
+            try (SSTableTxnWriter writer = SSTableTxnWriter.create(table, path, 1, 0,
+                    SerializationHeader.makeWithoutStats(table.metadata))) {
+                writer.append(update.unfilteredIterator());
+                writer.finish(false);
+            }
+        }
+    }
+
+    /**
+     * Builds a mutation writing the given value of column {@code v} in the row of the given partition key.
+     */
+    public static Mutation mutation(CFMetaData table, String key, String value, long timestamp) {
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, key).timestamp(timestamp);
+        builder.row().add("v", value);
+        return builder.buildAsMutation();
+    }
+}
@@ -0,0 +1,152 @@
+package io.smartcat.cassandra.cdc.connect;
+
+import io.smartcat.cassandra.cdc.CommitLogSegments;
+import io.smartcat.cassandra.cdc.TestSchema;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.connect.json.JsonConverter;
+import org.apache.kafka.connect.runtime.ConnectorConfig;
+import org.apache.kafka.connect.runtime.ConnectorFactory;
+import org.apache.kafka.connect.runtime.Herder;
+import org.apache.kafka.connect.runtime.Worker;
+import org.apache.kafka.connect.runtime.WorkerConfig;
+import org.apache.kafka.connect.runtime.rest.entities.ConnectorInfo;
+import org.apache.kafka.connect.runtime.standalone.StandaloneConfig;
+import org.apache.kafka.connect.runtime.standalone.StandaloneHerder;
+import org.apache.kafka.connect.storage.FileOffsetBackingStore;
+import org.apache.kafka.connect.storage.StringConverter;
+import org.apache.kafka.connect.util.FutureCallback;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the connector in a standalone Connect worker against a local broker.
+ */
+public class CommitLogSourceConnectorTest {
+
+    private static final String KEYSPACE = "connect_test";
+    private static final String TOPIC = "connect-test-events";
+    private static final long TIMEOUT_MS = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void publishesMutationsOfCapturedTableAndDeletesAcknowledgedSegments() throws Exception {
+        CFMetaData table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        CFMetaData other = TestSchema.table(KEYSPACE, "CREATE TABLE other (k text PRIMARY KEY, v text)");
+        // Tasks load schema of the captured keyspace from disk.
+        TestSchema.persist(KEYSPACE);
+        Path directory = folder.newFolder("cdc_raw").toPath();
+        Set<String> expected = new HashSet<>();
+        for (long id = 1; id <= 4; id++) {
+            List<Mutation> mutations = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                String key = "k-" + id + "-" + i;
+                mutations.add(TestSchema.mutation(table, key, "v", 1));
+                mutations.add(TestSchema.mutation(other, key, "v", 1));
+                expected.add(key);
+            }
+            CommitLogSegments.write(directory, id, mutations);
+        }
+
+        try (EmbeddedKafka kafka = new EmbeddedKafka()) {
+            StandaloneHerder herder = startWorker(kafka.bootstrapServers());
+            try {
+                FutureCallback<Herder.Created<ConnectorInfo>> created = new FutureCallback<>();
+                herder.putConnectorConfig("cdc", connectorConfig(directory), false, created);
+                created.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                Map<String, String> published = consume(kafka.bootstrapServers(), expected.size());
+                assertEquals(expected, published.keySet());
+                assertTrue(published.get("k-1-0").contains("\"key\":\"k-1-0\""));
+                awaitEmpty(directory);
+            } finally {
+                herder.stop();
+            }
+        }
+    }
+
+    private StandaloneHerder startWorker(String bootstrapServers) throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(WorkerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        properties.put(WorkerConfig.KEY_CONVERTER_CLASS_CONFIG, StringConverter.class.getName());
+        properties.put(WorkerConfig.VALUE_CONVERTER_CLASS_CONFIG, ByteArrayConverter.class.getName());
+        properties.put(WorkerConfig.INTERNAL_KEY_CONVERTER_CLASS_CONFIG, JsonConverter.class.getName());
+        properties.put(WorkerConfig.INTERNAL_VALUE_CONVERTER_CLASS_CONFIG, JsonConverter.class.getName());
+        properties.put("internal.key.converter.schemas.enable", "false");
+        properties.put("internal.value.converter.schemas.enable", "false");
+        properties.put(WorkerConfig.OFFSET_COMMIT_INTERVAL_MS_CONFIG, "100");
+        properties.put(StandaloneConfig.OFFSET_STORAGE_FILE_FILENAME_CONFIG,
+                new File(folder.getRoot(), "connect.offsets").getPath());
+        StandaloneConfig config = new StandaloneConfig(properties);
+        FileOffsetBackingStore offsets = new FileOffsetBackingStore();
+        offsets.configure(config);
+        Worker worker = new Worker("test-worker", Time.SYSTEM, new ConnectorFactory(), config, offsets);
+        StandaloneHerder herder = new StandaloneHerder(worker);
+        herder.start();
+        return herder;
+    }
+
+    private static Map<String, String> connectorConfig(Path directory) {
+        Map<String, String> config = new HashMap<>();
+        config.put(ConnectorConfig.NAME_CONFIG, "cdc");
+        config.put(ConnectorConfig.CONNECTOR_CLASS_CONFIG, CommitLogSourceConnector.class.getName());
+        config.put(ConnectorConfig.TASKS_MAX_CONFIG, "2");
+        config.put(CommitLogSourceConnector.CDC_RAW_DIRECTORY, directory.toString());
+        config.put(CommitLogSourceConnector.KEYSPACE, KEYSPACE);
+        config.put(CommitLogSourceConnector.TABLE, "events");
+        config.put(CommitLogSourceConnector.TOPIC, TOPIC);
+        config.put(CommitLogSourceConnector.POLL_INTERVAL_MS, "100");
+        return config;
+    }
+
+    private static Map<String, String> consume(String bootstrapServers, int count) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("bootstrap.servers", bootstrapServers);
+        properties.put("group.id", "connect-test");
+        properties.put("auto.offset.reset", "earliest");
+        Map<String, String> published = new HashMap<>();
+        try (KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(properties, new StringDeserializer(),
+                new ByteArrayDeserializer())) {
+            consumer.subscribe(Collections.singletonList(TOPIC));
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (published.size() < count && System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(100)) {
+                    published.put(record.key(), new String(record.value(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return published;
+    }
+
+    private static void awaitEmpty(Path directory) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (Files.list(directory).count() > 0) {
+            assertTrue("Segments left in " + directory, System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package io.smartcat.cassandra.cdc.connect;
+
+import io.smartcat.cassandra.cdc.CommitLogSegments;
+import io.smartcat.cassandra.cdc.SchemaProvider;
+import io.smartcat.cassandra.cdc.TestSchema;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Mutation;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.storage.OffsetStorageReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CommitLogSourceTaskTest {
+
+    private static final String KEYSPACE = "connect_task_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<Object, Map<String, Object>> committed = new HashMap<>();
+    private CFMetaData table;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        table = TestSchema.table(KEYSPACE, "CREATE TABLE events (k text PRIMARY KEY, v text)");
+        directory = folder.newFolder("cdc_raw").toPath();
+        for (long id = 1; id <= 4; id++) {
+            List<Mutation> mutations = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                mutations.add(TestSchema.mutation(table, key(id, i), "v", 1));
+            }
+            CommitLogSegments.write(directory, id, mutations);
+        }
+    }
+
+    @Test
+    public void resumesFromOwnOffsetWithSameStripes() throws Exception {
+        CommitLogSourceTask task = start(1, 2, 10);
+        List<SourceRecord> records = task.poll();
+        assertEquals(3, records.size());
+        commit(records.get(1));
+        task.stop();
+
+        task = start(1, 2, 10);
+        assertEquals(new HashSet<>(Arrays.asList(key(1, 2), key(3, 0), key(3, 1), key(3, 2))), readAll(task));
+    }
+
+    @Test
+    public void resumesSegmentsFromOffsetsOfPreviousStripesAfterRestriping() throws Exception {
+        // Each of two stripes read its first segment and got the first two records of it committed.
+        for (int stripe = 0; stripe < 2; stripe++) {
+            CommitLogSourceTask task = start(stripe, 2, 10);
+            List<SourceRecord> records = task.poll();
+            assertEquals(3, records.size());
+            commit(records.get(1));
+            task.stop();
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (int stripe = 0; stripe < 3; stripe++) {
+            keys.addAll(readAll(start(stripe, 3, 10)));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(key(1, 2), key(2, 2), key(3, 0), key(3, 1), key(3, 2), key(4, 0),
+                key(4, 1), key(4, 2))), keys);
+    }
+
+    @Test
+    public void pollsSegmentsInBatches() throws Exception {
+        CommitLogSourceTask task = start(0, 1, 10, 2);
+        try {
+            List<Integer> sizes = new ArrayList<>();
+            for (List<SourceRecord> records = task.poll(); records != null; records = task.poll()) {
+                sizes.add(records.size());
+            }
+            // A batch does not span segments.
+            assertEquals(Arrays.asList(2, 1, 2, 1, 2, 1, 2, 1), sizes);
+        } finally {
+            task.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void stopWakesUpWaitingPoll() throws Exception {
+        directory = folder.newFolder("empty").toPath();
+        CommitLogSourceTask task = start(0, 1, 60000);
+        Thread poller = new Thread(() -> {
+            try {
+                // The first poll returns once the directory was found empty, the second one waits for the next scan.
+                task.poll();
+                task.poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        poller.start();
+        Thread.sleep(200);
+        task.stop();
+        poller.join(5000);
+        assertFalse(poller.isAlive());
+    }
+
+    private CommitLogSourceTask start(int stripe, int stripes, long pollIntervalMs) {
+        return start(stripe, stripes, pollIntervalMs, 1000);
+    }
+
+    private CommitLogSourceTask start(int stripe, int stripes, long pollIntervalMs, int batchSize) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(CommitLogSourceConnector.CDC_RAW_DIRECTORY, directory.toString());
+        properties.put(CommitLogSourceConnector.KEYSPACE, KEYSPACE);
+        properties.put(CommitLogSourceConnector.TABLE, table.cfName);
+        properties.put(CommitLogSourceConnector.TOPIC, "events");
+        properties.put(CommitLogSourceConnector.POLL_INTERVAL_MS, Long.toString(pollIntervalMs));
+        properties.put(CommitLogSourceConnector.STRIPE, Integer.toString(stripe));
+        properties.put(CommitLogSourceConnector.STRIPES, Integer.toString(stripes));
+        properties.put(CommitLogSourceConnector.BATCH_SIZE, Integer.toString(batchSize));
+        // Tables of the test are registered in the local schema only, so none are loaded from disk.
+        CommitLogSourceTask task = new CommitLogSourceTask(new SchemaProvider(Collections.emptyMap(),
+                Collections.emptySet()));
+        task.initialize(() -> new CommittedOffsets());
+        task.start(properties);
+        return task;
+    }
+
+    /**
+     * Polls until the task has nothing left to read, stops it and returns keys of the polled records.
+     */
+    private Set<String> readAll(CommitLogSourceTask task) throws InterruptedException {
+        Set<String> keys = new HashSet<>();
+        for (List<SourceRecord> records = task.poll(); records != null; records = task.poll()) {
+            for (SourceRecord record : records) {
+                keys.add((String) record.key());
+            }
+        }
+        task.stop();
+        return keys;
+    }
+
+    private void commit(SourceRecord record) {
+        committed.put(record.sourcePartition(), new HashMap<>(record.sourceOffset()));
+    }
+
+    private static String key(long segmentId, int mutation) {
+        return "k-" + segmentId + "-" + mutation;
+    }
+
+    private final class CommittedOffsets implements OffsetStorageReader {
+        @Override
+        public <T> Map<String, Object> offset(Map<String, T> partition) {
+            return committed.get(partition);
+        }
+
+        @Override
+        public <T> Map<Map<String, T>, Map<String, Object>> offsets(Collection<Map<String, T>> partitions) {
+            Map<Map<String, T>, Map<String, Object>> offsets = new HashMap<>();
+            for (Map<String, T> partition : partitions) {
+                offsets.put(partition, committed.get(partition));
+            }
+            return offsets;
+        }
+    }
+}
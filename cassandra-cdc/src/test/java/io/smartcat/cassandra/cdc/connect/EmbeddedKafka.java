@@ -0,0 +1,65 @@
+package io.smartcat.cassandra.cdc.connect;
+
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServerStartable;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * A single Kafka broker with its own ZooKeeper, both listening on free local ports and keeping their data in a
+ * temporary directory which is deleted on close.
+ */
+public final class EmbeddedKafka implements Closeable {
+
+    private final Path directory;
+    private final ServerCnxnFactory zookeeper;
+    private final KafkaServerStartable broker;
+    private final String bootstrapServers;
+
+    public EmbeddedKafka() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("kafka");
+        ZooKeeperServer server = new ZooKeeperServer(directory.resolve("zookeeper").toFile(),
+                directory.resolve("zookeeper").toFile(), 500);
+        zookeeper = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 16);
+        zookeeper.startup(server);
+
+        int port = freePort();
+        Properties properties = new Properties();
+        properties.put("broker.id", "0");
+        properties.put("zookeeper.connect", "127.0.0.1:" + zookeeper.getLocalPort());
+        properties.put("listeners", "PLAINTEXT://127.0.0.1:" + port);
+        properties.put("log.dirs", directory.resolve("logs").toString());
+        properties.put("offsets.topic.replication.factor", "1");
+        properties.put("num.partitions", "1");
+        broker = new KafkaServerStartable(KafkaConfig.fromProps(properties));
+        broker.startup();
+        bootstrapServers = "127.0.0.1:" + port;
+    }
+
+    public String bootstrapServers() {
+        return bootstrapServers;
+    }
+
+    @Override
+    public void close() {
+        broker.shutdown();
+        broker.awaitShutdown();
+        zookeeper.shutdown();
+        FileUtils.deleteRecursive(directory.toFile());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.ClusteringPrefix;
+import org.apache.cassandra.db.PartitionColumns;
+import org.apache.cassandra.db.context.CounterContext;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.AsciiType;
+import org.apache.cassandra.db.marshal.BooleanType;
+import org.apache.cassandra.db.marshal.ByteType;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.db.marshal.CounterColumnType;
+import org.apache.cassandra.db.marshal.DoubleType;
+import org.apache.cassandra.db.marshal.FloatType;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.LongType;
+import org.apache.cassandra.db.marshal.ReversedType;
+import org.apache.cassandra.db.marshal.ShortType;
+import org.apache.cassandra.db.marshal.TimestampType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.db.partitions.Partition;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.ComplexColumnData;
+import org.apache.cassandra.db.rows.RangeTombstoneMarker;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.Unfiltered;
+import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes partitions as Avro binary records. A schema is derived once per table, with a typed field for every
+ * partition key, clustering, regular and static column, and cell values are written straight from their serialized
+ * form. Counters are written as the total of their shards. Static cells are only part of schemas of tables having
+ * static columns. Collection and user type columns hold their elements, and whether the column was overwritten as a
+ * whole, which drops elements written before.
+ * Every event starts with the Avro single object encoding header, so consumers can find the writer schema by its
+ * fingerprint. Derived schemas are logged when they are created.
+ * <p>
+ * With a large value policy, text, blob and collection element values get a {@code LargeValue} alternative holding
+ * the size of a large value and either its truncated prefix or its SHA-256 digest.
+ */
+public class AvroPartitionEncoder implements PartitionEncoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvroPartitionEncoder.class);
+
+    private static final byte[] SINGLE_OBJECT_MAGIC = {(byte) 0xC3, (byte) 0x01};
+
+    private static final int NULL_INDEX = 0;
+    private static final int TOMBSTONE_INDEX = 1;
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    private final ConcurrentMap<UUID, TableSchema> schemas = new ConcurrentHashMap<>();
+    private final LargeValuePolicy largeValues;
+
+    public AvroPartitionEncoder() {
+        this(LargeValuePolicy.NONE);
+    }
+
+    public AvroPartitionEncoder(LargeValuePolicy largeValues) {
+        this.largeValues = largeValues;
+    }
+
+    @Override
+    public byte[] encode(Partition partition) {
+        return encode(partition, null);
+    }
+
+    /**
+     * Encodes the partition with a schema which contains only the projected regular and static columns.
+     */
+    @Override
+    public byte[] encode(Partition partition, Set<String> columns) {
+        TableSchema table = schema(partition.metadata(), columns);
+        Output output = OUTPUT.get();
+        output.stream.reset();
+        BinaryEncoder out = output.encoder;
+        try {
+            output.stream.write(table.header);
+            writeKey(out, table, partition.partitionKey().getKey());
+            out.writeBoolean(!partition.partitionLevelDeletion().isLive());
+            UnfilteredRowIterator it = partition.unfilteredIterator();
+            if (table.statics.length > 0) {
+                writeStaticRow(out, table, it.staticRow());
+            }
+            List<RangeTombstoneMarker> markers = Collections.emptyList();
+            out.writeArrayStart();
+            while (it.hasNext()) {
+                Unfiltered unfiltered = it.next();
+                if (unfiltered.isRow()) {
+                    out.setItemCount(1);
+                    out.startItem();
+                    writeRow(out, table, (Row) unfiltered);
+                } else {
+                    if (markers.isEmpty()) {
+                        markers = new ArrayList<>();
+                    }
+                    markers.add((RangeTombstoneMarker) unfiltered);
+                }
+            }
+            out.writeArrayEnd();
+            out.writeArrayStart();
+            out.setItemCount(markers.size());
+            for (RangeTombstoneMarker marker : markers) {
+                out.startItem();
+                writeMarker(out, marker);
+            }
+            out.writeArrayEnd();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            // The stream only grows, so one which grew past the limit is dropped and allocated again on next use.
+            if (output.stream.size() > PartitionEncoders.MAX_RETAINED_CAPACITY) {
+                OUTPUT.remove();
+            }
+        }
+        return output.stream.toByteArray();
+    }
+
+    /**
+     * Returns the schema events of the given table are written with.
+     */
+    public Schema schemaOf(CFMetaData metadata) {
+        return schema(metadata, null).schema;
+    }
+
+    /**
+     * Returns the schema events of the given table are written with when only the given columns are projected.
+     */
+    public Schema schemaOf(CFMetaData metadata, Set<String> columns) {
+        return schema(metadata, columns).schema;
+    }
+
+    private TableSchema schema(CFMetaData metadata, Set<String> projection) {
+        TableSchema table = schemas.get(metadata.cfId);
+        // Altering a table replaces its partition columns, which invalidates the cached schema.
+        if (table == null || table.columns != metadata.partitionColumns()
+                || !Objects.equals(table.projection, projection)) {
+            table = new TableSchema(metadata, projection, largeValues != LargeValuePolicy.NONE);
+            schemas.put(metadata.cfId, table);
+            LOGGER.info("Derived schema {} for {}.{}: {}", Long.toHexString(table.fingerprint), metadata.ksName,
+                    metadata.cfName, table.schema);
+        }
+        return table;
+    }
+
+    private void writeKey(BinaryEncoder out, TableSchema table, ByteBuffer key) throws IOException {
+        if (table.partitionKey.length == 1) {
+            writeNullable(out, table.partitionKey[0], key);
+            return;
+        }
+        ByteBuffer[] components = ((CompositeType) table.keyValidator).split(key);
+        for (int i = 0; i < table.partitionKey.length; i++) {
+            writeNullable(out, table.partitionKey[i], components[i]);
+        }
+    }
+
+    private void writeRow(BinaryEncoder out, TableSchema table, Row row) throws IOException {
+        ClusteringPrefix clustering = row.clustering();
+        for (int i = 0; i < table.clustering.length; i++) {
+            writeNullable(out, table.clustering[i], clustering.get(i));
+        }
+        out.writeBoolean(!row.deletion().isLive());
+        writeCells(out, table.regularColumns, table.regulars, row);
+    }
+
+    private void writeStaticRow(BinaryEncoder out, TableSchema table, Row row) throws IOException {
+        if (row.isEmpty()) {
+            out.writeIndex(NULL_INDEX);
+            return;
+        }
+        out.writeIndex(NULL_INDEX + 1);
+        writeCells(out, table.staticColumns, table.statics, row);
+    }
+
+    private void writeCells(BinaryEncoder out, ColumnDefinition[] columns, ValueType[] types, Row row)
+            throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            ColumnDefinition column = columns[i];
+            if (column.isComplex()) {
+                writeComplex(out, row.getComplexColumnData(column));
+            } else {
+                writeCell(out, types[i], row.getCell(column));
+            }
+        }
+    }
+
+    private void writeCell(BinaryEncoder out, ValueType type, Cell cell) throws IOException {
+        if (cell == null) {
+            out.writeIndex(NULL_INDEX);
+        } else if (cell.isTombstone()) {
+            out.writeIndex(TOMBSTONE_INDEX);
+            out.writeEnum(0);
+        } else if (!cell.value().hasRemaining() && type.fixedSize) {
+            out.writeIndex(NULL_INDEX);
+        } else if (!type.fixedSize && largeValues.isLarge(cell.value())) {
+            out.writeIndex(TOMBSTONE_INDEX + 2);
+            writeLargeValue(out, cell.value(), type == ValueType.STRING);
+        } else {
+            out.writeIndex(TOMBSTONE_INDEX + 1);
+            type.write(out, cell.value());
+        }
+    }
+
+    /**
+     * Writes a collection or user type column. A column deleted as a whole is a tombstone, one overwritten as a whole
+     * is marked as replaced and holds its new elements.
+     */
+    private void writeComplex(BinaryEncoder out, ComplexColumnData data) throws IOException {
+        if (data == null) {
+            out.writeIndex(NULL_INDEX);
+            return;
+        }
+        if (data.cellsCount() == 0) {
+            out.writeIndex(TOMBSTONE_INDEX);
+            out.writeEnum(0);
+            return;
+        }
+        out.writeIndex(TOMBSTONE_INDEX + 1);
+        out.writeBoolean(!data.complexDeletion().isLive());
+        out.writeArrayStart();
+        out.setItemCount(data.cellsCount());
+        for (Cell cell : data) {
+            out.startItem();
+            writeBuffer(out, cell.path().get(0));
+            if (cell.isTombstone()) {
+                out.writeIndex(NULL_INDEX);
+            } else if (largeValues.isLarge(cell.value())) {
+                out.writeIndex(NULL_INDEX + 2);
+                writeLargeValue(out, cell.value(), false);
+            } else {
+                out.writeIndex(NULL_INDEX + 1);
+                writeBuffer(out, cell.value());
+            }
+        }
+        out.writeArrayEnd();
+    }
+
+    private void writeLargeValue(BinaryEncoder out, ByteBuffer value, boolean utf8) throws IOException {
+        out.writeLong(value.remaining());
+        if (largeValues.mode() == LargeValuePolicy.Mode.TRUNCATE) {
+            writeBuffer(out, largeValues.truncate(value, utf8));
+            writeBuffer(out, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+        } else {
+            writeBuffer(out, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+            out.writeBytes(largeValues.digest(value));
+        }
+        out.writeBoolean(largeValues.mode() == LargeValuePolicy.Mode.OFFLOAD);
+    }
+
+    private void writeMarker(BinaryEncoder out, RangeTombstoneMarker marker) throws IOException {
+        ClusteringPrefix bound = marker.clustering();
+        out.writeEnum(bound.kind().ordinal());
+        out.writeArrayStart();
+        out.setItemCount(bound.size());
+        for (int i = 0; i < bound.size(); i++) {
+            out.startItem();
+            writeBuffer(out, bound.get(i));
+        }
+        out.writeArrayEnd();
+    }
+
+    private static void writeNullable(BinaryEncoder out, ValueType type, ByteBuffer value) throws IOException {
+        if (value == null || (!value.hasRemaining() && type.fixedSize)) {
+            out.writeIndex(NULL_INDEX);
+        } else {
+            out.writeIndex(NULL_INDEX + 1);
+            type.write(out, value);
+        }
+    }
+
+    private static void writeBuffer(BinaryEncoder out, ByteBuffer value) throws IOException {
+        // Values are shared with Cassandra, so their position must not move.
+        if (value.hasArray()) {
+            out.writeBytes(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            out.writeBytes(value.duplicate());
+        }
+    }
+
+    /**
+     * Avro representation of a CQL type. Types without a natural Avro counterpart keep their CQL serialized form.
+     */
+    private enum ValueType {
+        BOOLEAN(Schema.Type.BOOLEAN, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeBoolean(value.get(value.position()) != 0);
+            }
+        },
+        BYTE(Schema.Type.INT, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeInt(value.get(value.position()));
+            }
+        },
+        SHORT(Schema.Type.INT, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeInt(value.getShort(value.position()));
+            }
+        },
+        INT(Schema.Type.INT, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeInt(value.getInt(value.position()));
+            }
+        },
+        LONG(Schema.Type.LONG, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeLong(value.getLong(value.position()));
+            }
+        },
+        // Counter cells hold a context of per-node shards rather than a number.
+        COUNTER(Schema.Type.LONG, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeLong(CounterContext.instance().total(value));
+            }
+        },
+        FLOAT(Schema.Type.FLOAT, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeFloat(value.getFloat(value.position()));
+            }
+        },
+        DOUBLE(Schema.Type.DOUBLE, true) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                out.writeDouble(value.getDouble(value.position()));
+            }
+        },
+        // Avro strings are length prefixed UTF-8, exactly like bytes, so text is copied without decoding.
+        STRING(Schema.Type.STRING, false) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                writeBuffer(out, value);
+            }
+        },
+        BYTES(Schema.Type.BYTES, false) {
+            @Override
+            void write(BinaryEncoder out, ByteBuffer value) throws IOException {
+                writeBuffer(out, value);
+            }
+        };
+
+        private final Schema.Type avroType;
+        private final boolean fixedSize;
+
+        ValueType(Schema.Type avroType, boolean fixedSize) {
+            this.avroType = avroType;
+            this.fixedSize = fixedSize;
+        }
+
+        abstract void write(BinaryEncoder out, ByteBuffer value) throws IOException;
+
+        static ValueType of(AbstractType<?> type) {
+            AbstractType<?> base = type instanceof ReversedType ? ((ReversedType<?>) type).baseType : type;
+            if (base instanceof BooleanType) {
+                return BOOLEAN;
+            } else if (base instanceof ByteType) {
+                return BYTE;
+            } else if (base instanceof ShortType) {
+                return SHORT;
+            } else if (base instanceof Int32Type) {
+                return INT;
+            } else if (base instanceof LongType || base instanceof TimestampType) {
+                return LONG;
+            } else if (base instanceof CounterColumnType) {
+                return COUNTER;
+            } else if (base instanceof FloatType) {
+                return FLOAT;
+            } else if (base instanceof DoubleType) {
+                return DOUBLE;
+            } else if (base instanceof UTF8Type || base instanceof AsciiType) {
+                return STRING;
+            }
+            return BYTES;
+        }
+    }
+
+    private static final class TableSchema {
+        private final PartitionColumns columns;
+        private final Set<String> projection;
+        private final AbstractType<?> keyValidator;
+        private final ValueType[] partitionKey;
+        private final ValueType[] clustering;
+        private final ColumnDefinition[] regularColumns;
+        private final ValueType[] regulars;
+        private final ColumnDefinition[] staticColumns;
+        private final ValueType[] statics;
+        private final Schema schema;
+        private final long fingerprint;
+        private final byte[] header;
+
+        private TableSchema(CFMetaData metadata, Set<String> projection, boolean largeValues) {
+            this.columns = metadata.partitionColumns();
+            this.projection = projection;
+            this.keyValidator = metadata.getKeyValidator();
+            // Nested types live in a namespace named after the table's record, so no table name can clash with them.
+            String tableNamespace = "io.smartcat.cassandra." + avroName(metadata.ksName);
+            String namespace = tableNamespace + "." + avroName(metadata.cfName);
+            Schema tombstone = Schema.createEnum("Tombstone", null, namespace, Collections.singletonList("DELETED"));
+
+            List<Schema.Field> keyFields = new ArrayList<>();
+            partitionKey = fields(metadata.partitionKeyColumns(), keyFields);
+            List<Schema.Field> clusteringFields = new ArrayList<>();
+            clustering = fields(metadata.clusteringColumns(), clusteringFields);
+
+            regularColumns = toArray(columns.regulars, projection);
+            regulars = new ValueType[regularColumns.length];
+            staticColumns = toArray(columns.statics, projection);
+            statics = new ValueType[staticColumns.length];
+            Schema largeValue = Schema.createRecord("LargeValue", null, namespace, false, Arrays.asList(
+                    new Schema.Field("size", Schema.create(Schema.Type.LONG), null, (Object) null),
+                    new Schema.Field("prefix", Schema.create(Schema.Type.BYTES), null, (Object) null),
+                    new Schema.Field("sha256", Schema.create(Schema.Type.BYTES), null, (Object) null),
+                    new Schema.Field("offloaded", Schema.create(Schema.Type.BOOLEAN), null, (Object) null)));
+            List<Schema> elementValue = new ArrayList<>(Arrays.asList(Schema.create(Schema.Type.NULL),
+                    Schema.create(Schema.Type.BYTES)));
+            if (largeValues) {
+                elementValue.add(largeValue);
+            }
+            Schema element = Schema.createRecord("Element", null, namespace, false, Arrays.asList(
+                    new Schema.Field("path", Schema.create(Schema.Type.BYTES), null, (Object) null),
+                    new Schema.Field("value", Schema.createUnion(elementValue), null, (Object) null)));
+            Schema complex = Schema.createRecord("Complex", null, namespace, false, Arrays.asList(
+                    new Schema.Field("replaced", Schema.create(Schema.Type.BOOLEAN), null, (Object) null),
+                    new Schema.Field("elements", Schema.createArray(element), null, (Object) null)));
+            Schema nullableLargeValue = largeValues ? largeValue : null;
+            List<Schema.Field> cellFields = cellFields(regularColumns, regulars, tombstone, complex,
+                    nullableLargeValue);
+
+            Schema row = Schema.createRecord("Row", null, namespace, false, Arrays.asList(
+                    new Schema.Field("clustering", Schema.createRecord("Clustering", null, namespace, false,
+                            clusteringFields), null, (Object) null),
+                    new Schema.Field("deleted", Schema.create(Schema.Type.BOOLEAN), null, (Object) null),
+                    new Schema.Field("cells", Schema.createRecord("Cells", null, namespace, false, cellFields),
+                            null, (Object) null)));
+            List<String> kinds = new ArrayList<>();
+            for (ClusteringPrefix.Kind kind : ClusteringPrefix.Kind.values()) {
+                kinds.add(kind.name());
+            }
+            Schema bound = Schema.createRecord("Bound", null, namespace, false, Arrays.asList(
+                    new Schema.Field("kind", Schema.createEnum("Kind", null, namespace, kinds), null, (Object) null),
+                    new Schema.Field("clustering", Schema.createArray(Schema.create(Schema.Type.BYTES)), null,
+                            (Object) null)));
+            List<Schema.Field> fields = new ArrayList<>(Arrays.asList(
+                    new Schema.Field("key", Schema.createRecord("Key", null, namespace, false, keyFields), null,
+                            (Object) null),
+                    new Schema.Field("partitionDeleted", Schema.create(Schema.Type.BOOLEAN), null, (Object) null)));
+            if (staticColumns.length > 0) {
+                fields.add(new Schema.Field("staticCells", nullable(Schema.createRecord("StaticCells", null,
+                        namespace, false, cellFields(staticColumns, statics, tombstone, complex, nullableLargeValue))),
+                        null, (Object) null));
+            }
+            fields.add(new Schema.Field("rows", Schema.createArray(row), null, (Object) null));
+            fields.add(new Schema.Field("rangeTombstones", Schema.createArray(bound), null, (Object) null));
+            schema = Schema.createRecord(avroName(metadata.cfName), null, tableNamespace, false, fields);
+
+            fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+            header = ByteBuffer.allocate(SINGLE_OBJECT_MAGIC.length + Long.BYTES)
+                    .put(SINGLE_OBJECT_MAGIC).order(ByteOrder.LITTLE_ENDIAN).putLong(fingerprint).array();
+        }
+
+        /**
+         * Creates a field per column and fills in the value types of the columns. The large value alternative is
+         * only added when it is not null.
+         */
+        private static List<Schema.Field> cellFields(ColumnDefinition[] columns, ValueType[] types, Schema tombstone,
+                Schema complex, Schema largeValue) {
+            List<Schema.Field> fields = new ArrayList<>();
+            for (int i = 0; i < columns.length; i++) {
+                ColumnDefinition column = columns[i];
+                Schema value;
+                if (column.isComplex()) {
+                    types[i] = ValueType.BYTES;
+                    value = complex;
+                } else {
+                    types[i] = ValueType.of(column.type);
+                    value = Schema.create(types[i].avroType);
+                }
+                List<Schema> alternatives = new ArrayList<>(Arrays.asList(Schema.create(Schema.Type.NULL), tombstone,
+                        value));
+                if (largeValue != null && !column.isComplex() && !types[i].fixedSize) {
+                    alternatives.add(largeValue);
+                }
+                fields.add(field(column, Schema.createUnion(alternatives)));
+            }
+            return fields;
+        }
+
+        private static ValueType[] fields(List<ColumnDefinition> columns, List<Schema.Field> fields) {
+            ValueType[] types = new ValueType[columns.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = ValueType.of(columns.get(i).type);
+                fields.add(field(columns.get(i), nullable(Schema.create(types[i].avroType))));
+            }
+            return types;
+        }
+
+        private static Schema.Field field(ColumnDefinition column, Schema schema) {
+            Schema.Field field = new Schema.Field(avroName(column.name.toString()), schema, null, (Object) null);
+            field.addProp("cql_type", column.type.asCQL3Type().toString());
+            return field;
+        }
+
+        private static Schema nullable(Schema schema) {
+            return Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), schema));
+        }
+
+        private static ColumnDefinition[] toArray(Iterable<ColumnDefinition> columns, Set<String> projection) {
+            List<ColumnDefinition> list = new ArrayList<>();
+            for (ColumnDefinition column : columns) {
+                if (projection == null || projection.contains(column.name.toString())) {
+                    list.add(column);
+                }
+            }
+            return list.toArray(new ColumnDefinition[list.size()]);
+        }
+
+        private static String avroName(String name) {
+            StringBuilder builder = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                boolean valid = Character.isLetter(c) || c == '_' || (i > 0 && Character.isDigit(c));
+                builder.append(valid && c < 128 ? c : '_');
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final class Output {
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream(4096);
+        private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(stream, null);
+    }
+}
@@ -0,0 +1,271 @@
+package io.smartcat.cassandra.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer JSON is written into as UTF-8. Strings are escaped exactly like json-simple escapes them,
+ * so the output is byte-identical to {@code JSONObject.toJSONString().getBytes(UTF_8)}.
+ */
+final class JsonOutput {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOWER_HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final int initialCapacity;
+    private byte[] buffer;
+    private int length;
+
+    JsonOutput(int capacity) {
+        initialCapacity = capacity;
+        buffer = new byte[capacity];
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    /**
+     * Empties the buffer and replaces it with one of the initial capacity if it grew beyond the given capacity.
+     */
+    void reset(int maxCapacity) {
+        length = 0;
+        if (buffer.length > maxCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void write(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Writes the decimal digits of the number, the way {@link Long#toString(long)} renders it.
+     */
+    void writeNumber(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(LONG_MIN_VALUE);
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Writes the number as a quoted JSON string.
+     */
+    void writeQuotedNumber(long value) {
+        write('"');
+        writeNumber(value);
+        write('"');
+    }
+
+    /**
+     * Writes the bytes as a quoted string of lower case hex digits.
+     */
+    void writeHexString(ByteBuffer value) {
+        ensureCapacity(value.remaining() * 2 + 2);
+        buffer[length++] = '"';
+        for (int i = value.position(); i < value.limit(); i++) {
+            int b = value.get(i) & 0xFF;
+            buffer[length++] = LOWER_HEX[b >> 4];
+            buffer[length++] = LOWER_HEX[b & 0xF];
+        }
+        buffer[length++] = '"';
+    }
+
+    /**
+     * Writes the UUID as a quoted string, the way {@link java.util.UUID#toString()} renders it.
+     */
+    void writeUuid(long mostSignificantBits, long leastSignificantBits) {
+        ensureCapacity(38);
+        buffer[length++] = '"';
+        writeHexDigits(mostSignificantBits >>> 32, 8);
+        buffer[length++] = '-';
+        writeHexDigits(mostSignificantBits >>> 16, 4);
+        buffer[length++] = '-';
+        writeHexDigits(mostSignificantBits, 4);
+        buffer[length++] = '-';
+        writeHexDigits(leastSignificantBits >>> 48, 4);
+        buffer[length++] = '-';
+        writeHexDigits(leastSignificantBits, 12);
+        buffer[length++] = '"';
+    }
+
+    private void writeHexDigits(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = LOWER_HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        length += digits;
+    }
+
+    /**
+     * Copies the content into the target array and returns the position right after it.
+     */
+    int copyTo(byte[] target, int position) {
+        System.arraycopy(buffer, 0, target, position, length);
+        return position + length;
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string.
+     */
+    void writeString(String value) {
+        if (value == null) {
+            write(NULL);
+            return;
+        }
+        ensureCapacity(value.length() + 2);
+        buffer[length++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                writeAscii(c);
+            } else if (escaped(c)) {
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensureCapacity(4);
+                buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced the same way String.getBytes(UTF_8) replaces them.
+                write('?');
+            } else {
+                ensureCapacity(3);
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        write('"');
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string straight from valid UTF-8 bytes, without decoding them.
+     */
+    void writeUtf8String(ByteBuffer value) {
+        int end = value.limit();
+        ensureCapacity(value.remaining() + 2);
+        buffer[length++] = '"';
+        for (int i = value.position(); i < end; i++) {
+            int b = value.get(i) & 0xFF;
+            if (b < 0x80) {
+                writeAscii((char) b);
+            } else if (b == 0xC2 && i + 1 < end && (value.get(i + 1) & 0xFF) <= 0x9F) {
+                // U+0080 - U+009F
+                writeUnicodeEscape((char) (value.get(++i) & 0xFF));
+            } else if (b == 0xE2 && i + 2 < end && (value.get(i + 1) & 0xFF) <= 0x83) {
+                // U+2000 - U+20FF
+                writeUnicodeEscape((char) (0x2000 | ((value.get(i + 1) & 0x3F) << 6) | (value.get(i + 2) & 0x3F)));
+                i += 2;
+            } else {
+                write(b);
+            }
+        }
+        write('"');
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void writeAscii(char c) {
+        switch (c) {
+            case '"':
+                writeEscape('"');
+                break;
+            case '\\':
+                writeEscape('\\');
+                break;
+            case '\b':
+                writeEscape('b');
+                break;
+            case '\f':
+                writeEscape('f');
+                break;
+            case '\n':
+                writeEscape('n');
+                break;
+            case '\r':
+                writeEscape('r');
+                break;
+            case '\t':
+                writeEscape('t');
+                break;
+            case '/':
+                writeEscape('/');
+                break;
+            default:
+                if (escaped(c)) {
+                    writeUnicodeEscape(c);
+                } else {
+                    write(c);
+                }
+        }
+    }
+
+    private void writeEscape(char c) {
+        ensureCapacity(2);
+        buffer[length++] = '\\';
+        buffer[length++] = (byte) c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[length++] = '\\';
+        buffer[length++] = 'u';
+        buffer[length++] = HEX[(c >> 12) & 0xF];
+        buffer[length++] = HEX[(c >> 8) & 0xF];
+        buffer[length++] = HEX[(c >> 4) & 0xF];
+        buffer[length++] = HEX[c & 0xF];
+    }
+
+    private static boolean escaped(char c) {
+        return c <= 0x1F || (c >= 0x7F && c <= 0x9F) || (c >= 0x2000 && c <= 0x20FF);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+}
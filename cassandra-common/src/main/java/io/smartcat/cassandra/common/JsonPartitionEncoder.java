@@ -0,0 +1,420 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.ClusteringPrefix;
+import org.apache.cassandra.db.context.CounterContext;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.AsciiType;
+import org.apache.cassandra.db.marshal.BooleanType;
+import org.apache.cassandra.db.marshal.ByteType;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.db.marshal.CounterColumnType;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.ListType;
+import org.apache.cassandra.db.marshal.LongType;
+import org.apache.cassandra.db.marshal.MapType;
+import org.apache.cassandra.db.marshal.ReversedType;
+import org.apache.cassandra.db.marshal.SetType;
+import org.apache.cassandra.db.marshal.ShortType;
+import org.apache.cassandra.db.marshal.TimeUUIDType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.db.marshal.UUIDType;
+import org.apache.cassandra.db.marshal.UserType;
+import org.apache.cassandra.db.partitions.Partition;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.ColumnData;
+import org.apache.cassandra.db.rows.ComplexColumnData;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.Unfiltered;
+import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Hex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Encodes partitions as UTF-8 JSON documents. The partition is walked once and JSON is streamed into reusable
+ * per-thread buffers. Text, integer, boolean, blob and uuid values are written straight from their serialized form,
+ * while clustering keys and values of other types are rendered through {@link AbstractType#getString}. Documents are
+ * byte-identical to the ones previously built with json-simple, including its {@code HashMap} key order, except for
+ * the encoding of collections, user types, static cells and counters, which json-simple documents got wrong.
+ * <p>
+ * Collections and user types are written as one entry per column with an {@code elements} array holding an entry
+ * per element, map key or field. Values above the threshold of the large value policy are written as a truncated
+ * {@code value} with {@code truncated} and {@code size}, or as {@code sha256} and {@code size} instead of the value.
+ * <p>
+ * Static cells are written as the first row, marked with {@code static} instead of a clustering key. Counters are
+ * written as the total of their shards.
+ */
+public class JsonPartitionEncoder implements PartitionEncoder {
+
+    private static final byte[] ROW_DELETED = ascii("\"rowDeleted\":true");
+    private static final byte[] ROW_RANGE_DELETED = ascii("\"rowRangeDeleted\":true");
+    private static final byte[] START = ascii("\"start\":");
+    private static final byte[] END = ascii("\"end\":");
+    private static final byte[] PARTITION_DELETED = ascii("\"partitionDeleted\":true");
+    private static final byte[] ROWS = ascii("\"rows\":[");
+    private static final byte[] KEY = ascii("\"key\":");
+    private static final byte[] CELLS = ascii("{\"cells\":[");
+    private static final byte[] CELLS_END_CLUSTERING_KEY = ascii("],\"clusteringKey\":");
+    private static final byte[] CLUSTERING_KEY = ascii("{\"clusteringKey\":");
+    private static final byte[] CELLS_END_STATIC = ascii("],\"static\":true}");
+    private static final byte[] DELETED_NAME = ascii("{\"deleted\":true,\"name\":");
+    private static final byte[] NAME = ascii("{\"name\":");
+    private static final byte[] VALUE = ascii("\"value\":");
+    private static final byte[] ELEMENTS = ascii(",\"elements\":[");
+    private static final byte[] REPLACED = ascii(",\"replaced\":true");
+    private static final byte[] ELEMENT_KEY = ascii("{\"key\":");
+    private static final byte[] ELEMENT_VALUE = ascii("{\"value\":");
+    private static final byte[] DELETED_KEY = ascii("{\"deleted\":true,\"key\":");
+    private static final byte[] DELETED_VALUE = ascii("{\"deleted\":true,\"value\":");
+    private static final byte[] DELETED = ascii("{\"deleted\":true}");
+    private static final byte[] TRUNCATED = ascii(",\"truncated\":true,\"size\":");
+    private static final byte[] SHA_256 = ascii("\"sha256\":");
+    private static final byte[] SIZE = ascii(",\"size\":");
+    private static final byte[] OFFLOADED = ascii(",\"offloaded\":true");
+    private static final byte[] INCLUSIVE_TRUE = ascii("{\"inclusive\":true,\"clusteringKey\":");
+    private static final byte[] INCLUSIVE_FALSE = ascii("{\"inclusive\":false,\"clusteringKey\":");
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final LargeValuePolicy largeValues;
+
+    public JsonPartitionEncoder() {
+        this(LargeValuePolicy.NONE);
+    }
+
+    public JsonPartitionEncoder(LargeValuePolicy largeValues) {
+        this.largeValues = largeValues;
+    }
+
+    @Override
+    public byte[] encode(Partition partition) {
+        return encode(partition, null);
+    }
+
+    @Override
+    public byte[] encode(Partition partition, Set<String> columns) {
+        Buffers buffers = BUFFERS.get();
+        buffers.reset();
+        CFMetaData metadata = partition.metadata();
+        writeString(buffers.key, metadata.getKeyValidator(), partition.partitionKey().getKey());
+
+        boolean partitionDeleted = partition.partitionLevelDeletion().markedForDeleteAt() > Long.MIN_VALUE;
+        boolean rowDeleted = false;
+        boolean rowRangeDeleted = false;
+        if (!partitionDeleted) {
+            JsonOutput rows = buffers.rows;
+            rows.write(ROWS);
+            boolean firstRow = true;
+            UnfilteredRowIterator it = partition.unfilteredIterator();
+            Row staticRow = it.staticRow();
+            if (!staticRow.isEmpty()) {
+                firstRow = false;
+                rows.write(CELLS);
+                writeCells(rows, staticRow, columns);
+                rows.write(CELLS_END_STATIC);
+            }
+            while (it.hasNext()) {
+                Unfiltered un = it.next();
+                if (un.isRow()) {
+                    if (!firstRow) {
+                        rows.write(',');
+                    }
+                    firstRow = false;
+                    Row row = (Row) un;
+                    if (row.deletion().time().markedForDeleteAt() > Long.MIN_VALUE) {
+                        rowDeleted = true;
+                        rows.write(CLUSTERING_KEY);
+                        rows.writeString(row.clustering().toCQLString(metadata));
+                    } else {
+                        rows.write(CELLS);
+                        writeCells(rows, row, columns);
+                        rows.write(CELLS_END_CLUSTERING_KEY);
+                        rows.writeString(row.clustering().toCQLString(metadata));
+                    }
+                    rows.write('}');
+                } else if (un.isRangeTombstoneMarker()) {
+                    rowRangeDeleted = true;
+                    ClusteringPrefix bound = un.clustering();
+                    JsonOutput bounds = bound.kind().isStart() ? buffers.start : buffers.end;
+                    bounds.reset();
+                    writeBound(bounds, metadata, bound);
+                }
+            }
+            rows.write(']');
+        }
+        byte[] document = assemble(buffers, partitionDeleted, rowDeleted, rowRangeDeleted);
+        buffers.reset();
+        return document;
+    }
+
+    /**
+     * Writes cells of the row, one entry per column. Cells of columns outside of the projection are skipped without
+     * decoding their values.
+     */
+    private void writeCells(JsonOutput out, Row row, Set<String> projection) {
+        boolean first = true;
+        for (ColumnData data : row) {
+            ColumnDefinition column = data.column();
+            if (projection != null && !projection.contains(column.name.toString())) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (column.isComplex()) {
+                writeComplex(out, (ComplexColumnData) data);
+                continue;
+            }
+            Cell cell = (Cell) data;
+            if (cell.isTombstone()) {
+                out.write(DELETED_NAME);
+                out.writeString(column.name.toString());
+            } else {
+                out.write(NAME);
+                out.writeString(column.name.toString());
+                out.write(',');
+                writeValue(out, column.type, cell.value());
+            }
+            out.write('}');
+        }
+    }
+
+    /**
+     * Writes a collection or user type column. A column deleted as a whole has no elements, one overwritten as a
+     * whole is marked as replaced and lists its new elements.
+     */
+    private void writeComplex(JsonOutput out, ComplexColumnData data) {
+        String name = data.column().name.toString();
+        if (!data.hasCells()) {
+            out.write(DELETED_NAME);
+            out.writeString(name);
+            out.write('}');
+            return;
+        }
+        out.write(NAME);
+        out.writeString(name);
+        if (!data.complexDeletion().isLive()) {
+            out.write(REPLACED);
+        }
+        out.write(ELEMENTS);
+        AbstractType<?> type = data.column().type;
+        boolean first = true;
+        for (Cell cell : data) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeElement(out, type, cell);
+        }
+        out.write(']');
+        out.write('}');
+    }
+
+    /**
+     * Writes a map entry or a user type field as key and value, and a set or list element as value only. Deleted
+     * elements are written without their value, except set elements which are identified by it.
+     */
+    private void writeElement(JsonOutput out, AbstractType<?> type, Cell cell) {
+        ByteBuffer path = cell.path().get(0);
+        boolean deleted = cell.isTombstone();
+        if (type instanceof SetType) {
+            // Set elements are the paths of their cells, which have empty values.
+            out.write(deleted ? DELETED_VALUE : ELEMENT_VALUE);
+            writeString(out, ((SetType<?>) type).getElementsType(), path);
+        } else if (type instanceof MapType || type instanceof UserType) {
+            out.write(deleted ? DELETED_KEY : ELEMENT_KEY);
+            if (type instanceof MapType) {
+                writeString(out, ((MapType<?, ?>) type).getKeysType(), path);
+            } else {
+                out.writeString(((UserType) type).fieldNameAsString(ByteBufferUtil.toShort(path)));
+            }
+            if (!deleted) {
+                out.write(',');
+                writeValue(out, elementType(type, path), cell.value());
+            }
+        } else if (deleted) {
+            // List elements are addressed by time-based ids, which mean nothing to consumers.
+            out.write(DELETED);
+            return;
+        } else {
+            out.write('{');
+            writeValue(out, elementType(type, path), cell.value());
+        }
+        out.write('}');
+    }
+
+    private static AbstractType<?> elementType(AbstractType<?> type, ByteBuffer path) {
+        if (type instanceof MapType) {
+            return ((MapType<?, ?>) type).getValuesType();
+        } else if (type instanceof UserType) {
+            return ((UserType) type).fieldType(ByteBufferUtil.toShort(path));
+        } else if (type instanceof ListType) {
+            return ((ListType<?>) type).getElementsType();
+        }
+        return BytesType.instance;
+    }
+
+    /**
+     * Writes the value field, or what the large value policy replaces it with.
+     */
+    private void writeValue(JsonOutput out, AbstractType<?> type, ByteBuffer value) {
+        if (!largeValues.isLarge(value)) {
+            out.write(VALUE);
+            writeString(out, type, value);
+            return;
+        }
+        boolean text = type == UTF8Type.instance || type == AsciiType.instance;
+        if (largeValues.mode() == LargeValuePolicy.Mode.TRUNCATE && (text || type == BytesType.instance)) {
+            out.write(VALUE);
+            writeString(out, type, largeValues.truncate(value, text));
+            out.write(TRUNCATED);
+            out.writeNumber(value.remaining());
+            return;
+        }
+        // Truncated values of other types cannot be rendered, so they are hashed instead.
+        out.write(SHA_256);
+        out.writeString(Hex.bytesToHex(largeValues.digest(value)));
+        out.write(SIZE);
+        out.writeNumber(value.remaining());
+        if (largeValues.mode() == LargeValuePolicy.Mode.OFFLOAD) {
+            out.write(OFFLOADED);
+        }
+    }
+
+    private void writeBound(JsonOutput out, CFMetaData metadata, ClusteringPrefix bound) {
+        out.write('[');
+        for (int i = 0; i < bound.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (i == bound.size() - 1) {
+                boolean inclusive = bound.kind().isEnd()
+                        ? bound.kind() == ClusteringPrefix.Kind.INCL_END_BOUND
+                        : bound.kind() == ClusteringPrefix.Kind.INCL_START_BOUND;
+                out.write(inclusive ? INCLUSIVE_TRUE : INCLUSIVE_FALSE);
+            } else {
+                out.write(CLUSTERING_KEY);
+            }
+            writeString(out, metadata.comparator.subtype(i), bound.get(i));
+            out.write('}');
+        }
+        out.write(']');
+    }
+
+    /**
+     * Joins the parts of the document in the order json-simple's {@code HashMap} iterates their keys.
+     */
+    private byte[] assemble(Buffers buffers, boolean partitionDeleted, boolean rowDeleted, boolean rowRangeDeleted) {
+        boolean start = buffers.start.length() > 0;
+        boolean end = buffers.end.length() > 0;
+        int size = 2 + KEY.length + buffers.key.length();
+        size += rowDeleted ? ROW_DELETED.length + 1 : 0;
+        size += rowRangeDeleted ? ROW_RANGE_DELETED.length + 1 : 0;
+        size += start ? START.length + buffers.start.length() + 1 : 0;
+        size += end ? END.length + buffers.end.length() + 1 : 0;
+        size += partitionDeleted ? PARTITION_DELETED.length + 1 : buffers.rows.length() + 1;
+
+        byte[] document = new byte[size];
+        int position = 0;
+        document[position++] = '{';
+        if (rowDeleted) {
+            position = put(document, position, ROW_DELETED);
+            document[position++] = ',';
+        }
+        if (rowRangeDeleted) {
+            position = put(document, position, ROW_RANGE_DELETED);
+            document[position++] = ',';
+        }
+        if (start) {
+            position = buffers.start.copyTo(document, put(document, position, START));
+            document[position++] = ',';
+        }
+        if (end) {
+            position = buffers.end.copyTo(document, put(document, position, END));
+            document[position++] = ',';
+        }
+        if (partitionDeleted) {
+            position = put(document, position, PARTITION_DELETED);
+        } else {
+            position = buffers.rows.copyTo(document, position);
+        }
+        document[position++] = ',';
+        position = buffers.key.copyTo(document, put(document, position, KEY));
+        document[position] = '}';
+        return document;
+    }
+
+    private static int put(byte[] document, int position, byte[] part) {
+        System.arraycopy(part, 0, document, position, part.length);
+        return position + part.length;
+    }
+
+    private static void writeString(JsonOutput out, AbstractType<?> type, ByteBuffer value) {
+        AbstractType<?> base = type instanceof ReversedType ? ((ReversedType<?>) type).baseType : type;
+        if (base == UTF8Type.instance || base == AsciiType.instance) {
+            out.writeUtf8String(value);
+        } else if (base instanceof CounterColumnType) {
+            // Counter cells hold a context of per-node shards, which getString would render as hex.
+            out.writeQuotedNumber(CounterContext.instance().total(value));
+        } else if (!writeSerialized(out, base, value)) {
+            out.writeString(type.getString(value));
+        }
+    }
+
+    /**
+     * Writes a value of an integer, boolean, blob or uuid type exactly like getString renders it, without creating
+     * the string. Returns false for values of other types.
+     */
+    private static boolean writeSerialized(JsonOutput out, AbstractType<?> type, ByteBuffer value) {
+        if (type == BytesType.instance) {
+            out.writeHexString(value);
+            return true;
+        }
+        if (type != Int32Type.instance && type != LongType.instance && type != ShortType.instance
+                && type != ByteType.instance && type != BooleanType.instance && type != UUIDType.instance
+                && type != TimeUUIDType.instance) {
+            return false;
+        }
+        int position = value.position();
+        if (!value.hasRemaining()) {
+            out.writeString("");
+        } else if (type == Int32Type.instance) {
+            out.writeQuotedNumber(value.getInt(position));
+        } else if (type == LongType.instance) {
+            out.writeQuotedNumber(value.getLong(position));
+        } else if (type == ShortType.instance) {
+            out.writeQuotedNumber(value.getShort(position));
+        } else if (type == ByteType.instance) {
+            out.writeQuotedNumber(value.get(position));
+        } else if (type == BooleanType.instance) {
+            out.writeString(value.get(position) != 0 ? "true" : "false");
+        } else {
+            out.writeUuid(value.getLong(position), value.getLong(position + 8));
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class Buffers {
+        private final JsonOutput key = new JsonOutput(64);
+        private final JsonOutput rows = new JsonOutput(4096);
+        private final JsonOutput start = new JsonOutput(64);
+        private final JsonOutput end = new JsonOutput(64);
+
+        private void reset() {
+            key.reset(PartitionEncoders.MAX_RETAINED_CAPACITY);
+            rows.reset(PartitionEncoders.MAX_RETAINED_CAPACITY);
+            start.reset(PartitionEncoders.MAX_RETAINED_CAPACITY);
+            end.reset(PartitionEncoders.MAX_RETAINED_CAPACITY);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.smartcat.cassandra.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.partitions.Partition;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Token;
+
+/**
+ * How the partition key of a published partition becomes the key of its Kafka record.
+ */
+public enum KeyFormat {
+    /** Partition key rendered as a string by the key validator, UTF-8 encoded. */
+    STRING {
+        @Override
+        public byte[] serialize(Partition partition) {
+            String key = partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey());
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+    },
+    /**
+     * Murmur3 token of the partition as 8 big-endian bytes, followed by the serialized partition key exactly as
+     * Cassandra stores it. {@link TokenRangePartitioner} maps the token to a Kafka partition.
+     */
+    TOKEN {
+        @Override
+        public byte[] serialize(Partition partition) {
+            DecoratedKey key = partition.partitionKey();
+            Token token = key.getToken();
+            if (!(token instanceof Murmur3Partitioner.LongToken)) {
+                throw new IllegalStateException("Token keys require Murmur3Partitioner, got " + token.getClass());
+            }
+            ByteBuffer bytes = key.getKey();
+            byte[] serialized = new byte[Long.BYTES + bytes.remaining()];
+            ByteBuffer.wrap(serialized).putLong((Long) token.getTokenValue()).put(bytes.duplicate());
+            return serialized;
+        }
+    };
+
+    public abstract byte[] serialize(Partition partition);
+
+    public static KeyFormat of(String name) {
+        return name == null ? STRING : valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
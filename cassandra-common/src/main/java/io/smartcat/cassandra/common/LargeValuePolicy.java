@@ -0,0 +1,141 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.utils.Hex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Decides what encoders do with cell values larger than a threshold, so a multi-megabyte blob neither makes an event
+ * too large for Kafka nor gets rendered into an equally large string. Large values are truncated, replaced by their
+ * SHA-256 digest, or replaced by the digest after being offloaded to a local content-addressed store, where they are
+ * kept under {@code <directory>/<first two hex digits of the digest>/<digest>}.
+ */
+public final class LargeValuePolicy {
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 64 * 1024;
+
+    public static final LargeValuePolicy NONE = new LargeValuePolicy(Mode.NONE, Integer.MAX_VALUE, null);
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public enum Mode {
+        NONE, TRUNCATE, HASH, OFFLOAD
+    }
+
+    private final Mode mode;
+    private final int thresholdBytes;
+    private final Path directory;
+
+    private LargeValuePolicy(Mode mode, int thresholdBytes, Path directory) {
+        this.mode = mode;
+        this.thresholdBytes = thresholdBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates the policy by its name: none, the default, truncate, hash or offload. Offloading needs a directory.
+     */
+    public static LargeValuePolicy create(String mode, int thresholdBytes, String directory) {
+        Mode parsed;
+        try {
+            parsed = mode == null ? Mode.NONE : Mode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown large value policy: " + mode, e);
+        }
+        if (parsed == Mode.NONE) {
+            return NONE;
+        }
+        if (thresholdBytes <= 0) {
+            throw new IllegalArgumentException("Large value threshold must be positive: " + thresholdBytes);
+        }
+        if (parsed == Mode.OFFLOAD && directory == null) {
+            throw new IllegalArgumentException("Offloading large values needs a directory.");
+        }
+        return new LargeValuePolicy(parsed, thresholdBytes, directory == null ? null : Paths.get(directory));
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public boolean isLarge(ByteBuffer value) {
+        return value.remaining() > thresholdBytes;
+    }
+
+    /**
+     * Returns the first threshold bytes of a large value. Text is cut before the character crossing the threshold.
+     */
+    public ByteBuffer truncate(ByteBuffer value, boolean utf8) {
+        int length = thresholdBytes;
+        while (utf8 && length > 0 && (value.get(value.position() + length) & 0xC0) == 0x80) {
+            length--;
+        }
+        ByteBuffer prefix = value.duplicate();
+        prefix.limit(prefix.position() + length);
+        return prefix;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the value, storing the value first when offloading. The value's position does
+     * not move.
+     */
+    public byte[] digest(ByteBuffer value) {
+        MessageDigest sha256 = SHA_256.get();
+        sha256.update(value.duplicate());
+        byte[] digest = sha256.digest();
+        if (mode == Mode.OFFLOAD) {
+            store(value, Hex.bytesToHex(digest));
+        }
+        return digest;
+    }
+
+    /**
+     * Writes the value under its digest unless it is already stored. Values are synced before they are visible
+     * under their final name, so a published reference never points to a partial file.
+     */
+    private void store(ByteBuffer value, String name) {
+        Path file = directory.resolve(name.substring(0, 2)).resolve(name);
+        if (Files.exists(file)) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temporary = Files.createTempFile(file.getParent(), name, ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer content = value.duplicate();
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                channel.force(false);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new UncheckedIOException("Unable to offload value " + name + " to " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.db.partitions.Partition;
+
+import java.util.Set;
+
+/**
+ * Encodes a partition update into the value of a published event.
+ */
+public interface PartitionEncoder {
+
+    byte[] encode(Partition partition);
+
+    /**
+     * Encodes only cells of the given regular and static columns, or all of them when columns is null. Encoders
+     * which do not support projection encode all columns.
+     */
+    default byte[] encode(Partition partition, Set<String> columns) {
+        return encode(partition);
+    }
+}
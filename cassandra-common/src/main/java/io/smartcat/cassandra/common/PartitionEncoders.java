@@ -0,0 +1,38 @@
+package io.smartcat.cassandra.common;
+
+/**
+ * Creates encoders by their short name, or by class name for custom implementations.
+ */
+public final class PartitionEncoders {
+
+    public static final String JSON = "json";
+    public static final String AVRO = "avro";
+
+    // Buffers which grew beyond this while encoding a large partition are not kept for the next one, since encoding
+    // runs on Cassandra's mutation threads in the trigger and every one of them would keep the largest ever seen.
+    static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private PartitionEncoders() {
+    }
+
+    public static PartitionEncoder create(String name) {
+        return create(name, LargeValuePolicy.NONE);
+    }
+
+    /**
+     * Creates the encoder with the given policy for large values. Custom encoders are created without it.
+     */
+    public static PartitionEncoder create(String name, LargeValuePolicy largeValues) {
+        if (name == null || JSON.equals(name)) {
+            return new JsonPartitionEncoder(largeValues);
+        }
+        if (AVRO.equals(name)) {
+            return new AvroPartitionEncoder(largeValues);
+        }
+        try {
+            return (PartitionEncoder) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown encoder: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package io.smartcat.cassandra.common;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of a pipeline publishing partitions to Kafka, exposed over JMX in the given domain. Recording is a few
+ * counter updates per event plus a sample in the exponentially decaying reservoirs of the latency timers, which
+ * allocate a small entry per sample and take a lock when rescaling, cheap enough to stay on in production.
+ * Metrics which only some pipelines record, like read mutations, are registered by them through
+ * {@link #meter(String)}.
+ */
+public class PipelineMetrics implements AutoCloseable {
+
+    // Reporter per domain, so metrics created again in a domain, e.g. by a reloaded trigger, replace the old ones.
+    // Guarded by itself.
+    private static final Map<String, JmxReporter> REPORTERS = new HashMap<>();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final String domain;
+    private final JmxReporter reporter;
+    private final Meter partitions = registry.meter("partitions");
+    private final Meter encodedBytes = registry.meter("encoded-bytes");
+    private final Meter failedSends = registry.meter("failed-sends");
+    private final Timer encodeLatency = registry.timer("encode-latency");
+    private final Timer ackLatency = registry.timer("ack-latency");
+
+    public PipelineMetrics(String domain) {
+        this.domain = domain;
+        reporter = JmxReporter.forRegistry(registry).inDomain(domain).build();
+        // The previous reporter unregisters its MBeans before the new one registers the same names.
+        synchronized (REPORTERS) {
+            JmxReporter previous = REPORTERS.get(domain);
+            if (previous != null) {
+                previous.stop();
+            }
+            reporter.start();
+            REPORTERS.put(domain, reporter);
+        }
+    }
+
+    /**
+     * Records a partition which was encoded into the given number of bytes, starting at the given nano time.
+     */
+    public void encoded(int bytes, long startNanos) {
+        encodeLatency.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        partitions.mark();
+        encodedBytes.mark(bytes);
+    }
+
+    /**
+     * Records an event acknowledged by Kafka which was sent at the given nano time.
+     */
+    public void acknowledged(long sentNanos) {
+        ackLatency.update(System.nanoTime() - sentNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void failedSend() {
+        failedSends.mark();
+    }
+
+    public Meter meter(String name) {
+        return registry.meter(name);
+    }
+
+    public <T> void register(String name, Gauge<T> gauge) {
+        registry.register(name, gauge);
+    }
+
+    /**
+     * Unregisters the metrics from JMX, unless they were already replaced by newer metrics of the domain.
+     */
+    @Override
+    public void close() {
+        synchronized (REPORTERS) {
+            if (REPORTERS.remove(domain, reporter)) {
+                reporter.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.smartcat.cassandra.common;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.config.ConfigException;
+
+/**
+ * Kafka partitioner for records keyed in the {@link KeyFormat#TOKEN} format. The Murmur3 token range is split into
+ * as many contiguous ranges as the topic has partitions, so every partition holds a token range of the ring and the
+ * token is not hashed again. The first 8 bytes of every key are taken as the token, so the token key format is a
+ * hard requirement: the producer configuration has to hold {@code key.format: token}, which is checked when the
+ * partitioner is configured. Records without a key are partitioned the way Kafka partitions them by default.
+ */
+public class TokenRangePartitioner implements Partitioner {
+
+    /**
+     * Producer configuration entry holding the key format of the records.
+     */
+    public static final String KEY_FORMAT_CONFIG = "key.format";
+
+    private final DefaultPartitioner fallback = new DefaultPartitioner();
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object format = configs.get(KEY_FORMAT_CONFIG);
+        if (format == null || KeyFormat.of(format.toString()) != KeyFormat.TOKEN) {
+            throw new ConfigException(KEY_FORMAT_CONFIG, format, TokenRangePartitioner.class.getSimpleName()
+                    + " needs records keyed in the token format.");
+        }
+        fallback.configure(configs);
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes,
+            Cluster cluster) {
+        if (keyBytes == null) {
+            return fallback.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        }
+        if (keyBytes.length < Long.BYTES) {
+            throw new IllegalArgumentException("Record key of " + keyBytes.length + " bytes is not a token key.");
+        }
+        return partition(ByteBuffer.wrap(keyBytes).getLong(), cluster.partitionsForTopic(topic).size());
+    }
+
+    /**
+     * Returns the partition of the token range the token falls into, ranges keep the order of tokens.
+     */
+    public static int partition(long token, int partitions) {
+        // Offset from the minimum token, the upper 32 bits of it are enough to pick one of at most 2^31 ranges.
+        long offset = (token ^ Long.MIN_VALUE) >>> 32;
+        return (int) ((offset * partitions) >>> 32);
+    }
+
+    @Override
+    public void close() {
+        fallback.close();
+    }
+}
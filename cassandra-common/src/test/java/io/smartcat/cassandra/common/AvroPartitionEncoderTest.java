@@ -0,0 +1,149 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AvroPartitionEncoderTest {
+
+    private static final int HEADER_LENGTH = 10;
+
+    private final AvroPartitionEncoder encoder = new AvroPartitionEncoder();
+
+    @Test
+    public void encodesCountersAsTotalOfTheirShards() throws IOException {
+        CFMetaData table = TestTables.table("CREATE TABLE counts (k text PRIMARY KEY, c counter)");
+
+        GenericRecord event = decode(table, encoder.encode(TestTables.counterUpdate(table, "a", 40, 2)));
+
+        assertEquals(42L, cells(event, 0).get("c"));
+        assertEquals("long", encoder.schemaOf(table).getField("rows").schema().getElementType().getField("cells")
+                .schema().getField("c").schema().getTypes().get(2).getName());
+    }
+
+    @Test
+    public void encodesStaticCells() throws IOException {
+        CFMetaData table = TestTables.table(
+                "CREATE TABLE statics (k text, c int, s text static, v text, PRIMARY KEY (k, c))");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        builder.row().add("s", "shared");
+        builder.row(1).add("v", "x");
+
+        GenericRecord event = decode(table, encoder.encode(builder.build()));
+
+        assertEquals("shared", ((GenericRecord) event.get("staticCells")).get("s").toString());
+        assertEquals("x", cells(event, 0).get("v").toString());
+    }
+
+    @Test
+    public void writesNoStaticCellsWhenOnlyRowsAreUpdated() throws IOException {
+        CFMetaData table = TestTables.table(
+                "CREATE TABLE statics (k text, c int, s text static, v text, PRIMARY KEY (k, c))");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        builder.row(1).add("v", "x");
+
+        assertNull(decode(table, encoder.encode(builder.build())).get("staticCells"));
+    }
+
+    @Test
+    public void flagsCollectionsOverwrittenAsAWhole() throws IOException {
+        CFMetaData table = TestTables.table("CREATE TABLE tags (k text PRIMARY KEY, m map<text, text>)");
+        PartitionUpdate.SimpleBuilder replaced = PartitionUpdate.simpleBuilder(table, "a").timestamp(2);
+        replaced.row().add("m", Collections.singletonMap("x", "1"));
+        PartitionUpdate.SimpleBuilder appended = PartitionUpdate.simpleBuilder(table, "a").timestamp(2);
+        appended.row().appendAll("m", Collections.singletonMap("x", "1"));
+
+        GenericRecord replacedColumn = column(decode(table, encoder.encode(replaced.build())), "m");
+        GenericRecord appendedColumn = column(decode(table, encoder.encode(appended.build())), "m");
+
+        assertTrue((Boolean) replacedColumn.get("replaced"));
+        assertEquals(1, ((List<?>) replacedColumn.get("elements")).size());
+        assertFalse((Boolean) appendedColumn.get("replaced"));
+        assertEquals(1, ((List<?>) appendedColumn.get("elements")).size());
+    }
+
+    @Test
+    public void writesClearedCollectionsAsTombstones() throws IOException {
+        CFMetaData table = TestTables.table("CREATE TABLE tags (k text PRIMARY KEY, m map<text, text>)");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "a").timestamp(2);
+        builder.row().add("m", null);
+
+        assertEquals("DELETED", cells(decode(table, encoder.encode(builder.build())), 0).get("m").toString());
+    }
+
+    @Test
+    public void encodesPartitionsFollowingOneLargerThanTheRetainedBuffer() throws IOException {
+        CFMetaData table = TestTables.table("CREATE TABLE large (k text PRIMARY KEY, v text)");
+        char[] value = new char[2 * PartitionEncoders.MAX_RETAINED_CAPACITY];
+        Arrays.fill(value, 'x');
+        PartitionUpdate.SimpleBuilder large = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        large.row().add("v", new String(value));
+        PartitionUpdate.SimpleBuilder small = PartitionUpdate.simpleBuilder(table, "b").timestamp(1);
+        small.row().add("v", "y");
+
+        assertEquals(value.length, ((CharSequence) cells(decode(table, encoder.encode(large.build())), 0).get("v"))
+                .length());
+        assertEquals("y", cells(decode(table, encoder.encode(small.build())), 0).get("v").toString());
+    }
+
+    @Test
+    public void leavesStaticCellsOutOfSchemasOfTablesWithoutStaticColumns() {
+        CFMetaData table = TestTables.table("CREATE TABLE plain (k text PRIMARY KEY, v text)");
+
+        assertNull(encoder.schemaOf(table).getField("staticCells"));
+    }
+
+    @Test
+    public void reusesSchemaForEqualProjections() {
+        CFMetaData table = TestTables.table("CREATE TABLE projected (k text PRIMARY KEY, v text, w text)");
+
+        Schema schema = encoder.schemaOf(table, new HashSet<>(Arrays.asList("v")));
+
+        assertSame(schema, encoder.schemaOf(table, new HashSet<>(Arrays.asList("v"))));
+        assertNull(schema.getField("rows").schema().getElementType().getField("cells").schema().getField("w"));
+    }
+
+    @Test
+    public void keepsTablesNamedLikeNestedTypesApart() throws IOException {
+        CFMetaData table = TestTables.table("CREATE TABLE \"Row\" (k text, c int, s text static, v text, "
+                + "PRIMARY KEY (k, c))");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        builder.row(1).add("v", "x");
+
+        Schema schema = encoder.schemaOf(table);
+
+        assertEquals("io.smartcat.cassandra.test.Row", schema.getFullName());
+        assertEquals(schema, new Schema.Parser().parse(schema.toString()));
+        assertEquals("x", cells(decode(table, encoder.encode(builder.build())), 0).get("v").toString());
+    }
+
+    private GenericRecord decode(CFMetaData table, byte[] event) throws IOException {
+        return new GenericDatumReader<GenericRecord>(encoder.schemaOf(table)).read(null,
+                DecoderFactory.get().binaryDecoder(event, HEADER_LENGTH, event.length - HEADER_LENGTH, null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GenericRecord cells(GenericRecord event, int row) {
+        return (GenericRecord) ((List<GenericRecord>) event.get("rows")).get(row).get("cells");
+    }
+
+    private static GenericRecord column(GenericRecord event, String name) {
+        return (GenericRecord) cells(event, 0).get(name);
+    }
+}
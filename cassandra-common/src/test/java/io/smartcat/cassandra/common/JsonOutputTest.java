@@ -0,0 +1,136 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.utils.Hex;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonOutputTest {
+
+    private final JsonOutput out = new JsonOutput(1);
+
+    @Test
+    public void escapesEveryCharacterLikeJsonSimple() {
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            String value = "a" + c + "b";
+            assertEscaped(value);
+            if (!Character.isSurrogate(c)) {
+                assertUtf8Escaped(value);
+            }
+        }
+    }
+
+    @Test
+    public void escapesSupplementaryAndUnpairedSurrogatesLikeJsonSimple() {
+        assertEscaped("😀𐏿");
+        assertUtf8Escaped("😀𐏿");
+        assertEscaped("\ud800");
+        assertEscaped("x\udc00y");
+        assertEscaped("\ude00\ud83d");
+        assertEscaped("end\ud83d");
+    }
+
+    @Test
+    public void dropsBufferWhichGrewBeyondRetainedCapacity() {
+        JsonOutput output = new JsonOutput(16);
+        output.write(new byte[100]);
+        output.reset(1024);
+        assertEquals(0, output.length());
+        assertTrue(output.capacity() >= 100);
+
+        output.write(new byte[4096]);
+        output.reset(1024);
+        assertEquals(0, output.length());
+        assertEquals(16, output.capacity());
+        output.writeString("a");
+        assertEquals("\"a\"", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writesNullAndEmptyStrings() {
+        out.writeString(null);
+        out.write(',');
+        out.writeString("");
+        out.write(',');
+        out.writeUtf8String(ByteBuffer.allocate(0));
+        assertEquals("null,\"\",\"\"", written());
+    }
+
+    @Test
+    public void writesUtf8StringsFromTheirPosition() {
+        ByteBuffer value = ByteBuffer.wrap("skippedé\"/".getBytes(StandardCharsets.UTF_8));
+        value.position(7);
+        out.writeUtf8String(value);
+        assertEquals("\"é\\\"\\/\"", written());
+        assertEquals(7, value.position());
+    }
+
+    @Test
+    public void writesNumbersLikeLongToString() {
+        long[] numbers = {0, 1, -1, 9, 10, -10, 99, 100, 12345678901L, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long number : numbers) {
+            out.reset();
+            out.writeNumber(number);
+            assertEquals(Long.toString(number), written());
+            out.reset();
+            out.writeQuotedNumber(number);
+            assertEquals('"' + Long.toString(number) + '"', written());
+        }
+    }
+
+    @Test
+    public void writesHexStringsLikeCassandra() {
+        ByteBuffer value = ByteBuffer.wrap(new byte[]{0, 1, 0x7f, (byte) 0x80, (byte) 0xab, (byte) 0xff});
+        out.writeHexString(value);
+        assertEquals('"' + Hex.bytesToHex(value.array()) + '"', written());
+    }
+
+    @Test
+    public void writesUuidsLikeUuidToString() {
+        UUID[] uuids = {new UUID(0, 0), new UUID(-1, -1), UUID.fromString("123e4567-e89b-12d3-a456-426655440000"),
+                UUID.randomUUID()};
+        for (UUID uuid : uuids) {
+            out.reset();
+            out.writeUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            assertEquals('"' + uuid.toString() + '"', written());
+        }
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            value.append((char) ('a' + i % 26)).append('€');
+        }
+        assertEscaped(value.toString());
+        assertUtf8Escaped(value.toString());
+    }
+
+    private void assertEscaped(String value) {
+        out.reset();
+        out.writeString(value);
+        assertArrayEquals(value, jsonSimple(value), out.toByteArray());
+    }
+
+    private void assertUtf8Escaped(String value) {
+        out.reset();
+        out.writeUtf8String(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+        assertArrayEquals(value, jsonSimple(value), out.toByteArray());
+    }
+
+    private static byte[] jsonSimple(String value) {
+        return ('"' + JSONValue.escape(value) + '"').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String written() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
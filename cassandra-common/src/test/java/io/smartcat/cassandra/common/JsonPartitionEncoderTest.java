@@ -0,0 +1,132 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.UUIDGen;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JsonPartitionEncoderTest {
+
+    private static final String TRICKY = "quote \" backslash \\ slash / \b\f\n\r\t \u0000\u0001\u001f \u007f "
+            + "\u0080\u0085\u009f \u00a0\u00e9 \u2000\u2028\u20ac\u20ff \u2100\u65e5\u672c \ud83d\ude00 end";
+
+    private static final String ALL_TYPES = "CREATE TABLE all_types (k text, c text, t text, a ascii, i int, "
+            + "b bigint, s smallint, y tinyint, f float, d double, bo boolean, bl blob, u uuid, tu timeuuid, "
+            + "ts timestamp, fm frozen<map<text, int>>, fl frozen<list<text>>, fs frozen<set<int>>, "
+            + "PRIMARY KEY (k, c))";
+
+    private final JsonPartitionEncoder encoder = new JsonPartitionEncoder();
+    private final JsonSimplePartitionEncoder reference = new JsonSimplePartitionEncoder();
+
+    @Test
+    public void matchesJsonSimpleForValuesOfAllTypes() {
+        CFMetaData table = TestTables.table(ALL_TYPES);
+        Map<String, Integer> map = new HashMap<>();
+        map.put(TRICKY, 1);
+        map.put("b", -2);
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, TRICKY).timestamp(1);
+        builder.row(TRICKY)
+                .add("t", TRICKY)
+                .add("a", "ascii \" / \\ \t \u007f")
+                .add("i", Integer.MIN_VALUE)
+                .add("b", Long.MIN_VALUE)
+                .add("s", (short) -12)
+                .add("y", (byte) 7)
+                .add("f", 1.5e-10f)
+                .add("d", -0.0)
+                .add("bo", true)
+                .add("bl", ByteBufferUtil.bytes(TRICKY))
+                .add("u", UUID.fromString("00000000-0000-0001-ffff-ffffffffffff"))
+                .add("tu", UUIDGen.getTimeUUID())
+                .add("ts", new Date(1500000000123L))
+                .add("fm", map)
+                .add("fl", Arrays.asList(TRICKY, ""))
+                .add("fs", Collections.singleton(Integer.MAX_VALUE));
+        builder.row("second").add("i", 0).add("b", Long.MAX_VALUE).add("bo", false).add("t", "");
+
+        assertMatchesJsonSimple(builder.build());
+    }
+
+    @Test
+    public void matchesJsonSimpleForEmptyValuesAndTombstones() {
+        CFMetaData table = TestTables.table(ALL_TYPES);
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "k").timestamp(1);
+        builder.row("c")
+                .add("t", null)
+                .add("i", ByteBufferUtil.EMPTY_BYTE_BUFFER)
+                .add("b", ByteBufferUtil.EMPTY_BYTE_BUFFER)
+                .add("bo", ByteBufferUtil.EMPTY_BYTE_BUFFER)
+                .add("u", ByteBufferUtil.EMPTY_BYTE_BUFFER)
+                .add("bl", ByteBufferUtil.EMPTY_BYTE_BUFFER)
+                .add("fm", null);
+
+        assertMatchesJsonSimple(builder.build());
+    }
+
+    @Test
+    public void matchesJsonSimpleForDeletions() {
+        CFMetaData table = TestTables.table(ALL_TYPES);
+        PartitionUpdate.SimpleBuilder rows = PartitionUpdate.simpleBuilder(table, "k").timestamp(1);
+        rows.row("deleted").delete();
+        rows.addRangeTombstone().start("a").end("m\"").exclEnd();
+        assertMatchesJsonSimple(rows.build());
+
+        PartitionUpdate.SimpleBuilder partition = PartitionUpdate.simpleBuilder(table, "k").timestamp(1);
+        partition.delete();
+        assertMatchesJsonSimple(partition.build());
+    }
+
+    @Test
+    public void matchesJsonSimpleForCompositeKeysAndReversedClustering() {
+        CFMetaData table = TestTables.table("CREATE TABLE composite (k1 int, k2 uuid, c1 int, c2 text, v blob, "
+                + "PRIMARY KEY ((k1, k2), c1, c2)) WITH CLUSTERING ORDER BY (c1 DESC, c2 ASC)");
+        UUID id = UUID.fromString("123e4567-e89b-12d3-a456-426655440000");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, -1, id).timestamp(1);
+        builder.row(3, TRICKY).add("v", ByteBufferUtil.bytes(1L));
+        builder.addRangeTombstone().start(2).end(1).inclStart().inclEnd();
+
+        assertMatchesJsonSimple(builder.build());
+    }
+
+    @Test
+    public void encodesCountersAsTotalOfTheirShards() {
+        CFMetaData table = TestTables.table("CREATE TABLE counts (k text PRIMARY KEY, c counter)");
+
+        assertEquals("{\"rows\":[{\"cells\":[{\"name\":\"c\",\"value\":\"42\"}],\"clusteringKey\":\"\"}],\"key\":\"a\"}",
+                encode(TestTables.counterUpdate(table, "a", 40, 2)));
+    }
+
+    @Test
+    public void encodesStaticCellsAsFirstRow() {
+        CFMetaData table = TestTables.table(
+                "CREATE TABLE statics (k text, c int, s text static, v text, PRIMARY KEY (k, c))");
+        PartitionUpdate.SimpleBuilder builder = PartitionUpdate.simpleBuilder(table, "a").timestamp(1);
+        builder.row(1).add("v", "x");
+        builder.row().add("s", "shared");
+
+        assertEquals("{\"rows\":[{\"cells\":[{\"name\":\"s\",\"value\":\"shared\"}],\"static\":true},"
+                + "{\"cells\":[{\"name\":\"v\",\"value\":\"x\"}],\"clusteringKey\":\"1\"}],\"key\":\"a\"}",
+                encode(builder.build()));
+    }
+
+    private void assertMatchesJsonSimple(PartitionUpdate update) {
+        assertEquals(new String(reference.encode(update), StandardCharsets.UTF_8), encode(update));
+        assertArrayEquals(reference.encode(update), encoder.encode(update));
+    }
+
+    private String encode(PartitionUpdate update) {
+        return new String(encoder.encode(update), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,101 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.ClusteringBound;
+import org.apache.cassandra.db.ClusteringPrefix;
+import org.apache.cassandra.db.partitions.Partition;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.Unfiltered;
+import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The json-simple based encoder {@link JsonPartitionEncoder} replaced, kept as reference for its output.
+ */
+final class JsonSimplePartitionEncoder implements PartitionEncoder {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Partition partition) {
+        String key = partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey());
+        JSONObject obj = new JSONObject();
+        obj.put("key", key);
+        if (partitionIsDeleted(partition)) {
+            obj.put("partitionDeleted", true);
+        } else {
+            UnfilteredRowIterator it = partition.unfilteredIterator();
+            List<JSONObject> rows = new ArrayList<>();
+            while (it.hasNext()) {
+                Unfiltered un = it.next();
+                if (un.isRow()) {
+                    JSONObject jsonRow = new JSONObject();
+                    Clustering clustering = (Clustering) un.clustering();
+                    String clusteringKey = clustering.toCQLString(partition.metadata());
+                    jsonRow.put("clusteringKey", clusteringKey);
+                    Row row = partition.getRow(clustering);
+
+                    if (rowIsDeleted(row)) {
+                        obj.put("rowDeleted", true);
+                    } else {
+                        Iterator<Cell> cells = row.cells().iterator();
+                        Iterator<ColumnDefinition> columns = row.columns().iterator();
+                        List<JSONObject> cellObjects = new ArrayList<>();
+                        while (cells.hasNext() && columns.hasNext()) {
+                            JSONObject jsonCell = new JSONObject();
+                            ColumnDefinition columnDef = columns.next();
+                            Cell cell = cells.next();
+                            jsonCell.put("name", columnDef.name.toString());
+                            if (cell.isTombstone()) {
+                                jsonCell.put("deleted", true);
+                            } else {
+                                String data = columnDef.type.getString(cell.value());
+                                jsonCell.put("value", data);
+                            }
+                            cellObjects.add(jsonCell);
+                        }
+                        jsonRow.put("cells", cellObjects);
+                    }
+                    rows.add(jsonRow);
+                } else if (un.isRangeTombstoneMarker()) {
+                    obj.put("rowRangeDeleted", true);
+                    ClusteringBound bound = (ClusteringBound) un.clustering();
+                    List<JSONObject> bounds = new ArrayList<>();
+                    for (int i = 0; i < bound.size(); i++) {
+                        String clusteringBound = partition.metadata().comparator.subtype(i).getString(bound.get(i));
+                        JSONObject boundObject = new JSONObject();
+                        boundObject.put("clusteringKey", clusteringBound);
+                        if (i == bound.size() - 1) {
+                            if (bound.kind().isStart()) {
+                                boundObject.put("inclusive",
+                                        bound.kind() == ClusteringPrefix.Kind.INCL_START_BOUND ? true : false);
+                            }
+                            if (bound.kind().isEnd()) {
+                                boundObject.put("inclusive",
+                                        bound.kind() == ClusteringPrefix.Kind.INCL_END_BOUND ? true : false);
+                            }
+                        }
+                        bounds.add(boundObject);
+                    }
+                    obj.put((bound.kind().isStart() ? "start" : "end"), bounds);
+                }
+            }
+            obj.put("rows", rows);
+        }
+        return obj.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean partitionIsDeleted(Partition partition) {
+        return partition.partitionLevelDeletion().markedForDeleteAt() > Long.MIN_VALUE;
+    }
+
+    private boolean rowIsDeleted(Row row) {
+        return row.deletion().time().markedForDeleteAt() > Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,61 @@
+package io.smartcat.cassandra.common;
+
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+public class PipelineMetricsTest {
+
+    private static final String DOMAIN = "io.smartcat.cassandra.common.test";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void replacesMetricsOfTheSameDomain() throws MalformedObjectNameException {
+        PipelineMetrics first = new PipelineMetrics(DOMAIN);
+        first.meter("reloaded");
+        assertEquals(1, registered("reloaded"));
+
+        PipelineMetrics second = new PipelineMetrics(DOMAIN);
+        assertEquals(0, registered("reloaded"));
+        assertEquals(1, registered("partitions"));
+
+        // Closing the replaced metrics leaves the new ones registered.
+        first.close();
+        assertEquals(1, registered("partitions"));
+
+        second.close();
+        assertEquals(0, registered("partitions"));
+    }
+
+    @Test
+    public void keepsMetricsOfTheNewestInstanceRegistered() throws JMException {
+        PipelineMetrics first = new PipelineMetrics(DOMAIN);
+        PipelineMetrics second = new PipelineMetrics(DOMAIN);
+        try {
+            for (String name : new String[] {"partitions", "encoded-bytes", "failed-sends", "encode-latency",
+                    "ack-latency"}) {
+                assertEquals(name, 1, registered(name));
+            }
+            // Registered MBeans report the metrics of the second instance.
+            second.failedSend();
+            first.failedSend();
+            first.failedSend();
+            assertEquals(1L, server.getAttribute(new ObjectName(DOMAIN + ":name=failed-sends"), "Count"));
+        } finally {
+            first.close();
+            second.close();
+        }
+        assertEquals(0, registered("partitions"));
+    }
+
+    private int registered(String name) throws MalformedObjectNameException {
+        return server.queryNames(new ObjectName(DOMAIN + ":name=" + name + ",*"), null).size();
+    }
+}
@@ -0,0 +1,46 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.context.CounterContext;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.cassandra.db.rows.BTreeRow;
+import org.apache.cassandra.db.rows.BufferCell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.CounterId;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds tables and partition updates of them without a running node.
+ */
+final class TestTables {
+
+    static {
+        DatabaseDescriptor.toolInitialization();
+    }
+
+    private TestTables() {
+    }
+
+    static CFMetaData table(String createTable) {
+        return CFMetaData.compile(createTable, "test");
+    }
+
+    /**
+     * Builds an update of counter column {@code c} holding one shard per given count, as a replica writes it.
+     */
+    static PartitionUpdate counterUpdate(CFMetaData table, String key, long... counts) {
+        CounterContext contexts = CounterContext.instance();
+        ByteBuffer context = contexts.createGlobal(CounterId.fromInt(0), 1, counts[0]);
+        for (int i = 1; i < counts.length; i++) {
+            context = contexts.merge(context, contexts.createGlobal(CounterId.fromInt(i), 1, counts[i]));
+        }
+        Row.Builder row = BTreeRow.unsortedBuilder(0);
+        row.newRow(Clustering.EMPTY);
+        row.addCell(BufferCell.live(table.getColumnDefinition(ByteBufferUtil.bytes("c")), 1, context));
+        return PartitionUpdate.singleRowUpdate(table, ByteBufferUtil.bytes(key), row.build());
+    }
+}
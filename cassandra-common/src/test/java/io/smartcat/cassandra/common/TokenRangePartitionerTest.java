@@ -0,0 +1,97 @@
+package io.smartcat.cassandra.common;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenRangePartitionerTest {
+
+    private static final String TOPIC = "events";
+
+    @Test
+    public void mapsRangeBoundariesToFirstAndLastPartition() {
+        assertEquals(0, TokenRangePartitioner.partition(Long.MIN_VALUE, 4));
+        assertEquals(3, TokenRangePartitioner.partition(Long.MAX_VALUE, 4));
+        assertEquals(0, TokenRangePartitioner.partition(Long.MIN_VALUE, 1));
+        assertEquals(0, TokenRangePartitioner.partition(Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    public void splitsTokenRangeIntoEqualContiguousRanges() {
+        // With four partitions every range spans a quarter of the ring, starting at the minimum token.
+        long quarter = 1L << 62;
+        for (int partition = 0; partition < 4; partition++) {
+            long first = Long.MIN_VALUE + partition * quarter;
+            long last = first + quarter - 1;
+            assertEquals(partition, TokenRangePartitioner.partition(first, 4));
+            assertEquals(partition, TokenRangePartitioner.partition(last, 4));
+        }
+        assertEquals(1, TokenRangePartitioner.partition(-1, 4));
+        assertEquals(2, TokenRangePartitioner.partition(0, 4));
+    }
+
+    @Test
+    public void keepsOrderOfTokens() {
+        int previous = 0;
+        for (long token = Long.MIN_VALUE; token < Long.MAX_VALUE - (1L << 56); token += 1L << 56) {
+            int partition = TokenRangePartitioner.partition(token, 7);
+            assertTrue(partition >= previous && partition < 7);
+            previous = partition;
+        }
+        assertEquals(6, previous);
+    }
+
+    @Test
+    public void partitionsTokenKeysByTheirToken() {
+        TokenRangePartitioner partitioner = configured("token");
+        byte[] key = ByteBuffer.allocate(Long.BYTES + 3).putLong(0).put(new byte[] {1, 2, 3}).array();
+        assertEquals(2, partitioner.partition(TOPIC, key, key, null, null, cluster(4)));
+        partitioner.close();
+    }
+
+    @Test(expected = ConfigException.class)
+    public void refusesStringKeyFormat() {
+        configured("string");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void refusesMissingKeyFormat() {
+        new TokenRangePartitioner().configure(Collections.emptyMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeysShorterThanAToken() {
+        byte[] key = {1, 2, 3};
+        configured("token").partition(TOPIC, key, key, null, null, cluster(4));
+    }
+
+    private static TokenRangePartitioner configured(String keyFormat) {
+        Map<String, Object> configs = new HashMap<>();
+        configs.put(TokenRangePartitioner.KEY_FORMAT_CONFIG, keyFormat);
+        TokenRangePartitioner partitioner = new TokenRangePartitioner();
+        partitioner.configure(configs);
+        return partitioner;
+    }
+
+    private static Cluster cluster(int partitions) {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> infos = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            infos.add(new PartitionInfo(TOPIC, i, node, new Node[] {node}, new Node[] {node}));
+        }
+        return new Cluster("test", Collections.singletonList(node), infos, Collections.emptySet(),
+                Collections.emptySet());
+    }
+}
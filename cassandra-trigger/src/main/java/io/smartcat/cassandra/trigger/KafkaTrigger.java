@@ -2,145 +2,404 @@ package io.smartcat.cassandra.trigger;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
-import org.apache.cassandra.config.ColumnDefinition;
-import org.apache.cassandra.db.Clustering;
-import org.apache.cassandra.db.ClusteringBound;
-import org.apache.cassandra.db.ClusteringPrefix;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import io.smartcat.cassandra.common.KeyFormat;
+import io.smartcat.cassandra.common.LargeValuePolicy;
+import io.smartcat.cassandra.common.PartitionEncoder;
+import io.smartcat.cassandra.common.PartitionEncoders;
+import io.smartcat.cassandra.common.PipelineMetrics;
+import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.Mutation;
 import org.apache.cassandra.db.partitions.Partition;
-import org.apache.cassandra.db.rows.Cell;
-import org.apache.cassandra.db.rows.Row;
-import org.apache.cassandra.db.rows.Unfiltered;
-import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.triggers.ITrigger;
+import org.apache.cassandra.utils.Pair;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.common.serialization.StringSerializer;
-import org.json.simple.JSONObject;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
-public class KafkaTrigger implements ITrigger {
+/**
+ * Publishes partitions written to tables with this trigger to Kafka. Cassandra creates a new instance, from classes
+ * of a new class loader, whenever triggers are reloaded, while the previous instance keeps its lanes, producer and
+ * spill log. The running instance is therefore registered over JMX, and a new instance closes the previous one
+ * before it opens the spill log, so only one of them ever reads and writes the spill file. The previous instance
+ * publishes its queued partitions in the background, and lanes of the new instance wait for it before they publish,
+ * so a reload neither blocks the write which created the new instance nor reorders events.
+ */
+public class KafkaTrigger implements ITrigger, KafkaTriggerMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaTrigger.class);
+
+    private static final String INSTANCE_NAME = "io.smartcat.cassandra.trigger:type=KafkaTrigger";
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
 
     private static final String FILE_PATH = "/etc/cassandra/triggers/KafkaTrigger.yml";
     private static final String TOPIC_NAME = "topic.name";
+    private static final String ENCODER = "encoder";
+    private static final String EXECUTOR_LANES = "executor.lanes";
+    private static final String EXECUTOR_BATCH_SIZE = "executor.batch_size";
+    private static final String QUEUE_CAPACITY = "queue.capacity";
+    private static final String QUEUE_OVERFLOW = "queue.overflow";
+    private static final String SPILL_FILE = "spill.file";
+    private static final String SPILL_SIZE_MB = "spill.size_mb";
+    private static final String COALESCE_WINDOW_MS = "coalesce.window_ms";
+    private static final String KEY_FORMAT = "key.format";
+    private static final String LARGE_VALUE_POLICY = "large_value.policy";
+    private static final String LARGE_VALUE_THRESHOLD_BYTES = "large_value.threshold_bytes";
+    private static final String LARGE_VALUE_DIRECTORY = "large_value.directory";
 
     private final String topic;
-    private final Producer<String, String> producer;
-    private final ThreadPoolExecutor threadPoolExecutor;
+    private final Producer<byte[], byte[]> producer;
+    private final PartitionEncoder encoder;
+    private final KeyFormat keyFormat;
+    private final OverflowPolicy overflowPolicy;
+    // Lanes publish partitions and spilled events, which are already encoded.
+    private final StripedExecutor<Object> executor;
+    private final boolean coalesce;
+    private final PipelineMetrics metrics;
+    private final Meter dropped;
+    private final Meter coalesced;
+    // Released once the previous instance published its queued partitions, and once this one did after close.
+    private final CountDownLatch previousPublished;
+    private final CountDownLatch published = new CountDownLatch(1);
+    private SpillLog spillLog;
+    private ScheduledExecutorService drainer;
+    private volatile boolean closed;
+    // Set while the spill log holds events, read without the lock of the spill log on the write path.
+    private volatile boolean spilling;
+    // Spilled event taken from the log which did not fit into its lane yet, touched by the drainer only.
+    private SpillLog.SpilledEvent replayed;
 
     public KafkaTrigger() {
-        Map<String, Object> configuration = loadConfiguration();
+        this(loadConfiguration());
+    }
+
+    private KafkaTrigger(Map<String, Object> configuration) {
+        this(configuration, new KafkaProducer<>(configuration, new ByteArraySerializer(), new ByteArraySerializer()));
+    }
+
+    KafkaTrigger(Map<String, Object> configuration, Producer<byte[], byte[]> producer) {
+        previousPublished = closePrevious();
+        // Built once the previous instance unregistered its metrics, which have the same names.
+        metrics = new PipelineMetrics("io.smartcat.cassandra.trigger");
+        dropped = metrics.meter("dropped");
+        coalesced = metrics.meter("coalesced");
+        this.producer = producer;
         topic = (String) getProperty(TOPIC_NAME, configuration);
-        StringSerializer keySerializer = getSerializer(configuration, true);
-        StringSerializer valueSerializer = getSerializer(configuration, false);
-        producer = new KafkaProducer<>(configuration, keySerializer, valueSerializer);
-        threadPoolExecutor = new ThreadPoolExecutor(4, 20, 30, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
+        encoder = PartitionEncoders.create((String) configuration.get(ENCODER), LargeValuePolicy.create(
+                (String) configuration.get(LARGE_VALUE_POLICY),
+                Integer.parseInt(getProperty(LARGE_VALUE_THRESHOLD_BYTES, configuration,
+                        LargeValuePolicy.DEFAULT_THRESHOLD_BYTES).toString()),
+                (String) configuration.get(LARGE_VALUE_DIRECTORY)));
+        keyFormat = KeyFormat.of((String) configuration.get(KEY_FORMAT));
+        int lanes = Integer.parseInt(getProperty(EXECUTOR_LANES, configuration, 4).toString());
+        int batchSize = Integer.parseInt(getProperty(EXECUTOR_BATCH_SIZE, configuration, 100).toString());
+        int capacity = Integer.parseInt(getProperty(QUEUE_CAPACITY, configuration, 10000).toString());
+        overflowPolicy = OverflowPolicy.of(getProperty(QUEUE_OVERFLOW, configuration, "block").toString());
+        long coalesceWindow = Long.parseLong(getProperty(COALESCE_WINDOW_MS, configuration, 0).toString());
+        coalesce = coalesceWindow > 0;
+        executor = new StripedExecutor<>("kafka-trigger", lanes, Math.max(1, capacity / lanes), batchSize,
+                coalesceWindow, this::publish);
+        metrics.register("queue-depth", (Gauge<Integer>) executor::size);
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            startSpilling(configuration, capacity);
+        }
+        register();
     }
 
     @Override
     public Collection<Mutation> augment(Partition partition) {
-        threadPoolExecutor.execute(() -> readPartition(partition));
+        if (closed) {
+            // Only reached while Cassandra switches over to a reloaded instance.
+            dropped.mark();
+            LOGGER.warn("Dropping partition written through a closed Kafka trigger instance.");
+            return Collections.emptyList();
+        }
+        // Partitions of the same key always go to the same lane, which keeps them in order.
+        int stripe = partition.partitionKey().hashCode();
+        if (spilling && spillBehindSpilledEvents(stripe, partition)) {
+            return Collections.emptyList();
+        }
+        if (!executor.offer(stripe, partition)) {
+            overflow(stripe, partition);
+        }
         return Collections.emptyList();
     }
 
+    /**
+     * Publishes a batch of a lane. Spilled events are published in their place in the batch, so partitions are only
+     * coalesced with others between two spilled events.
+     */
     @SuppressWarnings("unchecked")
-    private void readPartition(Partition partition) {
-        String key = getKey(partition);
-        JSONObject obj = new JSONObject();
-        obj.put("key", key);
-        if (partitionIsDeleted(partition)) {
-            obj.put("partitionDeleted", true);
-        } else {
-            UnfilteredRowIterator it = partition.unfilteredIterator();
-            List<JSONObject> rows = new ArrayList<>();
-            while (it.hasNext()) {
-                Unfiltered un = it.next();
-                if (un.isRow()) {
-                    JSONObject jsonRow = new JSONObject();
-                    Clustering clustering = (Clustering) un.clustering();
-                    String clusteringKey = clustering.toCQLString(partition.metadata());
-                    jsonRow.put("clusteringKey", clusteringKey);
-                    Row row = partition.getRow(clustering);
-
-                    if (rowIsDeleted(row)) {
-                        obj.put("rowDeleted", true);
-                    } else {
-                        Iterator<Cell> cells = row.cells().iterator();
-                        Iterator<ColumnDefinition> columns = row.columns().iterator();
-                        List<JSONObject> cellObjects = new ArrayList<>();
-                        while (cells.hasNext() && columns.hasNext()) {
-                            JSONObject jsonCell = new JSONObject();
-                            ColumnDefinition columnDef = columns.next();
-                            Cell cell = cells.next();
-                            jsonCell.put("name", columnDef.name.toString());
-                            if (cell.isTombstone()) {
-                                jsonCell.put("deleted", true);
-                            } else {
-                                String data = columnDef.type.getString(cell.value());
-                                jsonCell.put("value", data);
-                            }
-                            cellObjects.add(jsonCell);
-                        }
-                        jsonRow.put("cells", cellObjects);
+    private void publish(List<Object> tasks) {
+        try {
+            previousPublished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int from = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i) instanceof SpillLog.SpilledEvent) {
+                publishPartitions((List<Partition>) (List<?>) tasks.subList(from, i));
+                SpillLog.SpilledEvent event = (SpillLog.SpilledEvent) tasks.get(i);
+                send(event.key(), event.value());
+                from = i + 1;
+            }
+        }
+        publishPartitions((List<Partition>) (List<?>) tasks.subList(from, tasks.size()));
+    }
+
+    private void publishPartitions(List<Partition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        for (Partition partition : coalesce ? coalesce(partitions) : partitions) {
+            long start = System.nanoTime();
+            byte[] key = keyFormat.serialize(partition);
+            byte[] value = encoder.encode(partition);
+            metrics.encoded(value.length, start);
+            send(key, value);
+        }
+    }
+
+    /**
+     * Merges updates of the same partition in the batch cell by cell, the newest timestamp wins. Partitions keep
+     * the order of their first update.
+     */
+    private Collection<Partition> coalesce(List<Partition> partitions) {
+        Map<Pair<UUID, DecoratedKey>, List<PartitionUpdate>> updates = new LinkedHashMap<>();
+        for (Partition partition : partitions) {
+            Pair<UUID, DecoratedKey> key = Pair.create(partition.metadata().cfId, partition.partitionKey());
+            updates.computeIfAbsent(key, k -> new ArrayList<>(1)).add((PartitionUpdate) partition);
+        }
+        if (updates.size() == partitions.size()) {
+            return partitions;
+        }
+        List<Partition> merged = new ArrayList<>(updates.size());
+        for (List<PartitionUpdate> partition : updates.values()) {
+            merged.add(PartitionUpdate.merge(partition));
+        }
+        coalesced.mark(partitions.size() - merged.size());
+        return merged;
+    }
+
+    private void send(byte[] key, byte[] value) {
+        long sent = System.nanoTime();
+        producer.send(new ProducerRecord<>(topic, key, value), (metadata, exception) -> {
+            if (exception == null) {
+                metrics.acknowledged(sent);
+            } else {
+                metrics.failedSend();
+            }
+        });
+    }
+
+    /**
+     * Handles a partition which did not fit into its lane, according to the overflow policy.
+     */
+    private void overflow(int stripe, Partition partition) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    executor.put(stripe, partition);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop();
+                }
+                break;
+            case SPILL:
+                byte[] key = keyFormat.serialize(partition);
+                byte[] value = encoder.encode(partition);
+                synchronized (spillLog) {
+                    spilling = true;
+                    spill(stripe, key, value);
+                }
+                break;
+            default:
+                drop();
+        }
+    }
+
+    /**
+     * Spills the partition while the spill log holds events, so it cannot overtake spilled events of its key. Returns
+     * false once the log is drained, the partition then goes to its lane.
+     */
+    private boolean spillBehindSpilledEvents(int stripe, Partition partition) {
+        byte[] key = keyFormat.serialize(partition);
+        byte[] value = encoder.encode(partition);
+        synchronized (spillLog) {
+            if (!spilling) {
+                return false;
+            }
+            spill(stripe, key, value);
+            return true;
+        }
+    }
+
+    private void spill(int stripe, byte[] key, byte[] value) {
+        // The spill log belongs to the next instance once this one is closed.
+        if (closed || !spillLog.append(stripe, key, value)) {
+            drop();
+        }
+    }
+
+    private void drop() {
+        dropped.mark();
+        long count = dropped.getCount();
+        if (count % 10000 == 1) {
+            LOGGER.warn("Publishing queue is full, {} partitions dropped so far.", count);
+        }
+    }
+
+    private void startSpilling(Map<String, Object> configuration, int capacity) {
+        String file = getProperty(SPILL_FILE, configuration, "/var/lib/cassandra/kafka-trigger.spill").toString();
+        int size = Integer.parseInt(getProperty(SPILL_SIZE_MB, configuration, 256).toString());
+        try {
+            spillLog = new SpillLog(Paths.get(file), size * 1024L * 1024L);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        spilling = !spillLog.isEmpty();
+        drainer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "kafka-trigger-spill-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainer.scheduleWithFixedDelay(() -> drainSpillLog(capacity / 2), 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands spilled events back to their lanes while the queue stays below the given size, i.e. while the producer
+     * keeps up. Lanes publish them after partitions queued before they were spilled, and partitions written while
+     * the log is not drained are spilled behind them, so events of a key are published in the order of writes.
+     */
+    private void drainSpillLog(int queueSize) {
+        try {
+            while (executor.size() < queueSize) {
+                synchronized (spillLog) {
+                    if (closed) {
+                        return;
                     }
-                    rows.add(jsonRow);
-                } else if (un.isRangeTombstoneMarker()) {
-                    obj.put("rowRangeDeleted", true);
-                    ClusteringBound bound = (ClusteringBound) un.clustering();
-                    List<JSONObject> bounds = new ArrayList<>();
-                    for (int i = 0; i < bound.size(); i++) {
-                        String clusteringBound = partition.metadata().comparator.subtype(i).getString(bound.get(i));
-                        JSONObject boundObject = new JSONObject();
-                        boundObject.put("clusteringKey", clusteringBound);
-                        if (i == bound.size() - 1) {
-                            if (bound.kind().isStart()) {
-                                boundObject.put("inclusive",
-                                        bound.kind() == ClusteringPrefix.Kind.INCL_START_BOUND ? true : false);
-                            }
-                            if (bound.kind().isEnd()) {
-                                boundObject.put("inclusive",
-                                        bound.kind() == ClusteringPrefix.Kind.INCL_END_BOUND ? true : false);
-                            }
-                        }
-                        bounds.add(boundObject);
+                    SpillLog.SpilledEvent event = replayed != null ? replayed : spillLog.poll();
+                    if (event == null) {
+                        spilling = false;
+                        return;
+                    }
+                    replayed = executor.offer(event.stripe(), event) ? null : event;
+                    if (replayed != null) {
+                        return;
                     }
-                    obj.put((bound.kind().isStart() ? "start" : "end"), bounds);
                 }
             }
-            obj.put("rows", rows);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to replay spilled events.", e);
         }
-        String value = obj.toJSONString();
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, key, value);
-        producer.send(record);
     }
 
-    private boolean partitionIsDeleted(Partition partition) {
-        return partition.partitionLevelDeletion().markedForDeleteAt() > Long.MIN_VALUE;
+    /**
+     * Stops using the spill log and unregisters the metrics, waiting at most for an append or replay in progress.
+     * Partitions queued on the lanes and the spilled event taken from the log last are published in the background,
+     * after which the producer is closed. Events still in the spill log stay there for the next instance.
+     */
+    @Override
+    public synchronized CountDownLatch close() {
+        if (closed) {
+            return published;
+        }
+        closed = true;
+        if (drainer != null) {
+            drainer.shutdown();
+            // Appends and replays check for close under the lock of the spill log.
+            synchronized (spillLog) {
+                spilling = false;
+            }
+        }
+        metrics.close();
+        Thread closer = new Thread(this::publishQueued, "kafka-trigger-closer");
+        closer.setDaemon(true);
+        closer.start();
+        return published;
+    }
+
+    private void publishQueued() {
+        try {
+            if (!executor.shutdown(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("Lanes did not publish their queued partitions within {} seconds.", CLOSE_TIMEOUT_SECONDS);
+            }
+            if (replayed != null) {
+                send(replayed.key(), replayed.value());
+                replayed = null;
+            }
+            producer.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (spillLog != null) {
+                spillLog.close();
+            }
+            LOGGER.info("Kafka trigger closed.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to publish partitions queued before the Kafka trigger was closed.", e);
+        } finally {
+            published.countDown();
+        }
     }
 
-    private boolean rowIsDeleted(Row row) {
-        return row.deletion().time().markedForDeleteAt() > Long.MIN_VALUE;
+    /**
+     * Closes the instance registered before this one, if there is one, and returns the latch released once it
+     * published its queued partitions. It may come from another class loader, so it is only reached over JMX.
+     */
+    private static CountDownLatch closePrevious() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(INSTANCE_NAME);
+            if (!server.isRegistered(name)) {
+                return new CountDownLatch(0);
+            }
+            CountDownLatch previousPublished = (CountDownLatch) server.invoke(name, "close", null, null);
+            server.unregisterMBean(name);
+            LOGGER.info("Closed the previous Kafka trigger instance.");
+            return previousPublished;
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to close the previous Kafka trigger instance.", e);
+        }
     }
 
-    private String getKey(Partition partition) {
-        return partition.metadata().getKeyValidator().getString(partition.partitionKey().getKey());
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(INSTANCE_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register the Kafka trigger instance.", e);
+        }
     }
 
     @SuppressWarnings("unchecked")
-    private Map<String, Object> loadConfiguration() {
+    private static Map<String, Object> loadConfiguration() {
         InputStream stream = null;
         try {
             stream = new FileInputStream(new File(FILE_PATH));
@@ -160,9 +419,8 @@ public class KafkaTrigger implements ITrigger {
         return configuration.get(key);
     }
 
-    private StringSerializer getSerializer(Map<String, Object> configuration, boolean isKey) {
-        StringSerializer serializer = new StringSerializer();
-        serializer.configure(configuration, isKey);
-        return serializer;
+    private Object getProperty(String key, Map<String, Object> configuration, Object defaultValue) {
+        Object value = configuration.get(key);
+        return value == null ? defaultValue : value;
     }
 }
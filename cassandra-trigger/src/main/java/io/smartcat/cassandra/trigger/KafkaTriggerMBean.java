@@ -0,0 +1,15 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Management interface of the running trigger instance.
+ */
+public interface KafkaTriggerMBean {
+
+    /**
+     * Stops taking partitions, after which the instance drops them, and publishes partitions queued so far in the
+     * background. Returns a latch released once they are published and the producer is closed.
+     */
+    CountDownLatch close();
+}
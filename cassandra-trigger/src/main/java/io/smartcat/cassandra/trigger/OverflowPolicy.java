@@ -0,0 +1,19 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.Locale;
+
+/**
+ * What happens to a partition when the publishing queue is full.
+ */
+public enum OverflowPolicy {
+    /** Wait in the write path until there is space in the queue. */
+    BLOCK,
+    /** Drop the partition and count it. */
+    DROP,
+    /** Encode the partition and append it to the local spill log, to be published later. */
+    SPILL;
+
+    public static OverflowPolicy of(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,183 @@
+package io.smartcat.cassandra.trigger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log of encoded events in a memory-mapped local file, used as a ring. Events are read back in the order they were
+ * appended, and space of read events is reused by later appends while older events are still waiting, so the log
+ * keeps accepting events under sustained pressure as long as they are read at the rate they are appended. An event
+ * which does not fit before the end of the file is written at its beginning, and the position where the data ends
+ * is recorded in the header. Read, write and wrap positions are kept in the file header, so events spilled before a
+ * restart are replayed after it.
+ */
+public class SpillLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final int READ_POSITION = 0;
+    private static final int WRITE_POSITION = Integer.BYTES;
+    private static final int WRAP_POSITION = 2 * Integer.BYTES;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Opens the log in the given file, creating it if it does not exist. A file created with another size is
+     * resized, unless it holds unread events beyond the new size, in which case it keeps its size until reopened.
+     */
+    public SpillLog(Path file, long sizeInBytes) throws IOException {
+        if (sizeInBytes <= HEADER_SIZE || sizeInBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Spill log size must be between " + (HEADER_SIZE + 1) + " and "
+                    + Integer.MAX_VALUE + " bytes: " + sizeInBytes);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = sizeInBytes;
+            if (channel.size() > sizeInBytes) {
+                if (holdsEventsBeyond(channel, sizeInBytes)) {
+                    size = Math.min(channel.size(), Integer.MAX_VALUE);
+                    LOGGER.warn("Spill log {} holds events beyond {} bytes, keeping its size of {} bytes.", file,
+                            sizeInBytes, size);
+                } else {
+                    channel.truncate(sizeInBytes);
+                }
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (!isValid()) {
+            if (buffer.getInt(WRITE_POSITION) != 0) {
+                LOGGER.warn("Spill log {} has an invalid header, discarding its events.", file);
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Appends an event of the given lane stripe, returns false when there is not enough space left for it.
+     */
+    public synchronized boolean append(int stripe, byte[] key, byte[] value) {
+        int read = buffer.getInt(READ_POSITION);
+        int write = buffer.getInt(WRITE_POSITION);
+        int size = 3 * Integer.BYTES + key.length + value.length;
+        if (read == write && write != HEADER_SIZE) {
+            reset();
+            read = HEADER_SIZE;
+            write = HEADER_SIZE;
+        }
+        // The write position never catches up with the read position, which would make a full log look empty.
+        if (write >= read && size <= buffer.capacity() - write) {
+            put(write, stripe, key, value);
+        } else if (write >= read && size < read - HEADER_SIZE) {
+            buffer.putInt(WRAP_POSITION, write);
+            put(HEADER_SIZE, stripe, key, value);
+        } else if (write < read && size < read - write) {
+            put(write, stripe, key, value);
+        } else {
+            return false;
+        }
+        buffer.putInt(WRITE_POSITION, buffer.position());
+        return true;
+    }
+
+    /**
+     * Reads the oldest event not read yet, or returns null when the log is empty.
+     */
+    public synchronized SpilledEvent poll() {
+        int position = buffer.getInt(READ_POSITION);
+        int end = buffer.getInt(WRITE_POSITION);
+        if (position == end) {
+            return null;
+        }
+        if (end < position && position == buffer.getInt(WRAP_POSITION)) {
+            position = HEADER_SIZE;
+        }
+        buffer.position(position);
+        int stripe = buffer.getInt();
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        if (buffer.position() == end) {
+            reset();
+        } else {
+            buffer.putInt(READ_POSITION, buffer.position());
+        }
+        return new SpilledEvent(stripe, key, value);
+    }
+
+    /**
+     * Writes the events and positions out to the file. The log must not be used afterwards.
+     */
+    public synchronized void close() {
+        buffer.force();
+    }
+
+    public synchronized boolean isEmpty() {
+        return buffer.getInt(READ_POSITION) == buffer.getInt(WRITE_POSITION);
+    }
+
+    private void put(int position, int stripe, byte[] key, byte[] value) {
+        buffer.position(position);
+        buffer.putInt(stripe).putInt(key.length).put(key).putInt(value.length).put(value);
+    }
+
+    private void reset() {
+        buffer.putInt(READ_POSITION, HEADER_SIZE);
+        buffer.putInt(WRITE_POSITION, HEADER_SIZE);
+        buffer.putInt(WRAP_POSITION, HEADER_SIZE);
+    }
+
+    private boolean isValid() {
+        int read = buffer.getInt(READ_POSITION);
+        int write = buffer.getInt(WRITE_POSITION);
+        int wrap = buffer.getInt(WRAP_POSITION);
+        return read >= HEADER_SIZE && read <= buffer.capacity() && write >= HEADER_SIZE
+                && write <= buffer.capacity() && (write >= read || (wrap >= read && wrap <= buffer.capacity()));
+    }
+
+    /**
+     * Tells whether the log in the file has unread events past the given size.
+     */
+    private static boolean holdsEventsBeyond(FileChannel channel, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        int read = header.getInt(READ_POSITION);
+        int write = header.getInt(WRITE_POSITION);
+        if (read == write) {
+            return false;
+        }
+        return write > read ? write > size : header.getInt(WRAP_POSITION) > size;
+    }
+
+    public static class SpilledEvent {
+        private final int stripe;
+        private final byte[] key;
+        private final byte[] value;
+
+        private SpilledEvent(int stripe, byte[] key, byte[] value) {
+            this.stripe = stripe;
+            this.key = key;
+            this.value = value;
+        }
+
+        public int stripe() {
+            return stripe;
+        }
+
+        public byte[] key() {
+            return key;
+        }
+
+        public byte[] value() {
+            return value;
+        }
+    }
+}
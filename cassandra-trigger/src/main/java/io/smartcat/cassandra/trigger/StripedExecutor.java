@@ -0,0 +1,126 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a fixed number of single-threaded lanes. Tasks with the same stripe always end up on the same lane,
+ * so they are handled in the order they were submitted. Each lane has its own bounded queue and hands everything
+ * queued up, at most batch size tasks at a time, to the handler at once. With a batch window, a lane waits up to the
+ * window after its first task for more tasks to fill the batch. Lanes run until they are shut down and have handled
+ * everything queued before.
+ */
+public class StripedExecutor<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripedExecutor.class);
+
+    // How often idle lanes check whether they were shut down.
+    private static final long IDLE_CHECK_MS = 100;
+
+    private final List<BlockingQueue<T>> queues;
+    private final List<Thread> lanes;
+    private volatile boolean shutdown;
+
+    public StripedExecutor(String name, int lanes, int laneCapacity, int batchSize, Consumer<List<T>> handler) {
+        this(name, lanes, laneCapacity, batchSize, 0, handler);
+    }
+
+    public StripedExecutor(String name, int lanes, int laneCapacity, int batchSize, long batchWindowMs,
+            Consumer<List<T>> handler) {
+        queues = new ArrayList<>(lanes);
+        this.lanes = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            BlockingQueue<T> queue = new ArrayBlockingQueue<>(laneCapacity);
+            queues.add(queue);
+            Thread lane = new Thread(() -> run(queue, batchSize, batchWindowMs, handler), name + "-" + i);
+            lane.setDaemon(true);
+            lane.start();
+            this.lanes.add(lane);
+        }
+    }
+
+    /**
+     * Queues the task on the lane of the stripe, returns false if that lane is full.
+     */
+    public boolean offer(int stripe, T task) {
+        return queue(stripe).offer(task);
+    }
+
+    /**
+     * Queues the task on the lane of the stripe, waiting for space if that lane is full.
+     */
+    public void put(int stripe, T task) throws InterruptedException {
+        queue(stripe).put(task);
+    }
+
+    /**
+     * Returns the number of tasks queued on all lanes.
+     */
+    public int size() {
+        int size = 0;
+        for (BlockingQueue<T> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Stops the lanes once they handled every task queued so far, waiting up to the given time for them. Returns
+     * false if some lane was still busy when the time was up.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread lane : lanes) {
+            lane.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (lane.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private BlockingQueue<T> queue(int stripe) {
+        return queues.get(Math.floorMod(stripe, queues.size()));
+    }
+
+    private void run(BlockingQueue<T> queue, int batchSize, long batchWindowMs, Consumer<List<T>> handler) {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                T first = queue.poll(IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMs);
+                while (batch.size() < batchSize && System.nanoTime() < deadline) {
+                    T task = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (task == null) {
+                        break;
+                    }
+                    batch.add(task);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                handler.accept(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to handle a batch of {} tasks.", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.smartcat.cassandra.common.PartitionEncoder;
+import io.smartcat.cassandra.common.PartitionEncoders;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.partitions.PartitionUpdate;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static io.smartcat.cassandra.trigger.StripedExecutorTest.waitUntil;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KafkaTriggerTest {
+
+    private static CFMetaData table;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        DatabaseDescriptor.toolInitialization();
+        table = CFMetaData.compile("CREATE TABLE events (k text PRIMARY KEY, v int)", "test");
+    }
+
+    @Test
+    public void publishesSpilledEventsInWriteOrder() throws InterruptedException {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("topic.name", "events");
+        configuration.put("executor.lanes", 1);
+        configuration.put("executor.batch_size", 1);
+        configuration.put("queue.capacity", 2);
+        configuration.put("queue.overflow", "spill");
+        configuration.put("spill.file", folder.getRoot().toPath().resolve("trigger.spill").toString());
+        configuration.put("spill.size_mb", 1);
+        BlockingProducer producer = new BlockingProducer();
+        KafkaTrigger trigger = new KafkaTrigger(configuration, producer);
+
+        List<PartitionUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PartitionUpdate.SimpleBuilder update = PartitionUpdate.simpleBuilder(table, "k").timestamp(i);
+            update.row().add("v", i);
+            updates.add(update.build());
+        }
+        // The lane is stuck on the first update and full after two more, so the rest is spilled.
+        for (int i = 0; i < 10; i++) {
+            trigger.augment(updates.get(i));
+        }
+        producer.release.countDown();
+        // Updates written once the lane has space again must still be published after the spilled ones.
+        waitUntil(() -> producer.history().size() >= 3);
+        for (int i = 10; i < 20; i++) {
+            trigger.augment(updates.get(i));
+        }
+
+        waitUntil(() -> producer.history().size() == 20);
+        PartitionEncoder encoder = PartitionEncoders.create(null);
+        List<ProducerRecord<byte[], byte[]>> published = producer.history();
+        for (int i = 0; i < 20; i++) {
+            assertEquals("events", published.get(i).topic());
+            assertArrayEquals("Event " + i, encoder.encode(updates.get(i)), published.get(i).value());
+        }
+    }
+
+    @Test
+    public void newInstanceClosesThePreviousOneBeforeTakingOverItsSpillLog() throws InterruptedException {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("topic.name", "events");
+        configuration.put("executor.lanes", 1);
+        configuration.put("executor.batch_size", 1);
+        configuration.put("queue.capacity", 2);
+        configuration.put("queue.overflow", "spill");
+        configuration.put("spill.file", folder.getRoot().toPath().resolve("trigger.spill").toString());
+        configuration.put("spill.size_mb", 1);
+        BlockingProducer previousProducer = new BlockingProducer();
+        KafkaTrigger previous = new KafkaTrigger(configuration, previousProducer);
+
+        List<PartitionUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PartitionUpdate.SimpleBuilder update = PartitionUpdate.simpleBuilder(table, "k").timestamp(i);
+            update.row().add("v", i);
+            updates.add(update.build());
+        }
+        for (int i = 0; i < 20; i++) {
+            previous.augment(updates.get(i));
+        }
+        previousProducer.release.countDown();
+        waitUntil(() -> previousProducer.history().size() >= 3);
+        BlockingProducer producer = new BlockingProducer();
+        producer.release.countDown();
+        new KafkaTrigger(configuration, producer);
+
+        waitUntil(previousProducer::closed);
+        // Every event is published once, the new instance continues where the previous one left the spill log.
+        waitUntil(() -> previousProducer.history().size() + producer.history().size() == 20);
+        List<ProducerRecord<byte[], byte[]>> published = new ArrayList<>(previousProducer.history());
+        published.addAll(producer.history());
+        PartitionEncoder encoder = PartitionEncoders.create(null);
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals("Event " + i, encoder.encode(updates.get(i)), published.get(i).value());
+        }
+        Thread.sleep(300);
+        assertEquals(20, previousProducer.history().size() + producer.history().size());
+    }
+
+    @Test
+    public void newInstanceDoesNotWaitForThePreviousOneToPublish() throws InterruptedException {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("topic.name", "events");
+        configuration.put("executor.lanes", 1);
+        configuration.put("executor.batch_size", 1);
+        configuration.put("queue.capacity", 2);
+        configuration.put("queue.overflow", "spill");
+        configuration.put("spill.file", folder.getRoot().toPath().resolve("trigger.spill").toString());
+        configuration.put("spill.size_mb", 1);
+        BlockingProducer previousProducer = new BlockingProducer();
+        KafkaTrigger previous = new KafkaTrigger(configuration, previousProducer);
+
+        List<PartitionUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PartitionUpdate.SimpleBuilder update = PartitionUpdate.simpleBuilder(table, "k").timestamp(i);
+            update.row().add("v", i);
+            updates.add(update.build());
+        }
+        for (int i = 0; i < 10; i++) {
+            previous.augment(updates.get(i));
+        }
+        BlockingProducer producer = new BlockingProducer();
+        producer.release.countDown();
+        // The previous producer is stuck, which must not hold up the write creating the new instance.
+        long start = System.nanoTime();
+        KafkaTrigger trigger = new KafkaTrigger(configuration, producer);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        for (int i = 10; i < 20; i++) {
+            trigger.augment(updates.get(i));
+        }
+        Thread.sleep(300);
+        // Spilled events are not published before the partitions queued on the previous instance.
+        assertEquals(0, producer.history().size());
+
+        previousProducer.release.countDown();
+        waitUntil(() -> previousProducer.history().size() + producer.history().size() == 20);
+        List<ProducerRecord<byte[], byte[]>> published = new ArrayList<>(previousProducer.history());
+        published.addAll(producer.history());
+        PartitionEncoder encoder = PartitionEncoders.create(null);
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals("Event " + i, encoder.encode(updates.get(i)), published.get(i).value());
+        }
+    }
+
+    /**
+     * Producer which does not accept records until it is released.
+     */
+    private static class BlockingProducer extends MockProducer<byte[], byte[]> {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean closed;
+
+        BlockingProducer() {
+            super(true, new ByteArraySerializer(), new ByteArraySerializer());
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<byte[], byte[]> record, Callback callback) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.send(record, callback);
+        }
+
+        @Override
+        public void close(long timeout, TimeUnit unit) {
+            closed = true;
+            super.close(timeout, unit);
+        }
+
+        boolean closed() {
+            return closed;
+        }
+    }
+}
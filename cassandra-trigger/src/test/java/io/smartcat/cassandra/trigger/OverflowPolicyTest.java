@@ -0,0 +1,23 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverflowPolicyTest {
+
+    @Test
+    public void parsesNamesRegardlessOfDefaultLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals(OverflowPolicy.SPILL, OverflowPolicy.of("spill"));
+            assertEquals(OverflowPolicy.DROP, OverflowPolicy.of("drop"));
+            assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.of("Block"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
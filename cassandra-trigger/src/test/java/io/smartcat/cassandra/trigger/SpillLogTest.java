@@ -0,0 +1,214 @@
+package io.smartcat.cassandra.trigger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillLogTest {
+
+    private static final int HEADER_SIZE = 12;
+    // Events of a one byte key and a three byte value, with their stripe.
+    private static final int EVENT_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("trigger.spill");
+    }
+
+    @Test
+    public void readsEventsInAppendOrder() throws IOException {
+        SpillLog log = new SpillLog(file, 1024);
+        assertTrue(log.isEmpty());
+        assertNull(log.poll());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(log.append(-i, key(i), value(i)));
+        }
+        assertFalse(log.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            SpillLog.SpilledEvent event = log.poll();
+            assertEquals(-i, event.stripe());
+            assertEvent(i, event);
+        }
+        assertTrue(log.isEmpty());
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void rejectsEventsWhichDoNotFit() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 3 * EVENT_SIZE);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+
+        assertFalse(log.append(0, key(3), value(3)));
+        assertFalse(log.append(0, new byte[0], new byte[1024]));
+
+        for (int i = 0; i < 3; i++) {
+            assertEvent(i, log.poll());
+        }
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void reusesSpaceOfReadEventsWhileOthersAreWaiting() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 6 * EVENT_SIZE + 5);
+        int appended = 0;
+        int read = 0;
+        while (appended < 4) {
+            assertTrue(log.append(0, key(appended), value(appended++)));
+        }
+        // The log never drains completely, so it keeps wrapping around with events waiting in it.
+        for (int round = 0; round < 100; round++) {
+            assertTrue(log.append(0, key(appended), value(appended++)));
+            assertEvent(read++, log.poll());
+        }
+        while (read < appended) {
+            assertEvent(read++, log.poll());
+        }
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void neverOverwritesUnreadEvents() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 3 * EVENT_SIZE);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+        assertEvent(0, log.poll());
+
+        // The freed space is exactly one event, which would make the write position reach the read position.
+        assertFalse(log.append(0, key(3), value(3)));
+        assertEvent(1, log.poll());
+        assertTrue(log.append(0, key(3), value(3)));
+        assertFalse(log.append(0, key(4), value(4)));
+
+        assertEvent(2, log.poll());
+        assertEvent(3, log.poll());
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void replaysWrappedEventsAfterReopening() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 4 * EVENT_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+        assertEvent(0, log.poll());
+        assertEvent(1, log.poll());
+        assertTrue(log.append(0, key(4), value(4)));
+
+        log = new SpillLog(file, HEADER_SIZE + 4 * EVENT_SIZE);
+        for (int i = 2; i < 5; i++) {
+            assertEvent(i, log.poll());
+        }
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void keepsEventsBeyondSmallerSizeUntilTheyAreRead() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 10 * EVENT_SIZE);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+
+        log = new SpillLog(file, HEADER_SIZE + 2 * EVENT_SIZE);
+        assertEquals(HEADER_SIZE + 10 * EVENT_SIZE, Files.size(file));
+        for (int i = 0; i < 10; i++) {
+            assertEvent(i, log.poll());
+        }
+
+        log = new SpillLog(file, HEADER_SIZE + 2 * EVENT_SIZE);
+        assertEquals(HEADER_SIZE + 2 * EVENT_SIZE, Files.size(file));
+        assertTrue(log.append(0, key(10), value(10)));
+        assertTrue(log.append(0, key(11), value(11)));
+        assertFalse(log.append(0, key(12), value(12)));
+    }
+
+    @Test
+    public void shrinksLogWhoseEventsFitIntoSmallerSize() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 10 * EVENT_SIZE);
+        assertTrue(log.append(0, key(0), value(0)));
+
+        log = new SpillLog(file, HEADER_SIZE + 2 * EVENT_SIZE);
+
+        assertEquals(HEADER_SIZE + 2 * EVENT_SIZE, Files.size(file));
+        assertEvent(0, log.poll());
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void growsWrappedLog() throws IOException {
+        SpillLog log = new SpillLog(file, HEADER_SIZE + 4 * EVENT_SIZE + 6);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+        assertEvent(0, log.poll());
+        assertEvent(1, log.poll());
+        assertTrue(log.append(0, key(4), value(4)));
+
+        log = new SpillLog(file, HEADER_SIZE + 100 * EVENT_SIZE);
+        for (int i = 2; i < 5; i++) {
+            assertEvent(i, log.poll());
+        }
+        for (int i = 5; i < 100; i++) {
+            assertTrue(log.append(0, key(i), value(i)));
+        }
+        for (int i = 5; i < 100; i++) {
+            assertEvent(i, log.poll());
+        }
+    }
+
+    @Test
+    public void discardsEventsOfInvalidHeader() throws IOException {
+        SpillLog log = new SpillLog(file, 1024);
+        assertTrue(log.append(0, key(0), value(0)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 4096), 4);
+        }
+
+        log = new SpillLog(file, 1024);
+
+        assertTrue(log.isEmpty());
+        assertTrue(log.append(0, key(1), value(1)));
+        assertEvent(1, log.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesWhichCannotBeMapped() throws IOException {
+        new SpillLog(file, 4096L * 1024L * 1024L);
+    }
+
+    private static byte[] key(int i) {
+        return new byte[]{(byte) i};
+    }
+
+    private static byte[] value(int i) {
+        return String.format("%03d", i % 1000).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void assertEvent(int i, SpillLog.SpilledEvent event) {
+        assertEquals((byte) i, event.key()[0]);
+        assertEquals(new String(value(i), StandardCharsets.US_ASCII),
+                new String(event.value(), StandardCharsets.US_ASCII));
+    }
+}
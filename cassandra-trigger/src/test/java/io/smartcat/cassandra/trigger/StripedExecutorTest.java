@@ -0,0 +1,197 @@
+package io.smartcat.cassandra.trigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void handlesTasksOfAStripeInSubmitOrder() throws InterruptedException {
+        int stripes = 8;
+        int tasks = 1000;
+        List<List<Integer>> handled = new ArrayList<>();
+        for (int i = 0; i < stripes; i++) {
+            handled.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        CountDownLatch done = new CountDownLatch(stripes * tasks);
+        StripedExecutor<int[]> executor = new StripedExecutor<>("test", 3, 16, 10, batch -> {
+            for (int[] task : batch) {
+                handled.get(task[0]).add(task[1]);
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < tasks; i++) {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                executor.put(stripe, new int[] {stripe, i});
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> stripe : handled) {
+            assertEquals(tasks, stripe.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(i, (int) stripe.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void handsAtMostBatchSizeTasksAtOnce() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 1, 100, 4, batch -> {
+            batchSizes.add(batch.size());
+            entered.countDown();
+            await(release);
+        });
+
+        executor.put(0, 0);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) {
+            executor.put(0, i);
+        }
+        release.countDown();
+
+        waitUntil(() -> executor.size() == 0 && batchSizes.size() == 4);
+        assertEquals(Integer.valueOf(1), batchSizes.get(0));
+        assertEquals(Integer.valueOf(4), batchSizes.get(1));
+        assertEquals(Integer.valueOf(4), batchSizes.get(2));
+        assertEquals(Integer.valueOf(2), batchSizes.get(3));
+    }
+
+    @Test
+    public void offerFailsWhenLaneIsFull() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 2, 2, 1, batch -> {
+            entered.countDown();
+            await(release);
+        });
+
+        assertTrue(executor.offer(0, 0));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertTrue(executor.offer(0, 1));
+        assertTrue(executor.offer(2, 2));
+        assertFalse(executor.offer(0, 3));
+        assertEquals(2, executor.size());
+        // The other lane still has space.
+        assertTrue(executor.offer(1, 4));
+        release.countDown();
+    }
+
+    @Test
+    public void putWaitsForSpace() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 1, 1, 1, batch -> {
+            entered.countDown();
+            await(release);
+        });
+        executor.put(0, 0);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        executor.put(0, 1);
+
+        AtomicBoolean queued = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            try {
+                executor.put(0, 2);
+                queued.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertFalse(queued.get());
+
+        release.countDown();
+        producer.join(10000);
+        assertTrue(queued.get());
+    }
+
+    @Test
+    public void waitsForBatchWindowToFillBatch() throws InterruptedException {
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 1, 100, 10, 2000,
+                batch -> batchSizes.add(batch.size()));
+
+        for (int i = 0; i < 10; i++) {
+            executor.put(0, i);
+            Thread.sleep(10);
+        }
+
+        waitUntil(() -> !batchSizes.isEmpty());
+        assertEquals(Collections.singletonList(10), batchSizes);
+    }
+
+    @Test
+    public void keepsRunningAfterHandlerFails() throws InterruptedException {
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 1, 10, 1, batch -> {
+            if (batch.get(0) == 0) {
+                throw new IllegalStateException("Failing on purpose.");
+            }
+            handled.addAll(batch);
+        });
+
+        executor.put(0, 0);
+        executor.put(0, 1);
+
+        waitUntil(() -> handled.size() == 1);
+        assertEquals(Collections.singletonList(1), handled);
+    }
+
+    @Test
+    public void shutdownHandlesQueuedTasksBeforeStopping() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        StripedExecutor<Integer> executor = new StripedExecutor<>("test", 2, 10, 1, batch -> {
+            await(release);
+            handled.addAll(batch);
+        });
+        for (int i = 0; i < 6; i++) {
+            executor.put(i, i);
+        }
+
+        assertFalse(executor.shutdown(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(6, handled.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met in time.");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    interface Condition {
+        boolean holds();
+    }
+}